@@ -0,0 +1,77 @@
+package io.github.oliviercailloux.keyboardd;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.keyboardd.mnemonics.Mnemonics;
+import io.github.oliviercailloux.keyboardd.utils.LazyHolder;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Manages the data included in this library ({@link Mnemonics#latest()}, {@link Xkeys#latest()},
+ * {@link XkbSymbolsReader#common()}, {@link XkbSymbolsReader#us()} and
+ * {@link XkbSymbolsReader#usIntl()}), each of which is loaded once per process and then shared.
+ */
+public class BundledData {
+  private static final ImmutableList<Runnable> LOADERS =
+      ImmutableList.of(Mnemonics::latest, Xkeys::latest, XkbSymbolsReader::common,
+          XkbSymbolsReader::us, XkbSymbolsReader::usIntl);
+
+  /**
+   * Loads all the bundled data in parallel, using the common fork join pool, and waits for
+   * completion.
+   */
+  public static void preload() {
+    preload(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Loads all the bundled data in parallel, using the given executor, and waits for completion.
+   *
+   * @param executor the executor that runs the loaders
+   */
+  public static void preload(Executor executor) {
+    CompletableFuture<?>[] loads = LOADERS.stream()
+        .map(l -> CompletableFuture.runAsync(l, executor)).toArray(CompletableFuture<?>[]::new);
+    CompletableFuture.allOf(loads).join();
+  }
+
+  /**
+   * Forgets all the bundled data loaded so far, so that the next requests load them again.
+   */
+  public static void invalidate() {
+    invalidate(LazyHolder.all().keySet());
+  }
+
+  /**
+   * Forgets the given bundled data, so that the next requests load them again, leaving the other
+   * ones shared.
+   *
+   * @param names the names of data that have been requested, such as “Mnemonics.latest”
+   */
+  public static void invalidate(Set<String> names) {
+    ImmutableMap<String, LazyHolder<?>> all = LazyHolder.all();
+    checkArgument(all.keySet().containsAll(names), "Unknown: %s.",
+        Sets.difference(names, all.keySet()));
+    names.forEach(n -> all.get(n).reset());
+  }
+
+  /**
+   * The number of hits and loads of each bundled data that has been requested so far.
+   *
+   * @return the statistics by name of the data, such as “Mnemonics.latest”
+   */
+  public static ImmutableMap<String, LazyHolder.Statistics> statistics() {
+    return ImmutableMap.copyOf(Maps.transformValues(LazyHolder.all(), LazyHolder::statistics));
+  }
+
+  private BundledData() {}
+}
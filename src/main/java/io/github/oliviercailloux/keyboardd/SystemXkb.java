@@ -0,0 +1,192 @@
+package io.github.oliviercailloux.keyboardd;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.io.CharSource;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMapSnapshot;
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsIndex;
+import io.github.oliviercailloux.keyboardd.mnemonics.Mnemonics;
+import io.github.oliviercailloux.keyboardd.mnemonics.MnemonicsSnapshot;
+import io.github.oliviercailloux.keyboardd.utils.SnapshotCache;
+import io.github.oliviercailloux.keyboardd.utils.SnapshotCache.Codec;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import io.github.oliviercailloux.keyboardd.xkeys.XkeysSnapshot;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The XKB data of a system, read from configurable locations rather than from the copies included
+ * in this library (see {@link BundledData}): its X keys (from {@code keycodes/evdev} in the XKB
+ * root), its mnemonics (from the xkbcommon keysyms header) and the keyboard maps of its symbols
+ * files (from {@code symbols} in the XKB root).
+ * <p>
+ * Each structure is parsed once, then cached as a binary snapshot (see {@link SnapshotCache}), so
+ * that later processes load it without parsing, until its file changes. Each request checks the
+ * file and reads the snapshot, thus callers should keep the structures they obtain.
+ */
+public class SystemXkb {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(SystemXkb.class);
+
+  /** The usual XKB root. */
+  public static final Path DEFAULT_XKB_ROOT = Path.of("/usr/share/X11/xkb");
+  /** The usual location of the xkbcommon keysyms header. */
+  public static final Path DEFAULT_KEYSYMS_HEADER =
+      Path.of("/usr/include/xkbcommon/xkbcommon-keysyms.h");
+
+  private static final Codec<Xkeys> XKEYS = new Codec<>() {
+    @Override
+    public Xkeys parse(CharSource source) throws IOException {
+      return Xkeys.fromSource(source);
+    }
+
+    @Override
+    public void write(Xkeys value, String sourceName, OutputStream destination)
+        throws IOException {
+      XkeysSnapshot.write(value, sourceName, destination);
+    }
+
+    @Override
+    public Optional<Xkeys> read(ByteBuffer buffer, String sourceName) {
+      return XkeysSnapshot.read(buffer, sourceName);
+    }
+  };
+
+  private static final Codec<Mnemonics> MNEMONICS = new Codec<>() {
+    @Override
+    public Mnemonics parse(CharSource source) throws IOException {
+      return Mnemonics.fromSource(source);
+    }
+
+    @Override
+    public void write(Mnemonics value, String sourceName, OutputStream destination)
+        throws IOException {
+      MnemonicsSnapshot.write(value, sourceName, destination);
+    }
+
+    @Override
+    public Optional<Mnemonics> read(ByteBuffer buffer, String sourceName) {
+      return MnemonicsSnapshot.read(buffer, sourceName);
+    }
+  };
+
+  private static Codec<KeyboardMap> symbolsCodec(String variant) {
+    return new Codec<>() {
+      @Override
+      public KeyboardMap parse(CharSource source) throws IOException {
+        return XkbSymbolsIndex.index(source).keyboardMap(variant);
+      }
+
+      @Override
+      public void write(KeyboardMap value, String sourceName, OutputStream destination)
+          throws IOException {
+        KeyboardMapSnapshot.write(value, sourceName, destination);
+      }
+
+      @Override
+      public Optional<KeyboardMap> read(ByteBuffer buffer, String sourceName) {
+        return KeyboardMapSnapshot.read(buffer, sourceName);
+      }
+    };
+  }
+
+  /**
+   * Returns the XKB data at the usual locations ({@link #DEFAULT_XKB_ROOT} and
+   * {@link #DEFAULT_KEYSYMS_HEADER}), cached in the {@code keyboardd} subdirectory of the user
+   * cache directory ({@code $XDG_CACHE_HOME}, or {@code ~/.cache}).
+   *
+   * @return the system XKB data
+   */
+  public static SystemXkb system() {
+    return using(DEFAULT_XKB_ROOT, DEFAULT_KEYSYMS_HEADER, defaultCacheDirectory());
+  }
+
+  /**
+   * Returns the XKB data at the given locations, cached in the given directory.
+   *
+   * @param xkbRoot the XKB root, such as {@code /usr/share/X11/xkb}
+   * @param keysymsHeader the keysyms header, such as
+   *        {@code /usr/include/xkbcommon/xkbcommon-keysyms.h}
+   * @param cacheDirectory the directory of the snapshots, created if needed
+   * @return the XKB data
+   */
+  public static SystemXkb using(Path xkbRoot, Path keysymsHeader, Path cacheDirectory) {
+    return new SystemXkb(xkbRoot, keysymsHeader, SnapshotCache.in(cacheDirectory));
+  }
+
+  private static Path defaultCacheDirectory() {
+    String xdg = System.getenv("XDG_CACHE_HOME");
+    Path base = xdg == null || xdg.isEmpty() || !Path.of(xdg).isAbsolute()
+        ? Path.of(System.getProperty("user.home"), ".cache")
+        : Path.of(xdg);
+    return base.resolve("keyboardd");
+  }
+
+  private final Path xkbRoot;
+  private final Path keysymsHeader;
+  private final SnapshotCache cache;
+
+  private SystemXkb(Path xkbRoot, Path keysymsHeader, SnapshotCache cache) {
+    this.xkbRoot = checkNotNull(xkbRoot);
+    this.keysymsHeader = checkNotNull(keysymsHeader);
+    this.cache = checkNotNull(cache);
+  }
+
+  /**
+   * The X keys of the {@code keycodes/evdev} file of the XKB root.
+   *
+   * @return the X keys
+   * @throws IOException if an I/O error occurs while reading the file
+   */
+  public Xkeys xkeys() throws IOException {
+    return cache.load("xkeys", xkbRoot.resolve("keycodes").resolve("evdev"), XKEYS);
+  }
+
+  /**
+   * The mnemonics of the keysyms header.
+   *
+   * @return the mnemonics
+   * @throws IOException if an I/O error occurs while reading the file
+   */
+  public Mnemonics mnemonics() throws IOException {
+    return cache.load("mnemonics", keysymsHeader, MNEMONICS);
+  }
+
+  /**
+   * The keyboard map of the given variant of the given symbols file, ignoring its include
+   * directives (see {@link XkbSymbolsIndex#keyboardMap(String)}).
+   *
+   * @param file the path of the file relative to the {@code symbols} directory of the XKB root,
+   *        such as {@code us}
+   * @param variant the name of an {@code xkb_symbols} section of that file, such as {@code intl}
+   * @return the keyboard map
+   * @throws IOException if an I/O error occurs while reading the file
+   */
+  public KeyboardMap symbols(String file, String variant) throws IOException {
+    return cache.load("symbols(" + variant + ")", xkbRoot.resolve("symbols").resolve(file),
+        symbolsCodec(variant));
+  }
+
+  /**
+   * The number of structures loaded from snapshots and parsed, and of files rehashed, so far by
+   * this instance.
+   *
+   * @return the statistics
+   */
+  public SnapshotCache.Statistics statistics() {
+    return cache.statistics();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("xkb root", xkbRoot)
+        .add("keysyms header", keysymsHeader).add("cache", cache).toString();
+  }
+}
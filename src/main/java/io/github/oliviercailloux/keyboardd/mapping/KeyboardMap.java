@@ -1,56 +1,558 @@
 package io.github.oliviercailloux.keyboardd.mapping;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Verify.verify;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.base.MoreObjects;
-import com.google.common.collect.ImmutableBiMap;
+import com.google.common.base.Suppliers;
+import com.google.common.base.VerifyException;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.ListMultimap;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
-import io.github.oliviercailloux.jaris.collections.CollectionUtils;
-import java.util.Collection;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.github.oliviercailloux.keyboardd.utils.PersistentHashMap;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
 /**
- * An association of X key names to a list of keysym entries, representing a set of directives found
- * typically in XKB symbol files.
+ * An association of X key names to groups of keysym entries, representing a set of directives
+ * found typically in XKB symbol files. Each X key has one or more groups (numbered from one), each
+ * group has a list of keysym entries (its levels, numbered from one) and possibly a key type. Most
+ * methods consider only the first group, which is the only one in most symbols files.
  * <p>
  * Two such keyboard maps are considered equal iff they have the same X key names, and for each X
- * key name, the corresponding lists of keysym entries are equal.
+ * key name, the same groups, with equal lists of keysym entries and types.
+ * <p>
+ * The entries are stored in columns of primitive ints (one per level of each group of each key,
+ * the mnemonics being referred to by their index in a table of entries), so that looking up a level
+ * of a group of a key reads a few arrays. The X key names, types and mnemonics are interned across
+ * keyboard maps.
+ * <p>
+ * A keyboard map derived from another one (using {@link #toBuilder()} or
+ * {@link #overwrite(KeyboardMap)}) shares the columns of the original map, and records the keys
+ * that differ in a persistent hash map, so that deriving a map that changes k keys costs about
+ * O(k) rather than O(number of keys). The differing keys are merged into new columns once they are
+ * about as numerous as the shared ones.
  */
 public class KeyboardMap {
+  /**
+   * Accumulates groups of keysym entries, then builds a keyboard map. The keys of a new builder
+   * are in the order in which they were first put; the keys of a builder obtained from
+   * {@link KeyboardMap#toBuilder()} are in the order of the original map, followed by the new
+   * ones. Not safe for concurrent use.
+   */
+  public static class Builder {
+    /** {@code null} iff this builder does not start from an existing map. */
+    private final KeyboardMap origin;
+    private final Map<String, Draft> drafts;
+    /** Keys of the origin to remove. */
+    private final Set<String> removed;
+
+    private Builder(KeyboardMap origin) {
+      this.origin = origin;
+      drafts = new LinkedHashMap<>();
+      removed = new HashSet<>();
+    }
+
+    /**
+     * Sets the levels of the given group of the given key, with no type, keeping its other groups.
+     *
+     * @param xKeyName the X key name
+     * @param group the group, from one
+     * @param levels the keysym entries, not empty
+     * @return this builder
+     */
+    public Builder put(String xKeyName, int group, List<? extends KeysymEntry> levels) {
+      return putGroup(xKeyName, group, levels, null);
+    }
+
+    /**
+     * Sets the levels and the type of the given group of the given key, keeping its other groups.
+     *
+     * @param xKeyName the X key name
+     * @param group the group, from one
+     * @param levels the keysym entries, not empty
+     * @param type the name of the key type, such as {@code FOUR_LEVEL}
+     * @return this builder
+     */
+    public Builder put(String xKeyName, int group, List<? extends KeysymEntry> levels,
+        String type) {
+      return putGroup(xKeyName, group, levels, checkNotNull(type));
+    }
+
+    /**
+     * Sets all the groups of the given key to those that it has in the given keyboard map, sharing
+     * them.
+     *
+     * @param xKeyName an X key name of the given map
+     * @param source the keyboard map to copy from
+     * @return this builder
+     */
+    public Builder putKey(String xKeyName, KeyboardMap source) {
+      return putKey(xKeyName, source, xKeyName);
+    }
+
+    private Builder putKey(String xKeyName, KeyboardMap source, String sourceName) {
+      Columns columns = source.columnsOf(sourceName);
+      checkArgument(columns != null, "Unknown key: %s.", sourceName);
+      Columns shared = columns.extract(source.keyOf(columns, sourceName));
+      Draft draft = drafts.get(xKeyName);
+      if (draft == null) {
+        drafts.put(checkNotNull(xKeyName), new Draft(shared));
+      } else {
+        draft.share(shared);
+      }
+      removed.remove(xKeyName);
+      return this;
+    }
+
+    /**
+     * Removes the given key, if present.
+     *
+     * @param xKeyName the X key name
+     * @return this builder
+     */
+    public Builder remove(String xKeyName) {
+      drafts.remove(xKeyName);
+      if (origin != null && origin.columnsOf(xKeyName) != null) {
+        removed.add(xKeyName);
+      }
+      return this;
+    }
+
+    private Builder putGroup(String xKeyName, int group, List<? extends KeysymEntry> levels,
+        String type) {
+      checkNotNull(xKeyName);
+      checkArgument(group >= 1, "Illegal group: %s.", group);
+      checkArgument(!levels.isEmpty());
+      Draft draft = drafts.computeIfAbsent(xKeyName, n -> {
+        Columns existing = origin == null || removed.contains(n) ? null : origin.columnsOf(n);
+        return existing == null ? new Draft(null)
+            : new Draft(existing.extract(origin.keyOf(existing, n)));
+      });
+      removed.remove(xKeyName);
+      draft.set(group, ImmutableList.copyOf(levels), type);
+      return this;
+    }
+
+    public KeyboardMap build() {
+      if (origin == null) {
+        ImmutableList<String> names = ImmutableList.copyOf(drafts.keySet());
+        return new KeyboardMap(Columns.of(names.stream().map(drafts::get)
+            .collect(ImmutableList.toImmutableList())), indexOf(names),
+            PersistentHashMap.empty(), 0);
+      }
+      PersistentHashMap<String, Overlaid> overlay = origin.overlay;
+      long sequence = origin.nextSequence;
+      for (String name : removed) {
+        overlay = origin.baseIndex.containsKey(name)
+            ? overlay.with(name, new Overlaid(Columns.REMOVED, 0))
+            : overlay.without(name);
+      }
+      for (Map.Entry<String, Draft> entry : drafts.entrySet()) {
+        overlay = overlay.with(STRINGS.intern(entry.getKey()),
+            new Overlaid(entry.getValue().columns(), sequence++));
+      }
+      KeyboardMap built = new KeyboardMap(origin.base, origin.baseIndex, overlay, sequence);
+      return overlay.size() > Math.max(32, origin.baseIndex.size()) ? built.compacted() : built;
+    }
+  }
+
+  /**
+   * The groups of a key being built: shared columns of one key, or lists being modified.
+   */
+  private static class Draft {
+    private Columns shared;
+    private List<ImmutableList<KeysymEntry>> groups;
+    private List<String> types;
+
+    private Draft(Columns shared) {
+      this.shared = shared;
+      groups = shared == null ? new ArrayList<>() : null;
+      types = shared == null ? new ArrayList<>() : null;
+    }
+
+    private void share(Columns newShared) {
+      shared = newShared;
+      groups = null;
+      types = null;
+    }
+
+    private void set(int group, ImmutableList<KeysymEntry> levels, String type) {
+      if (shared != null) {
+        groups = new ArrayList<>(shared.groups(0));
+        types = new ArrayList<>(shared.types(0));
+        shared = null;
+      }
+      while (groups.size() < group) {
+        groups.add(ImmutableList.of());
+        types.add(null);
+      }
+      groups.set(group - 1, levels);
+      types.set(group - 1, type);
+    }
+
+    private List<ImmutableList<KeysymEntry>> groups() {
+      return shared == null ? groups : shared.groups(0);
+    }
+
+    private List<String> types() {
+      return shared == null ? types : shared.types(0);
+    }
+
+    private Columns columns() {
+      return shared == null ? Columns.of(ImmutableList.of(this)) : shared;
+    }
+  }
+
+  /**
+   * A key of the overlay: its columns (of one key, or {@link Columns#REMOVED}) and the order in
+   * which it was put.
+   */
+  private static record Overlaid (Columns columns, long sequence) {
+  }
+
+  /** An entry in the table of entries, such as a mnemonic. */
+  private static final int TAG_TABLE = 1;
+  private static final int TAG_UCP = 2;
+  private static final int TAG_CODE = 3;
+  private static final int PAYLOAD_BITS = 30;
+  private static final int PAYLOAD_MASK = (1 << PAYLOAD_BITS) - 1;
+
+  private static final Interner<String> STRINGS = Interners.newWeakInterner();
+  private static final Interner<KeysymEntry> ENTRIES = Interners.newWeakInterner();
+
+  /**
+   * The groups of some keys, identified by their index.
+   */
+  private static final class Columns {
+    /** Marks a removed key in an overlay. */
+    private static final Columns REMOVED =
+        new Columns(new int[] {0}, new int[] {0}, new String[0], new int[0], new KeysymEntry[0]);
+
+    /** Indexed by key, plus a sentinel: the index of the first group of each key. */
+    private final int[] groupStarts;
+    /** Indexed by group, plus a sentinel: the index of the first level of each group. */
+    private final int[] levelStarts;
+    /** Indexed by group: the interned type of each group, or {@code null}. */
+    private final String[] types;
+    /** Indexed by level: each entry, as a tag and a payload. */
+    private final int[] slots;
+    /** The entries that slots with the table tag refer to, possibly shared with other columns. */
+    private final KeysymEntry[] table;
+
+    private Columns(int[] groupStarts, int[] levelStarts, String[] types, int[] slots,
+        KeysymEntry[] table) {
+      this.groupStarts = groupStarts;
+      this.levelStarts = levelStarts;
+      this.types = types;
+      this.slots = slots;
+      this.table = table;
+    }
+
+    private static Columns of(List<Draft> keys) {
+      int nbGroups = 0;
+      int nbLevels = 0;
+      for (Draft key : keys) {
+        nbGroups += key.groups().size();
+        for (ImmutableList<KeysymEntry> levels : key.groups()) {
+          nbLevels += levels.size();
+        }
+      }
+      int[] groupStarts = new int[keys.size() + 1];
+      int[] levelStarts = new int[nbGroups + 1];
+      String[] types = new String[nbGroups];
+      int[] slots = new int[nbLevels];
+      Map<KeysymEntry, Integer> tableIndices = new LinkedHashMap<>();
+      int group = 0;
+      int level = 0;
+      for (int k = 0; k < keys.size(); ++k) {
+        groupStarts[k] = group;
+        List<ImmutableList<KeysymEntry>> groups = keys.get(k).groups();
+        List<String> groupTypes = keys.get(k).types();
+        for (int g = 0; g < groups.size(); ++g) {
+          levelStarts[group] = level;
+          String type = groupTypes.get(g);
+          types[group] = type == null ? null : STRINGS.intern(type);
+          for (KeysymEntry entry : groups.get(g)) {
+            slots[level] = encode(entry, tableIndices);
+            ++level;
+          }
+          ++group;
+        }
+      }
+      groupStarts[keys.size()] = group;
+      levelStarts[group] = level;
+      return new Columns(groupStarts, levelStarts, types, slots,
+          tableIndices.keySet().toArray(new KeysymEntry[0]));
+    }
+
+    private static int encode(KeysymEntry entry, Map<KeysymEntry, Integer> tableIndices) {
+      if (entry instanceof KeysymEntry.Ucp u && (u.ucp() & ~PAYLOAD_MASK) == 0) {
+        return TAG_UCP << PAYLOAD_BITS | u.ucp();
+      }
+      if (entry instanceof KeysymEntry.Code c && (c.keysymCode() & ~PAYLOAD_MASK) == 0) {
+        return TAG_CODE << PAYLOAD_BITS | c.keysymCode();
+      }
+      int index = tableIndices.computeIfAbsent(ENTRIES.intern(entry), e -> tableIndices.size());
+      return TAG_TABLE << PAYLOAD_BITS | index;
+    }
+
+    private int keyCount() {
+      return groupStarts.length - 1;
+    }
+
+    /** Returns columns containing only the given key, sharing the table of these ones. */
+    private Columns extract(int key) {
+      if (keyCount() == 1) {
+        return this;
+      }
+      int firstGroup = groupStarts[key];
+      int endGroup = groupStarts[key + 1];
+      int firstLevel = levelStarts[firstGroup];
+      int[] keyLevelStarts = new int[endGroup - firstGroup + 1];
+      for (int g = firstGroup; g <= endGroup; ++g) {
+        keyLevelStarts[g - firstGroup] = levelStarts[g] - firstLevel;
+      }
+      return new Columns(new int[] {0, endGroup - firstGroup}, keyLevelStarts,
+          Arrays.copyOfRange(types, firstGroup, endGroup),
+          Arrays.copyOfRange(slots, firstLevel, levelStarts[endGroup]), table);
+    }
+
+    private KeysymEntry decode(int slot) {
+      int payload = slot & PAYLOAD_MASK;
+      return switch (slot >>> PAYLOAD_BITS) {
+        case TAG_TABLE -> table[payload];
+        case TAG_UCP -> new KeysymEntry.Ucp(payload);
+        case TAG_CODE -> new KeysymEntry.Code(payload);
+        default -> throw new VerifyException();
+      };
+    }
+
+    private int groupCount(int key) {
+      return groupStarts[key + 1] - groupStarts[key];
+    }
+
+    /**
+     * Returns the index of the given group of the given key, or -1.
+     *
+     * @param group from one
+     */
+    private int groupIndex(int key, int group) {
+      if (group < 1) {
+        return -1;
+      }
+      int index = groupStarts[key] + group - 1;
+      return index < groupStarts[key + 1] ? index : -1;
+    }
+
+    private ImmutableList<KeysymEntry> levels(int groupIndex) {
+      int start = levelStarts[groupIndex];
+      int end = levelStarts[groupIndex + 1];
+      final ImmutableList.Builder<KeysymEntry> levels =
+          ImmutableList.builderWithExpectedSize(end - start);
+      for (int l = start; l < end; ++l) {
+        levels.add(decode(slots[l]));
+      }
+      return levels.build();
+    }
+
+    private ImmutableList<ImmutableList<KeysymEntry>> groups(int key) {
+      return IntStream.range(groupStarts[key], groupStarts[key + 1]).mapToObj(this::levels)
+          .collect(ImmutableList.toImmutableList());
+    }
+
+    /** The types of the groups of the given key, possibly {@code null}. */
+    private List<String> types(int key) {
+      return Arrays.asList(Arrays.copyOfRange(types, groupStarts[key], groupStarts[key + 1]));
+    }
+
+    private boolean groupEquals(int group, Columns c2, int group2) {
+      /* Types are interned. */
+      if (types[group] != c2.types[group2]) {
+        return false;
+      }
+      int nbLevels = levelStarts[group + 1] - levelStarts[group];
+      if (nbLevels != c2.levelStarts[group2 + 1] - c2.levelStarts[group2]) {
+        return false;
+      }
+      for (int l = 0; l < nbLevels; ++l) {
+        int slot = slots[levelStarts[group] + l];
+        int slot2 = c2.slots[c2.levelStarts[group2] + l];
+        boolean equal = slot >>> PAYLOAD_BITS == TAG_TABLE
+            ? decode(slot).equals(c2.decode(slot2))
+            : slot == slot2;
+        if (!equal) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Puts all the entries of the given key in the given builder. */
+    private void index(int key, String name, ReverseIndex.Builder builder) {
+      for (int l = levelStarts[groupStarts[key]]; l < levelStarts[groupStarts[key + 1]]; ++l) {
+        int slot = slots[l];
+        int payload = slot & PAYLOAD_MASK;
+        switch (slot >>> PAYLOAD_BITS) {
+          case TAG_UCP -> builder.putUcp(payload, name);
+          case TAG_CODE -> builder.putCode(payload, name);
+          default -> builder.put(table[payload], name);
+        }
+      }
+    }
+  }
+
   /**
    * Creates a keyboard map from the given association of lists of keysym entries to each X key
-   * name.
+   * name, considered as the first group of each key.
    *
    * @param xKeyNameToKeysymEntries the X key names and corresponding keysym entries to be used in
    *        the keyboard map; may be empty; may not contain empty lists
    * @return a keyboard map
    */
   public static KeyboardMap from(ListMultimap<String, KeysymEntry> xKeyNameToKeysymEntries) {
-    return new KeyboardMap(xKeyNameToKeysymEntries);
+    checkArgument(
+        !xKeyNameToKeysymEntries.asMap().values().contains(ImmutableList.<KeysymEntry>of()));
+    Builder builder = builder();
+    for (String name : xKeyNameToKeysymEntries.keySet()) {
+      builder.put(name, 1, xKeyNameToKeysymEntries.get(name));
+    }
+    return builder.build();
   }
 
-  private final ImmutableListMultimap<String, KeysymEntry> xKeyNameToEntries;
-  private ImmutableSetMultimap<String, String> mnemonicToXKeyNames;
-  private ImmutableSetMultimap<Integer, String> ucpToXKeyNames;
-  private ImmutableSetMultimap<Integer, String> codeToXKeyNames;
+  public static Builder builder() {
+    return new Builder(null);
+  }
 
-  private KeyboardMap(ListMultimap<String, KeysymEntry> xKeyNameToKeysymEntries) {
-    checkArgument(
-        !xKeyNameToKeysymEntries.asMap().values().contains(ImmutableList.<KeysymEntry>of()));
-    this.xKeyNameToEntries = ImmutableListMultimap.copyOf(xKeyNameToKeysymEntries);
-    mnemonicToXKeyNames = null;
-    ucpToXKeyNames = null;
-    codeToXKeyNames = null;
+  private static ImmutableMap<String, Integer> indexOf(List<String> names) {
+    final ImmutableMap.Builder<String, Integer> index =
+        ImmutableMap.builderWithExpectedSize(names.size());
+    for (int k = 0; k < names.size(); ++k) {
+      index.put(STRINGS.intern(names.get(k)), k);
+    }
+    return index.build();
+  }
+
+  /** The keys shared with the maps derived from this one. */
+  private final Columns base;
+  /** The X key names of the base, in order, with their index in the base. */
+  private final ImmutableMap<String, Integer> baseIndex;
+  /** The keys that differ from the base. */
+  private final PersistentHashMap<String, Overlaid> overlay;
+  /** The sequence number of the next key put in a map derived from this one. */
+  private final long nextSequence;
+  private final Supplier<ImmutableSet<String>> names;
+  private final Supplier<ImmutableListMultimap<String, KeysymEntry>> firstGroups;
+  private final Supplier<ReverseIndex> reverse;
+  private final Supplier<HashCode> fingerprint;
+  /** The canonicalized maps, by (weakly referenced) X keys, compared by identity. */
+  private final Supplier<ConcurrentMap<Xkeys, KeyboardMap>> canonicalized;
+
+  private KeyboardMap(Columns base, ImmutableMap<String, Integer> baseIndex,
+      PersistentHashMap<String, Overlaid> overlay, long nextSequence) {
+    this.base = checkNotNull(base);
+    this.baseIndex = checkNotNull(baseIndex);
+    this.overlay = checkNotNull(overlay);
+    this.nextSequence = nextSequence;
+    names = overlay.isEmpty() ? baseIndex::keySet : Suppliers.memoize(this::buildNames);
+    firstGroups = Suppliers.memoize(this::buildFirstGroups);
+    reverse = Suppliers.memoize(() -> ReverseIndex.of(this));
+    fingerprint = Suppliers.memoize(this::computeFingerprint);
+    canonicalized = Suppliers.memoize(() -> new MapMaker().weakKeys().makeMap());
+  }
+
+  /**
+   * Returns the columns that contain the given key (the base or the columns of a key of the
+   * overlay).
+   *
+   * @return {@code null} iff the key is not in this map
+   */
+  private Columns columnsOf(String xKeyName) {
+    if (!overlay.isEmpty()) {
+      Overlaid overlaid = overlay.get(xKeyName);
+      if (overlaid != null) {
+        return overlaid.columns() == Columns.REMOVED ? null : overlaid.columns();
+      }
+    }
+    return baseIndex.containsKey(xKeyName) ? base : null;
+  }
+
+  /** The index of the given key in the given columns, obtained from {@link #columnsOf}. */
+  private int keyOf(Columns columns, String xKeyName) {
+    return columns == base ? baseIndex.get(xKeyName) : 0;
+  }
+
+  private ImmutableSet<String> buildNames() {
+    final ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (String name : baseIndex.keySet()) {
+      Overlaid overlaid = overlay.get(name);
+      if (overlaid == null || overlaid.columns() != Columns.REMOVED) {
+        builder.add(name);
+      }
+    }
+    List<Map.Entry<String, Long>> added = new ArrayList<>();
+    overlay.forEach((name, overlaid) -> {
+      if (!baseIndex.containsKey(name)) {
+        added.add(Map.entry(name, overlaid.sequence()));
+      }
+    });
+    added.sort(Comparator.comparing(Map.Entry::getValue));
+    added.forEach(e -> builder.add(e.getKey()));
+    return builder.build();
+  }
+
+  private ImmutableListMultimap<String, KeysymEntry> buildFirstGroups() {
+    final ImmutableListMultimap.Builder<String, KeysymEntry> builder =
+        ImmutableListMultimap.builder();
+    for (String name : names()) {
+      builder.putAll(name, entries(name));
+    }
+    return builder.build();
+  }
+
+  /** Returns an equal map that has no overlay. */
+  private KeyboardMap compacted() {
+    ImmutableList<String> allNames = names().asList();
+    ImmutableList<Draft> keys = allNames.stream().map(n -> {
+      Columns columns = columnsOf(n);
+      return new Draft(columns.extract(keyOf(columns, n)));
+    }).collect(ImmutableList.toImmutableList());
+    return new KeyboardMap(Columns.of(keys), indexOf(allNames), PersistentHashMap.empty(),
+        nextSequence);
+  }
+
+  /**
+   * Returns a builder that starts with the keys of this map. Building a map after putting k keys
+   * in the returned builder takes a time about proportional to k.
+   *
+   * @return a new builder
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
   }
 
   /**
@@ -59,62 +561,117 @@ public class KeyboardMap {
    * @return empty iff this keyboard map is empty
    */
   public ImmutableSet<String> names() {
-    return xKeyNameToEntries.keySet();
+    return names.get();
   }
 
   /**
-   * The keysym entries associated to the given X key name.
+   * The keysym entries of the first group of the given X key name.
    *
    * @param xKeyName the X key name
-   * @return an empty list iff the given X key name is not found in this keyboard map
+   * @return an empty list iff the given X key name is not found in this keyboard map or has no
+   *         entries in its first group
    */
   public ImmutableList<KeysymEntry> entries(String xKeyName) {
-    return xKeyNameToEntries.get(xKeyName);
+    return entries(xKeyName, 1);
+  }
+
+  /**
+   * The keysym entries of the given group of the given X key name.
+   *
+   * @param xKeyName the X key name
+   * @param group the group, from one
+   * @return an empty list iff the given X key name is not found in this keyboard map or has no
+   *         entries in that group
+   */
+  public ImmutableList<KeysymEntry> entries(String xKeyName, int group) {
+    Columns columns = columnsOf(xKeyName);
+    if (columns == null) {
+      return ImmutableList.of();
+    }
+    int index = columns.groupIndex(keyOf(columns, xKeyName), group);
+    return index == -1 ? ImmutableList.of() : columns.levels(index);
+  }
+
+  /**
+   * The keysym entry at the given level of the given group of the given X key name.
+   *
+   * @param xKeyName the X key name
+   * @param group the group, from one
+   * @param level the level, from one
+   * @return empty iff the given X key name is not found in this keyboard map or has no entry at
+   *         that level of that group
+   */
+  public Optional<KeysymEntry> entry(String xKeyName, int group, int level) {
+    Columns columns = columnsOf(xKeyName);
+    if (columns == null || level < 1) {
+      return Optional.empty();
+    }
+    int index = columns.groupIndex(keyOf(columns, xKeyName), group);
+    if (index == -1) {
+      return Optional.empty();
+    }
+    int slot = columns.levelStarts[index] + level - 1;
+    return slot < columns.levelStarts[index + 1] ? Optional.of(columns.decode(columns.slots[slot]))
+        : Optional.empty();
+  }
+
+  /**
+   * The number of groups of the given X key name, including the empty groups that precede its
+   * last non empty one.
+   *
+   * @param xKeyName the X key name
+   * @return zero iff the given X key name is not found in this keyboard map
+   */
+  public int groupCount(String xKeyName) {
+    Columns columns = columnsOf(xKeyName);
+    return columns == null ? 0 : columns.groupCount(keyOf(columns, xKeyName));
+  }
+
+  /**
+   * The key type of the given group of the given X key name, if it has been specified.
+   *
+   * @param xKeyName the X key name
+   * @param group the group, from one
+   * @return empty iff the given X key name is not found in this keyboard map, has no such group,
+   *         or no type has been specified for that group
+   */
+  public Optional<String> type(String xKeyName, int group) {
+    Columns columns = columnsOf(xKeyName);
+    if (columns == null) {
+      return Optional.empty();
+    }
+    int index = columns.groupIndex(keyOf(columns, xKeyName), group);
+    return index == -1 ? Optional.empty() : Optional.ofNullable(columns.types[index]);
   }
 
   /**
-   * The association of X key names to keysym entries found in this keyboard map.
+   * The association of X key names to the keysym entries of their first group found in this
+   * keyboard map (built on first request).
    *
    * @return a map that is empty iff this keyboard map is empty; containing no empty lists
    */
   public ImmutableListMultimap<String, KeysymEntry> nameToEntries() {
-    return xKeyNameToEntries;
+    return firstGroups.get();
   }
 
-  private void lazyInitReverse() {
-    verify((mnemonicToXKeyNames == null) == (ucpToXKeyNames == null));
-    verify((mnemonicToXKeyNames == null) == (codeToXKeyNames == null));
-
-    if (mnemonicToXKeyNames == null) {
-      ImmutableListMultimap<KeysymEntry, String> fromAllEntries = xKeyNameToEntries.inverse();
-      ImmutableMap<KeysymEntry, Collection<String>> fromAllEntriesMap = fromAllEntries.asMap();
-      {
-        Map<KeysymEntry, Collection<String>> fromMnemonicEntriesMap =
-            Maps.filterKeys(fromAllEntriesMap, e -> e instanceof KeysymEntry.Mnemonic);
-        ImmutableMap<String, Collection<String>> fromMnemonicMap = CollectionUtils.transformKeys(
-            fromMnemonicEntriesMap, e -> ((KeysymEntry.Mnemonic) e).keysymMnemonic());
-        mnemonicToXKeyNames = fromMnemonicMap.entrySet().stream().collect(ImmutableSetMultimap
-            .flatteningToImmutableSetMultimap(e -> e.getKey(), e -> e.getValue().stream()));
-      }
-      {
-        Map<KeysymEntry, Collection<String>> fromUcpEntriesMap =
-            Maps.filterKeys(fromAllEntriesMap, e -> e instanceof KeysymEntry.Ucp);
-        ImmutableMap<Integer, Collection<String>> fromUcpMap =
-            CollectionUtils.transformKeys(fromUcpEntriesMap, e -> ((KeysymEntry.Ucp) e).ucp());
-        ucpToXKeyNames = fromUcpMap.entrySet().stream().collect(ImmutableSetMultimap
-            .flatteningToImmutableSetMultimap(e -> e.getKey(), e -> e.getValue().stream()));
-      }
-      {
-        Map<KeysymEntry, Collection<String>> fromCodeEntriesMap =
-            Maps.filterKeys(fromAllEntriesMap, e -> e instanceof KeysymEntry.Code);
-        ImmutableMap<Integer, Collection<String>> fromCodeMap = CollectionUtils
-            .transformKeys(fromCodeEntriesMap, e -> ((KeysymEntry.Code) e).keysymCode());
-        codeToXKeyNames = fromCodeMap.entrySet().stream().collect(ImmutableSetMultimap
-            .flatteningToImmutableSetMultimap(e -> e.getKey(), e -> e.getValue().stream()));
-      }
+  /** Puts all the entries of this keyboard map in the given builder. */
+  void index(ReverseIndex.Builder builder) {
+    for (String name : names()) {
+      Columns columns = columnsOf(name);
+      columns.index(keyOf(columns, name), name, builder);
     }
   }
 
+  /**
+   * The index of the X key names by keysym mnemonic, UCP and code found in this keyboard map. It is
+   * built on first request, and safe for concurrent use.
+   *
+   * @return the reverse index
+   */
+  public ReverseIndex reverseIndex() {
+    return reverse.get();
+  }
+
   /**
    * The X key names that are associated to the given keysym mnemonic.
    *
@@ -122,8 +679,7 @@ public class KeyboardMap {
    * @return empty iff the given keysym mnemonic is not found in this keyboard map
    */
   public ImmutableSet<String> namesFromMnemonic(String keysymMnemonic) {
-    lazyInitReverse();
-    return mnemonicToXKeyNames.get(keysymMnemonic);
+    return reverse.get().namesFromMnemonic(keysymMnemonic);
   }
 
   /**
@@ -133,8 +689,7 @@ public class KeyboardMap {
    * @return empty iff the given Unicode code point is not found in this keyboard map
    */
   public ImmutableSet<String> namesFromUcp(int ucp) {
-    lazyInitReverse();
-    return ucpToXKeyNames.get(ucp);
+    return reverse.get().namesFromUcp(ucp);
   }
 
   /**
@@ -144,70 +699,157 @@ public class KeyboardMap {
    * @return empty iff the given keysym code is not found in this keyboard map
    */
   public ImmutableSet<String> namesFromCode(int keysymCode) {
-    lazyInitReverse();
-    return codeToXKeyNames.get(keysymCode);
+    return reverse.get().namesFromCode(keysymCode);
   }
 
   /**
    * Returns a keyboard map that replaces the aliases by the corresponding canonical name, as given
-   * in argument.
+   * by the given X keys. Equivalent to {@link #canonicalize(Map)} with
+   * {@link Xkeys#canonicalByAlias()}.
+   * <p>
+   * As X keys are immutable, the result is memoized for the given instance (weakly referenced, thus
+   * without preventing it from being garbage collected), so that canonicalizing this keyboard map
+   * repeatedly against the same X keys (such as {@link Xkeys#latest()}) does the work once.
+   *
+   * @param xkeys the X keys
+   * @return a keyboard map using only the canonical X key names.
+   * @throws IllegalStateException if several X key names of this map have the same canonical name
+   */
+  public KeyboardMap canonicalize(Xkeys xkeys) {
+    return canonicalized.get().computeIfAbsent(xkeys,
+        x -> buildCanonicalized(x.canonicalByAlias()));
+  }
+
+  /**
+   * Returns a keyboard map that replaces the aliases by the corresponding canonical name, as given
+   * in argument. This keyboard map itself is returned if none of its X key names is an alias.
    *
    * @param canonicalXKeyNameByAlias a map from aliases to canonical names
    * @return a keyboard map using only the canonical X key names.
+   * @throws IllegalStateException if several X key names of this map have the same canonical name
    */
   public KeyboardMap canonicalize(Map<String, String> canonicalXKeyNameByAlias) {
-    final ImmutableMap.Builder<String, String> newNameFromOriginalBuilder =
-        new ImmutableMap.Builder<>();
+    return buildCanonicalized(canonicalXKeyNameByAlias);
+  }
 
-    ImmutableSet<String> originalNames = xKeyNameToEntries.keySet();
+  private KeyboardMap buildCanonicalized(Map<String, String> canonicalXKeyNameByAlias) {
+    ImmutableSet<String> originalNames = names();
+    Map<String, String> originalFromNewName = new HashMap<>(originalNames.size() * 2);
+    boolean renamed = false;
+    boolean duplicated = false;
     for (String originalName : originalNames) {
       String newName = canonicalXKeyNameByAlias.getOrDefault(originalName, originalName);
-      newNameFromOriginalBuilder.put(originalName, newName);
-    }
-    ImmutableMap<String, String> newNameFromOriginal = newNameFromOriginalBuilder.build();
-    ImmutableSetMultimap<String, String> originalsFromNewName =
-        newNameFromOriginal.asMultimap().inverse();
-    ImmutableSet<String> duplicatedNewNames =
-        originalsFromNewName.keySet().stream().filter(n -> originalsFromNewName.get(n).size() >= 2)
-            .collect(ImmutableSet.toImmutableSet());
-    // originalsFromNewName.keySet().stream().filter(n -> originalsFromNewName.get(n).size() >= 2)
-    // .collect(ImmutableSetMultimap.toImmutableSetMultimap(n -> originalsFromNewName));
-    // checkState(duplicatedNewNames.isEmpty(), "These ");
-    if (!duplicatedNewNames.isEmpty()) {
+      renamed |= !newName.equals(originalName);
+      duplicated |= originalFromNewName.putIfAbsent(newName, originalName) != null;
+    }
+    if (duplicated) {
       final ImmutableSetMultimap.Builder<String, String> duplicatedMapBuilder =
           new ImmutableSetMultimap.Builder<>();
-      for (String duplicatedNewName : duplicatedNewNames) {
-        ImmutableSet<String> originals = originalsFromNewName.get(duplicatedNewName);
-        duplicatedMapBuilder.putAll(duplicatedNewName, originals);
+      for (String originalName : originalNames) {
+        String newName = canonicalXKeyNameByAlias.getOrDefault(originalName, originalName);
+        duplicatedMapBuilder.put(newName, originalName);
       }
-      ImmutableSetMultimap<String, String> duplicatedMap = duplicatedMapBuilder.build();
+      ImmutableSetMultimap<String, String> originalsFromNewName = duplicatedMapBuilder.build();
+      ImmutableSetMultimap<String, String> duplicatedMap = originalsFromNewName.keySet().stream()
+          .filter(n -> originalsFromNewName.get(n).size() >= 2)
+          .collect(ImmutableSetMultimap.flatteningToImmutableSetMultimap(n -> n,
+              n -> originalsFromNewName.get(n).stream()));
       throw new IllegalStateException(
           "These new names are pointed to from several original names: %s."
               .formatted(duplicatedMap));
     }
-    // ImmutableBiMap<String, String> originalFromNewName =
-    ImmutableBiMap.copyOf(newNameFromOriginal).inverse();
+    if (!renamed) {
+      return this;
+    }
 
-    ImmutableListMultimap.Builder<String, KeysymEntry> withNewNames =
-        ImmutableListMultimap.builder();
+    Builder withNewNames = builder();
     for (String original : originalNames) {
-      withNewNames.putAll(newNameFromOriginal.get(original), xKeyNameToEntries.get(original));
+      withNewNames.putKey(canonicalXKeyNameByAlias.getOrDefault(original, original), this,
+          original);
     }
-    ImmutableListMultimap<String, KeysymEntry> withNewNamesBuilt = withNewNames.build();
-    return KeyboardMap.from(withNewNamesBuilt);
+    return withNewNames.build();
   }
 
+  /**
+   * Returns a keyboard map that contains the keys of the given map, and the keys of this map that
+   * are not in the given one (thus, in case of conflict, the given map wins, with all its groups).
+   * The result shares the keys of this map, and takes a time about proportional to the number of
+   * keys of the given map.
+   *
+   * @param other the keyboard map whose keys are kept
+   * @return a keyboard map
+   */
   public KeyboardMap overwrite(KeyboardMap other) {
-    ImmutableListMultimap.Builder<String, KeysymEntry> builder = ImmutableListMultimap.builder();
+    Builder builder = toBuilder();
+    for (String name : other.names()) {
+      builder.putKey(name, other);
+    }
+    return builder.build();
+  }
 
-    ImmutableSet<String> onlyInThis = Sets.difference(names(), other.names()).immutableCopy();
-    builder.putAll(
-        xKeyNameToEntries.entries().stream().filter(e -> onlyInThis.contains(e.getKey())).collect(
-            ImmutableListMultimap.toImmutableListMultimap(e -> e.getKey(), e -> e.getValue())));
+  /**
+   * Returns a keyboard map that contains the keys of this map and the keys of the given map that
+   * are not in this one (thus, in case of conflict, this map wins, contrary to
+   * {@link #overwrite(KeyboardMap)}).
+   *
+   * @param other the keyboard map whose new keys are added
+   * @return a keyboard map
+   */
+  public KeyboardMap augment(KeyboardMap other) {
+    return other.overwrite(this);
+  }
 
-    builder.putAll(other.xKeyNameToEntries);
+  /**
+   * Returns a 128 bits fingerprint of the content of this keyboard map, computed on first request.
+   * Equal keyboard maps have equal fingerprints; the fingerprint depends neither on the order of
+   * the keys nor on the run or the JVM, so that it may serve as a persistent cache key. It is
+   * computed with {@link Hashing#murmur3_128()}.
+   *
+   * @return the fingerprint
+   */
+  public HashCode fingerprint() {
+    return fingerprint.get();
+  }
 
-    return KeyboardMap.from(builder.build());
+  private HashCode computeFingerprint() {
+    HashFunction function = Hashing.murmur3_128();
+    List<HashCode> keyHashes = new ArrayList<>();
+    for (String name : names()) {
+      Columns columns = columnsOf(name);
+      int key = keyOf(columns, name);
+      Hasher hasher = function.newHasher();
+      putString(hasher, name);
+      hasher.putInt(columns.groupCount(key));
+      for (int g = columns.groupStarts[key]; g < columns.groupStarts[key + 1]; ++g) {
+        String type = columns.types[g];
+        hasher.putBoolean(type != null);
+        if (type != null) {
+          putString(hasher, type);
+        }
+        ImmutableList<KeysymEntry> levels = columns.levels(g);
+        hasher.putInt(levels.size());
+        for (KeysymEntry entry : levels) {
+          if (entry instanceof KeysymEntry.Mnemonic m) {
+            hasher.putByte((byte) 0);
+            putString(hasher, m.keysymMnemonic());
+          } else if (entry instanceof KeysymEntry.Ucp u) {
+            hasher.putByte((byte) 1).putInt(u.ucp());
+          } else {
+            hasher.putByte((byte) 2).putInt(((KeysymEntry.Code) entry).keysymCode());
+          }
+        }
+      }
+      keyHashes.add(hasher.hash());
+    }
+    Hasher hasher = function.newHasher().putInt(keyHashes.size());
+    if (!keyHashes.isEmpty()) {
+      hasher.putBytes(Hashing.combineUnordered(keyHashes).asBytes());
+    }
+    return hasher.hash();
+  }
+
+  private static void putString(Hasher hasher, String string) {
+    hasher.putInt(string.length()).putString(string, StandardCharsets.UTF_8);
   }
 
   @Override
@@ -216,16 +858,44 @@ public class KeyboardMap {
       return false;
     }
     final KeyboardMap t2 = (KeyboardMap) o2;
-    return xKeyNameToEntries.equals(t2.xKeyNameToEntries);
+    if (this == t2) {
+      return true;
+    }
+    if (!fingerprint().equals(t2.fingerprint()) || !names().equals(t2.names())) {
+      return false;
+    }
+    for (String name : names()) {
+      Columns columns = columnsOf(name);
+      Columns columns2 = t2.columnsOf(name);
+      int key = keyOf(columns, name);
+      int key2 = t2.keyOf(columns2, name);
+      int nbGroups = columns.groupCount(key);
+      if (nbGroups != columns2.groupCount(key2)) {
+        return false;
+      }
+      for (int g = 0; g < nbGroups; ++g) {
+        if (!columns.groupEquals(columns.groupStarts[key] + g, columns2,
+            columns2.groupStarts[key2] + g)) {
+          return false;
+        }
+      }
+    }
+    return true;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(xKeyNameToEntries);
+    return fingerprint().asInt();
   }
 
   @Override
   public String toString() {
-    return MoreObjects.toStringHelper(this).add("xKeyNameToEntries", xKeyNameToEntries).toString();
+    final ImmutableMap.Builder<String, ImmutableList<ImmutableList<KeysymEntry>>> groups =
+        ImmutableMap.builder();
+    for (String name : names()) {
+      Columns columns = columnsOf(name);
+      groups.put(name, columns.groups(keyOf(columns, name)));
+    }
+    return MoreObjects.toStringHelper(this).add("groups", groups.build()).toString();
   }
 }
@@ -0,0 +1,122 @@
+package io.github.oliviercailloux.keyboardd.mapping;
+
+import com.google.common.collect.ImmutableList;
+import io.github.oliviercailloux.keyboardd.utils.SnapshotUtils;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A binary snapshot of a keyboard map, so that it can be loaded again without parsing the symbols
+ * file it has been read from (see {@link io.github.oliviercailloux.keyboardd.SystemXkb}).
+ * <p>
+ * The snapshot records the name of the text it has been computed from, so that a snapshot of
+ * another text is not used. The keys are written in order, each with its groups (possibly empty),
+ * their types and their entries.
+ */
+public class KeyboardMapSnapshot {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyboardMapSnapshot.class);
+
+  private static final byte MNEMONIC = 0;
+  private static final byte UCP = 1;
+  private static final byte CODE = 2;
+
+  /**
+   * Writes a snapshot of the given keyboard map.
+   *
+   * @param map the keyboard map to write
+   * @param sourceName the name that identifies the text the keyboard map has been read from
+   * @param destination where to write; not closed
+   * @throws IOException if an I/O error occurs
+   */
+  public static void write(KeyboardMap map, String sourceName, OutputStream destination)
+      throws IOException {
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(destination));
+    SnapshotUtils.putHeader(output, sourceName);
+    output.writeInt(map.names().size());
+    for (String name : map.names()) {
+      SnapshotUtils.putString(output, name);
+      int nbGroups = map.groupCount(name);
+      output.writeInt(nbGroups);
+      for (int group = 1; group <= nbGroups; ++group) {
+        Optional<String> type = map.type(name, group);
+        output.writeBoolean(type.isPresent());
+        if (type.isPresent()) {
+          SnapshotUtils.putString(output, type.orElseThrow());
+        }
+        ImmutableList<KeysymEntry> entries = map.entries(name, group);
+        output.writeInt(entries.size());
+        for (KeysymEntry entry : entries) {
+          if (entry instanceof KeysymEntry.Mnemonic m) {
+            output.writeByte(MNEMONIC);
+            SnapshotUtils.putString(output, m.keysymMnemonic());
+          } else if (entry instanceof KeysymEntry.Ucp u) {
+            output.writeByte(UCP);
+            output.writeInt(u.ucp());
+          } else {
+            output.writeByte(CODE);
+            output.writeInt(((KeysymEntry.Code) entry).keysymCode());
+          }
+        }
+      }
+    }
+    output.flush();
+  }
+
+  /**
+   * Reads a snapshot.
+   *
+   * @param buffer the snapshot
+   * @param sourceName the name of the text that the snapshot must correspond to
+   * @return empty iff the snapshot does not correspond to the given source or is invalid
+   */
+  public static Optional<KeyboardMap> read(ByteBuffer buffer, String sourceName) {
+    try {
+      if (!SnapshotUtils.readHeader(buffer, sourceName)) {
+        LOGGER.debug("Snapshot does not correspond to {}, will parse.", sourceName);
+        return Optional.empty();
+      }
+      KeyboardMap.Builder builder = KeyboardMap.builder();
+      int nbNames = buffer.getInt();
+      for (int i = 0; i < nbNames; ++i) {
+        String name = SnapshotUtils.getString(buffer);
+        int nbGroups = buffer.getInt();
+        for (int group = 1; group <= nbGroups; ++group) {
+          String type = buffer.get() != 0 ? SnapshotUtils.getString(buffer) : null;
+          int nbEntries = buffer.getInt();
+          final ImmutableList.Builder<KeysymEntry> entries = ImmutableList.builder();
+          for (int j = 0; j < nbEntries; ++j) {
+            byte kind = buffer.get();
+            entries.add(switch (kind) {
+              case MNEMONIC -> new KeysymEntry.Mnemonic(SnapshotUtils.getString(buffer));
+              case UCP -> new KeysymEntry.Ucp(buffer.getInt());
+              case CODE -> new KeysymEntry.Code(buffer.getInt());
+              default -> throw new IllegalArgumentException("Unknown entry kind: " + kind + ".");
+            });
+          }
+          if (nbEntries == 0) {
+            continue;
+          }
+          if (type == null) {
+            builder.put(name, group, entries.build());
+          } else {
+            builder.put(name, group, entries.build(), type);
+          }
+        }
+      }
+      return Optional.of(builder.build());
+    } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+      LOGGER.warn("Invalid snapshot, will parse.", e);
+      return Optional.empty();
+    }
+  }
+
+  private KeyboardMapSnapshot() {}
+}
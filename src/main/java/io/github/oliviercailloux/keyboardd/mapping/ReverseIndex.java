@@ -0,0 +1,232 @@
+package io.github.oliviercailloux.keyboardd.mapping;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Associates keysym mnemonics, Unicode code points and keysym codes to the X key names that they
+ * are associated to in a keyboard map. Lookups by UCP and by code use open addressing tables keyed
+ * by primitive ints and take constant time.
+ * <p>
+ * Instances are immutable, thus safe for concurrent use. For each key, the names are iterated in
+ * the order in which they were put in the builder.
+ */
+public class ReverseIndex {
+  /**
+   * Accumulates associations, then builds a reverse index. Not safe for concurrent use.
+   */
+  public static class Builder {
+    private final Map<String, ImmutableSet.Builder<String>> byMnemonic;
+    private final IntKeyedBuilder byUcp;
+    private final IntKeyedBuilder byCode;
+
+    private Builder() {
+      byMnemonic = new LinkedHashMap<>();
+      byUcp = new IntKeyedBuilder();
+      byCode = new IntKeyedBuilder();
+    }
+
+    public Builder putMnemonic(String keysymMnemonic, String xKeyName) {
+      byMnemonic.computeIfAbsent(keysymMnemonic, m -> ImmutableSet.builder())
+          .add(checkNotNull(xKeyName));
+      return this;
+    }
+
+    public Builder putUcp(int ucp, String xKeyName) {
+      byUcp.put(ucp, checkNotNull(xKeyName));
+      return this;
+    }
+
+    public Builder putCode(int keysymCode, String xKeyName) {
+      byCode.put(keysymCode, checkNotNull(xKeyName));
+      return this;
+    }
+
+    /**
+     * Associates the given entry to the given X key name: its mnemonic, its UCP, or its code.
+     *
+     * @param entry the entry
+     * @param xKeyName the name
+     * @return this builder
+     */
+    public Builder put(KeysymEntry entry, String xKeyName) {
+      if (entry instanceof KeysymEntry.Mnemonic m) {
+        return putMnemonic(m.keysymMnemonic(), xKeyName);
+      }
+      if (entry instanceof KeysymEntry.Ucp u) {
+        return putUcp(u.ucp(), xKeyName);
+      }
+      return putCode(((KeysymEntry.Code) entry).keysymCode(), xKeyName);
+    }
+
+    public ReverseIndex build() {
+      ImmutableMap<String, ImmutableSet<String>> mnemonics = byMnemonic.entrySet().stream()
+          .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey, e -> e.getValue().build()));
+      return new ReverseIndex(mnemonics, byUcp.build(), byCode.build());
+    }
+  }
+
+  /** Accumulates (key, name) pairs in insertion order, in growable primitive arrays. */
+  private static class IntKeyedBuilder {
+    private int[] keys = new int[16];
+    private String[] names = new String[16];
+    private int size = 0;
+
+    public void put(int key, String name) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        names = Arrays.copyOf(names, size * 2);
+      }
+      keys[size] = key;
+      names[size] = name;
+      ++size;
+    }
+
+    /** Groups the names by key in one sort, preserving the insertion order within a key. */
+    public IntKeyed build() {
+      long[] packed = new long[size];
+      for (int i = 0; i < size; ++i) {
+        packed[i] = (long) keys[i] << 32 | i;
+      }
+      Arrays.sort(packed);
+      int nbDistinct = 0;
+      for (int i = 0; i < size; ++i) {
+        if (i == 0 || (int) (packed[i] >> 32) != (int) (packed[i - 1] >> 32)) {
+          ++nbDistinct;
+        }
+      }
+      IntKeyed table = new IntKeyed(nbDistinct);
+      int groupStart = 0;
+      for (int i = 1; i <= size; ++i) {
+        int key = (int) (packed[groupStart] >> 32);
+        if (i == size || (int) (packed[i] >> 32) != key) {
+          ImmutableSet.Builder<String> group = ImmutableSet.builder();
+          for (int j = groupStart; j < i; ++j) {
+            group.add(names[(int) packed[j]]);
+          }
+          table.add(key, group.build());
+          groupStart = i;
+        }
+      }
+      return table;
+    }
+  }
+
+  /** An open addressing table from int keys to sets of names; empty slots have null values. */
+  private static class IntKeyed {
+    private final int[] keys;
+    private final ImmutableSet<String>[] values;
+
+    @SuppressWarnings("unchecked")
+    private IntKeyed(int nbKeys) {
+      /* The smallest power of two that is at least twice the number of keys. */
+      int capacity = Integer.highestOneBit(Math.max(1, 2 * nbKeys - 1)) << 1;
+      keys = new int[capacity];
+      values = (ImmutableSet<String>[]) new ImmutableSet<?>[capacity];
+    }
+
+    private static int spread(int key) {
+      int hash = key * 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+    }
+
+    private void add(int key, ImmutableSet<String> names) {
+      int slot = spread(key) & (keys.length - 1);
+      while (values[slot] != null) {
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      keys[slot] = key;
+      values[slot] = names;
+    }
+
+    public ImmutableSet<String> get(int key) {
+      int slot = spread(key) & (keys.length - 1);
+      while (values[slot] != null) {
+        if (keys[slot] == key) {
+          return values[slot];
+        }
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      return ImmutableSet.of();
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the reverse index of the given keyboard map, built in a single pass over the entries of
+   * all its groups.
+   *
+   * @param map the keyboard map
+   * @return the reverse index
+   */
+  public static ReverseIndex of(KeyboardMap map) {
+    Builder builder = builder();
+    map.index(builder);
+    return builder.build();
+  }
+
+  private final ImmutableMap<String, ImmutableSet<String>> byMnemonic;
+  private final IntKeyed byUcp;
+  private final IntKeyed byCode;
+
+  private ReverseIndex(ImmutableMap<String, ImmutableSet<String>> byMnemonic, IntKeyed byUcp,
+      IntKeyed byCode) {
+    this.byMnemonic = checkNotNull(byMnemonic);
+    this.byUcp = checkNotNull(byUcp);
+    this.byCode = checkNotNull(byCode);
+  }
+
+  /**
+   * The X key names that are associated to the given keysym mnemonic.
+   *
+   * @param keysymMnemonic a keysym mnemonic
+   * @return empty iff the given keysym mnemonic is not found in this index
+   */
+  public ImmutableSet<String> namesFromMnemonic(String keysymMnemonic) {
+    return byMnemonic.getOrDefault(keysymMnemonic, ImmutableSet.of());
+  }
+
+  /**
+   * The X key names that are associated to the given Unicode code point.
+   *
+   * @param ucp a Unicode code point
+   * @return empty iff the given Unicode code point is not found in this index
+   */
+  public ImmutableSet<String> namesFromUcp(int ucp) {
+    return byUcp.get(ucp);
+  }
+
+  /**
+   * The X key names that are associated to the given keysym code.
+   *
+   * @param keysymCode a keysym code
+   * @return empty iff the given keysym code is not found in this index
+   */
+  public ImmutableSet<String> namesFromCode(int keysymCode) {
+    return byCode.get(keysymCode);
+  }
+
+  /**
+   * The X key names that are associated to the mnemonic, UCP or code of the given entry.
+   *
+   * @param entry a keysym entry
+   * @return empty iff the given entry is not found in this index
+   */
+  public ImmutableSet<String> names(KeysymEntry entry) {
+    if (entry instanceof KeysymEntry.Mnemonic m) {
+      return namesFromMnemonic(m.keysymMnemonic());
+    }
+    if (entry instanceof KeysymEntry.Ucp u) {
+      return namesFromUcp(u.ucp());
+    }
+    return namesFromCode(((KeysymEntry.Code) entry).keysymCode());
+  }
+}
@@ -0,0 +1,220 @@
+package io.github.oliviercailloux.keyboardd.mapping;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves the include directives of the sections of a set of symbols files, giving for each
+ * section the keyboard map obtained by merging, in their order of appearance, the included maps and
+ * the keys of the section itself. Thus, keys defined after an include directive override the
+ * included ones, and an include directive overrides (or augments) the keys defined before it.
+ * <p>
+ * An include expression such as {@code pc+us(intl)|inet(evdev)} designates sections as
+ * {@code file(variant)} or {@code file} (designating the default section of the file), separated by
+ * {@code +} (the designated map overrides the keys already merged) or {@code |} (the designated map
+ * only adds keys that are not already merged). The first component overrides. A component
+ * suffixed with {@code :N}, such as {@code ru:2}, designates the first group of its map, put into
+ * group N of the merged keys, whose other groups are kept; the suffix {@code :1} thus designates
+ * the first group only.
+ * <p>
+ * Each section is resolved at most once: resolved maps and resolution failures are memoized, so
+ * that a shared base such as {@code pc} or {@code latin} is merged once however many sections
+ * include it. Include cycles are detected and reported as failures. Not safe for concurrent use.
+ */
+class XkbIncludeResolver {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(XkbIncludeResolver.class);
+
+  private static final Pattern P_COMPONENT = Pattern.compile(
+      "(?<mode>^|[+|])(?<file>[^+|():]+)(\\((?<variant>[^+|()]+)\\))?(:(?<group>\\d+))?");
+
+  /**
+   * A component of an include expression.
+   *
+   * @param augment {@code true} iff the designated map only adds keys
+   * @param file the file
+   * @param variant the section, or empty for the default section of the file
+   * @param group the group that the first group of the designated map goes to, or empty if the
+   *        designated map is taken as a whole
+   */
+  static record Component (boolean augment, String file, Optional<String> variant,
+      Optional<Integer> group) {
+    Component {
+      checkNotNull(file);
+      checkNotNull(variant);
+      checkArgument(group.orElse(1) >= 1);
+    }
+  }
+
+  /**
+   * Splits an include expression into its components.
+   *
+   * @param expression an include expression
+   * @return the components, not empty
+   * @throws IllegalArgumentException if the expression is not well formed
+   */
+  static ImmutableList<Component> components(String expression) {
+    final ImmutableList.Builder<Component> components = new ImmutableList.Builder<>();
+    Matcher matcher = P_COMPONENT.matcher(expression);
+    int end = 0;
+    while (end < expression.length()) {
+      checkArgument(matcher.find(end) && matcher.start() == end, "Illegal include: ‘%s’.",
+          expression);
+      Optional<Integer> group =
+          Optional.ofNullable(matcher.group("group")).map(Integer::parseInt);
+      checkArgument(group.orElse(1) >= 1, "Illegal group in include: ‘%s’.", expression);
+      components.add(new Component(matcher.group("mode").equals("|"), matcher.group("file"),
+          Optional.ofNullable(matcher.group("variant")), group));
+      end = matcher.end();
+    }
+    ImmutableList<Component> built = components.build();
+    checkArgument(!built.isEmpty(), "Empty include.");
+    return built;
+  }
+
+  /**
+   * Merges, in order, the given maps.
+   *
+   * @param merged the map that the first component overrides
+   * @param components the components
+   * @param maps the map designated by each component, indexed as the components
+   * @return the merged map
+   */
+  static KeyboardMap merge(KeyboardMap merged, ImmutableList<Component> components,
+      ImmutableList<KeyboardMap> maps) {
+    checkArgument(components.size() == maps.size());
+    KeyboardMap result = merged;
+    for (int i = 0; i < components.size(); ++i) {
+      Component component = components.get(i);
+      KeyboardMap map = maps.get(i);
+      if (component.group().isPresent()) {
+        result = mergeGroup(result, component.augment(), map, component.group().orElseThrow());
+      } else {
+        result = component.augment() ? result.augment(map) : result.overwrite(map);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Puts the first group of each key of the given map into the given group of the merged map,
+   * keeping the other groups; when augmenting, only where the merged map has no such group.
+   */
+  private static KeyboardMap mergeGroup(KeyboardMap merged, boolean augment, KeyboardMap map,
+      int group) {
+    KeyboardMap.Builder builder = merged.toBuilder();
+    for (String name : map.names()) {
+      ImmutableList<KeysymEntry> levels = map.entries(name, 1);
+      if (levels.isEmpty() || (augment && !merged.entries(name, group).isEmpty())) {
+        continue;
+      }
+      Optional<String> type = map.type(name, 1);
+      if (type.isPresent()) {
+        builder.put(name, group, levels, type.orElseThrow());
+      } else {
+        builder.put(name, group, levels);
+      }
+    }
+    return builder.build();
+  }
+
+  private final ImmutableMap<String, XkbSymbolsIndex> indexByFile;
+  private final Map<String, KeyboardMap> resolved;
+  private final Map<String, RuntimeException> failed;
+  /** The sections being resolved, from the outermost one. */
+  private final Set<String> inProgress;
+
+  XkbIncludeResolver(Map<String, XkbSymbolsIndex> indexByFile) {
+    this.indexByFile = ImmutableMap.copyOf(indexByFile);
+    resolved = new HashMap<>();
+    failed = new HashMap<>();
+    inProgress = new LinkedHashSet<>();
+  }
+
+  /**
+   * Returns the default section of the given file.
+   *
+   * @param file a file
+   * @return the default section
+   * @throws IllegalArgumentException if the file is unknown or has no sections
+   */
+  String defaultVariant(String file) {
+    XkbSymbolsIndex index = indexByFile.get(file);
+    checkArgument(index != null, "Unknown file: %s.", file);
+    return index.defaultName()
+        .orElseThrow(() -> new IllegalArgumentException("No sections in " + file + "."));
+  }
+
+  /**
+   * Returns the keyboard map of the given section, with its includes resolved.
+   *
+   * @param file a file
+   * @param variant a section of that file
+   * @return the resolved keyboard map
+   * @throws IllegalArgumentException if the section or one that it includes, directly or not, is
+   *         unknown or can’t be read, or if the includes form a cycle
+   */
+  KeyboardMap resolve(String file, String variant) {
+    String name = XkbSymbolsCatalog.name(file, variant);
+    KeyboardMap known = resolved.get(name);
+    if (known != null) {
+      return known;
+    }
+    RuntimeException knownFailure = failed.get(name);
+    if (knownFailure != null) {
+      throw knownFailure;
+    }
+    checkArgument(!inProgress.contains(name), "Include cycle: %s -> %s.",
+        String.join(" -> ", inProgress), name);
+
+    inProgress.add(name);
+    try {
+      XkbSymbolsIndex index = indexByFile.get(file);
+      checkArgument(index != null, "Unknown file: %s.", file);
+      checkArgument(index.names().contains(variant), "Unknown section: %s.", name);
+      XkbSymbolsReader.Symbols symbols = index.symbols(variant);
+      KeyboardMap map = KeyboardMap.from(ImmutableListMultimap.of());
+      for (XkbSymbolsReader.Statement statement : symbols.statements()) {
+        if (statement instanceof XkbSymbolsReader.Include include) {
+          map = resolveExpression(map, include.expression());
+        } else {
+          map = map.overwrite(((XkbSymbolsReader.KeyBlock) statement).keyboardMap());
+        }
+      }
+      resolved.put(name, map);
+      return map;
+    } catch (RuntimeException e) {
+      /*
+       * A section that reaches a cycle reaches it whatever the path that leads to that section, so
+       * that all failures can be memoized.
+       */
+      failed.put(name, e);
+      throw e;
+    } finally {
+      inProgress.remove(name);
+    }
+  }
+
+  private KeyboardMap resolveExpression(KeyboardMap merged, String expression) {
+    ImmutableList<Component> components = components(expression);
+    final ImmutableList.Builder<KeyboardMap> maps = new ImmutableList.Builder<>();
+    for (Component component : components) {
+      String variant = component.variant().orElseGet(() -> defaultVariant(component.file()));
+      maps.add(resolve(component.file(), variant));
+    }
+    return merge(merged, components, maps.build());
+  }
+}
@@ -1,34 +1,287 @@
 package io.github.oliviercailloux.keyboardd.mapping;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Streams;
 import com.google.common.io.CharSource;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Splits a file containing {@code xkb_symbols} sections (a symbols file or a keymap dump) into its
+ * sections, by scanning it once and tracking the brace depth. Braces in comments ({@code //} and
+ * {@code /* … *}{@code /}) and in strings are ignored; sections may be nested in other blocks and
+ * contain blocks of any depth. Only the section being read is kept in memory.
+ */
 public class XkbKeymapDecomposer {
   @SuppressWarnings("unused")
   private static final Logger LOGGER = LoggerFactory.getLogger(XkbKeymapDecomposer.class);
 
-  private static final String INTRO = "^xkb_symbols \"(?<name>[^\"]++)\" \\{";
-  private static final String SKIP = "[\\n\\r]*+";
-  private static final String INSIDE_BRACKETS = "([^\\{\\}]*+\\{[^\\}]*+\\})*+";
-  private static final Pattern SYMBOLS = Pattern.compile(
-      INTRO + SKIP + "(?<contents>" + INSIDE_BRACKETS + "[^\\{\\}]++)[\\n\\r]*+\\};$",
-      Pattern.MULTILINE | Pattern.DOTALL);
+  /**
+   * An {@code xkb_symbols} section.
+   *
+   * @param name the name of the section
+   * @param contents the text between the braces of the section, without the line breaks that
+   *        follow the opening brace
+   */
+  public static record Section (String name, String contents) {
+    public Section {
+      checkNotNull(name);
+      checkNotNull(contents);
+    }
+  }
+
+  private static final String SYMBOLS = "xkb_symbols";
 
   public static ImmutableMap<String, String> bySymbolsMap(CharSource source) throws IOException {
-    Matcher matcher = SYMBOLS.matcher(source.read());
-    final ImmutableMap.Builder<String, String> builder = new ImmutableMap.Builder<>();
+    try (Reader reader = source.openBufferedStream();
+        Stream<Section> sections = sections(reader)) {
+      return sections.collect(ImmutableMap.toImmutableMap(Section::name, Section::contents));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Reads the named sections of the given file lazily, as the returned stream is consumed. The
+   * caller should close the returned stream, which closes the file.
+   *
+   * @param file a file encoded in UTF-8
+   * @return the sections, in order of appearance (see {@link #sections(Reader)})
+   * @throws IOException if an I/O error occurs opening the file
+   */
+  public static Stream<Section> sections(Path file) throws IOException {
+    BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+    return sections(reader).onClose(() -> {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  /**
+   * Reads the named sections of the given source lazily, as the returned stream is consumed,
+   * emitting each section as soon as its closing brace is read. Sections without a name are
+   * skipped. The stream throws an {@link UncheckedIOException} if an I/O error occurs and an
+   * {@link IllegalArgumentException} if the source ends within a section. Closing the stream does
+   * not close the given reader.
+   *
+   * @param source the source
+   * @return the sections, in order of appearance
+   */
+  public static Stream<Section> sections(Reader source) {
+    Reader reader = source instanceof BufferedReader ? source : new BufferedReader(source);
+    return Streams.stream(new SectionIterator(reader));
+  }
+
+  /**
+   * Returns the contents of the section that starts at the given offset, looking no further than
+   * the given end offset.
+   *
+   * @param text the text containing the section
+   * @param start the offset of the {@code xkb_symbols} header of the section
+   * @param end the offset where the search for the closing brace stops
+   * @return empty iff no complete named section starts at the given offset
+   */
+  static Optional<String> contents(String text, int start, int end) {
+    SectionIterator iterator = new SectionIterator(new StringReader(text.substring(start, end)));
+    try {
+      if (!iterator.hasNext()) {
+        return Optional.empty();
+      }
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Unterminated section at {}.", start, e);
+      return Optional.empty();
+    }
+    return Optional.of(iterator.next().contents());
+  }
+
+  private static class SectionIterator extends AbstractIterator<Section> {
+    private static final int NONE = -2;
+
+    private final Reader reader;
+    private int peeked;
+    private int previous;
+    private final StringBuilder word;
+
+    public SectionIterator(Reader reader) {
+      this.reader = checkNotNull(reader);
+      peeked = NONE;
+      previous = NONE;
+      word = new StringBuilder();
+    }
+
+    @Override
+    protected Section computeNext() {
+      try {
+        for (int c = read(); c != -1; c = read()) {
+          if (isWordChar(c) && !isWordChar(previous)) {
+            word.setLength(0);
+            word.append((char) c);
+            while (isWordChar(lookAhead())) {
+              word.append((char) read());
+            }
+            if (word.toString().equals(SYMBOLS)) {
+              Optional<Section> section = readSection();
+              if (section.isPresent()) {
+                return section.get();
+              }
+            }
+          } else {
+            skipIfCommentOrString(c, null);
+          }
+          previous = c;
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return endOfData();
+    }
+
+    private int read() throws IOException {
+      if (peeked != NONE) {
+        int c = peeked;
+        peeked = NONE;
+        return c;
+      }
+      return reader.read();
+    }
+
+    private int lookAhead() throws IOException {
+      if (peeked == NONE) {
+        peeked = reader.read();
+      }
+      return peeked;
+    }
+
+    private static boolean isWordChar(int c) {
+      return c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * If the given char (just read) starts a comment or a string, reads it up to its end, appending
+     * it to the destination if not null.
+     *
+     * @return {@code true} iff the char started a comment or a string
+     */
+    private boolean skipIfCommentOrString(int c, StringBuilder destination) throws IOException {
+      if (c == '/' && lookAhead() == '/') {
+        append(destination, c);
+        for (int n = read(); n != -1; n = read()) {
+          append(destination, n);
+          if (n == '\n') {
+            break;
+          }
+        }
+        return true;
+      }
+      if (c == '/' && lookAhead() == '*') {
+        append(destination, c);
+        append(destination, read());
+        int last = NONE;
+        for (int n = read(); n != -1; n = read()) {
+          append(destination, n);
+          if (last == '*' && n == '/') {
+            break;
+          }
+          last = n;
+        }
+        return true;
+      }
+      if (c == '"') {
+        append(destination, c);
+        for (int n = read(); n != -1; n = read()) {
+          append(destination, n);
+          if (n == '\\') {
+            append(destination, read());
+          } else if (n == '"') {
+            break;
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+
+    private static void append(StringBuilder destination, int c) {
+      if (destination != null && c != -1) {
+        destination.append((char) c);
+      }
+    }
+
+    /** Reads a section after its keyword, or nothing if the keyword is not followed by a name. */
+    private Optional<Section> readSection() throws IOException {
+      skipBlanksAndComments();
+      if (lookAhead() != '"') {
+        return Optional.empty();
+      }
+      StringBuilder name = new StringBuilder();
+      read();
+      for (int n = read(); n != '"'; n = read()) {
+        if (n == -1) {
+          return Optional.empty();
+        }
+        name.append((char) n);
+      }
+      skipBlanksAndComments();
+      if (lookAhead() != '{') {
+        return Optional.empty();
+      }
+      read();
+      while (lookAhead() == '\n' || lookAhead() == '\r') {
+        read();
+      }
+
+      StringBuilder contents = new StringBuilder();
+      int depth = 1;
+      for (int c = read(); c != -1; c = read()) {
+        if (skipIfCommentOrString(c, contents)) {
+          continue;
+        }
+        if (c == '{') {
+          ++depth;
+        } else if (c == '}') {
+          --depth;
+          if (depth == 0) {
+            previous = c;
+            LOGGER.debug("Found section {}.", name);
+            return Optional.of(new Section(name.toString(), contents.toString()));
+          }
+        }
+        contents.append((char) c);
+      }
+      throw new IllegalArgumentException("Unterminated section: " + name + ".");
+    }
 
-    while (matcher.find()) {
-      String name = matcher.group("name");
-      String symbols = matcher.group("contents");
-      LOGGER.info("Found name: {}, symbols {}.", name, symbols.substring(0, 50));
-      builder.put(name, symbols);
+    private void skipBlanksAndComments() throws IOException {
+      while (true) {
+        int c = lookAhead();
+        if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+          read();
+        } else if (c == '/') {
+          read();
+          if (!skipIfCommentOrString(c, null)) {
+            /* A lone slash, thus, no name or brace follows. */
+            return;
+          }
+        } else {
+          return;
+        }
+      }
     }
-    return builder.build();
   }
 }
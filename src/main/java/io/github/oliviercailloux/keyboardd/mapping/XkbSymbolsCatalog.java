@@ -0,0 +1,275 @@
+package io.github.oliviercailloux.keyboardd.mapping;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Streams;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The keyboard maps of all the {@code xkb_symbols} sections (variants) of all the symbols files of
+ * a directory, such as a copy of {@code /usr/share/X11/xkb/symbols}. The keyboard maps are keyed
+ * by {@code file(variant)}, where {@code file} is the path of the file relative to the directory,
+ * using {@code /} as separator (for example, {@code fr(oss)} or {@code sun_vndr/us(sun_type6)}).
+ * <p>
+ * The files are indexed and the variants are read in parallel. A variant that can’t be read (for
+ * example, because {@link XkbSymbolsReader} does not support its syntax) is reported as a failure
+ * without preventing the other ones to be read; a file that can’t be read is reported as a
+ * failure keyed by its path.
+ * <p>
+ * The include directives of the variants are then resolved (see {@link #resolvedKeyboardMaps()}),
+ * each variant being resolved once, using the maps of the variants it includes.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class XkbSymbolsCatalog {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(XkbSymbolsCatalog.class);
+
+  /**
+   * Reads all the symbols files of the given directory and its subdirectories, ignoring hidden
+   * files, using the common fork join pool, and waits for completion.
+   *
+   * @param directory the symbols directory
+   * @return the catalog
+   * @throws IOException if an I/O error occurs while listing the files
+   */
+  public static XkbSymbolsCatalog load(Path directory) throws IOException {
+    return load(directory, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Reads all the symbols files of the given directory and its subdirectories, ignoring hidden
+   * files, using the given executor, and waits for completion.
+   *
+   * @param directory the symbols directory
+   * @param executor the executor that indexes the files and reads the variants; its parallelism
+   *        bounds the number of files being read at a given time
+   * @return the catalog
+   * @throws IOException if an I/O error occurs while listing the files
+   */
+  public static XkbSymbolsCatalog load(Path directory, Executor executor) throws IOException {
+    checkArgument(Files.isDirectory(directory), "Not a directory: %s.", directory);
+    checkNotNull(executor);
+    final ImmutableList<Path> files;
+    try (Stream<Path> paths = Files.walk(directory)) {
+      files = paths.filter(Files::isRegularFile)
+          .filter(p -> !p.getFileName().toString().startsWith("."))
+          .collect(ImmutableList.toImmutableList());
+    }
+
+    ConcurrentMap<String, XkbSymbolsIndex> indexes = new ConcurrentHashMap<>();
+    ConcurrentMap<String, KeyboardMap> maps = new ConcurrentHashMap<>();
+    ConcurrentMap<String, Exception> failures = new ConcurrentHashMap<>();
+    CompletableFuture<?>[] loads = files.stream().map(f -> {
+      String fileName = relativeName(directory, f);
+      return CompletableFuture.supplyAsync(() -> index(f), executor).thenCompose(index -> {
+        indexes.put(fileName, index);
+        return readAll(fileName, index, executor, maps, failures);
+      })
+          .exceptionally(t -> {
+            LOGGER.debug("Failed reading {}.", fileName, t);
+            failures.put(fileName, asException(t));
+            return null;
+          });
+    }).toArray(CompletableFuture<?>[]::new);
+    CompletableFuture.allOf(loads).join();
+    LOGGER.debug("Read {} variants from {} files, {} failures.", maps.size(), files.size(),
+        failures.size());
+
+    XkbIncludeResolver resolver = new XkbIncludeResolver(indexes);
+    final ImmutableSortedMap.Builder<String, KeyboardMap> resolved =
+        ImmutableSortedMap.naturalOrder();
+    final ImmutableSortedMap.Builder<String, Exception> resolutionFailures =
+        ImmutableSortedMap.naturalOrder();
+    for (String fileName : indexes.keySet()) {
+      for (String variant : indexes.get(fileName).names()) {
+        String name = name(fileName, variant);
+        if (!maps.containsKey(name)) {
+          continue;
+        }
+        try {
+          resolved.put(name, resolver.resolve(fileName, variant));
+        } catch (RuntimeException e) {
+          LOGGER.debug("Failed resolving {}.", name, e);
+          resolutionFailures.put(name, e);
+        }
+      }
+    }
+    ImmutableMap<String, String> defaultVariants = indexes.entrySet().stream()
+        .filter(e -> e.getValue().defaultName().isPresent())
+        .collect(ImmutableMap.toImmutableMap(Map.Entry::getKey,
+            e -> e.getValue().defaultName().orElseThrow()));
+    return new XkbSymbolsCatalog(ImmutableSortedMap.copyOf(maps),
+        ImmutableSortedMap.copyOf(failures), resolved.build(), resolutionFailures.build(),
+        defaultVariants);
+  }
+
+  /**
+   * Returns the key under which the given variant of the given file is cataloged.
+   *
+   * @param file the path of the file relative to the directory, using {@code /} as separator
+   * @param variant the name of the {@code xkb_symbols} section
+   * @return {@code file(variant)}
+   */
+  public static String name(String file, String variant) {
+    return file + "(" + variant + ")";
+  }
+
+  private static String relativeName(Path directory, Path file) {
+    return Streams.stream(directory.relativize(file)).map(Path::toString)
+        .collect(Collectors.joining("/"));
+  }
+
+  private static XkbSymbolsIndex index(Path file) {
+    try {
+      return XkbSymbolsIndex.index(MoreFiles.asCharSource(file, StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  private static CompletableFuture<Void> readAll(String fileName, XkbSymbolsIndex index,
+      Executor executor, ConcurrentMap<String, KeyboardMap> maps,
+      ConcurrentMap<String, Exception> failures) {
+    CompletableFuture<?>[] reads = index.names().stream().map(variant -> {
+      String name = name(fileName, variant);
+      return CompletableFuture.runAsync(() -> {
+        try {
+          maps.put(name, index.keyboardMap(variant));
+        } catch (RuntimeException e) {
+          LOGGER.debug("Failed reading {}.", name, e);
+          failures.put(name, e);
+        }
+      }, executor);
+    }).toArray(CompletableFuture<?>[]::new);
+    return CompletableFuture.allOf(reads);
+  }
+
+  private static Exception asException(Throwable t) {
+    Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    if (cause instanceof Exception e) {
+      return e;
+    }
+    throw new CompletionException(cause);
+  }
+
+  private final ImmutableSortedMap<String, KeyboardMap> maps;
+  private final ImmutableSortedMap<String, Exception> failures;
+  private final ImmutableSortedMap<String, KeyboardMap> resolved;
+  private final ImmutableSortedMap<String, Exception> resolutionFailures;
+  private final ImmutableMap<String, String> defaultVariantByFile;
+
+  private XkbSymbolsCatalog(ImmutableSortedMap<String, KeyboardMap> maps,
+      ImmutableSortedMap<String, Exception> failures,
+      ImmutableSortedMap<String, KeyboardMap> resolved,
+      ImmutableSortedMap<String, Exception> resolutionFailures,
+      ImmutableMap<String, String> defaultVariantByFile) {
+    this.maps = checkNotNull(maps);
+    this.failures = checkNotNull(failures);
+    this.resolved = checkNotNull(resolved);
+    this.resolutionFailures = checkNotNull(resolutionFailures);
+    this.defaultVariantByFile = checkNotNull(defaultVariantByFile);
+  }
+
+  /**
+   * The keyboard maps that could be read.
+   *
+   * @return the keyboard maps, keyed by {@code file(variant)}, in the natural order of their keys
+   */
+  public ImmutableMap<String, KeyboardMap> keyboardMaps() {
+    return maps;
+  }
+
+  /**
+   * The keyboard maps of the variants that could be read, with their include directives resolved:
+   * each one merges the maps it includes and its own keys, in their order of appearance.
+   *
+   * @return the resolved keyboard maps, keyed by {@code file(variant)}, in the natural order of
+   *         their keys
+   */
+  public ImmutableMap<String, KeyboardMap> resolvedKeyboardMaps() {
+    return resolved;
+  }
+
+  /**
+   * The keyboard map of the given variant of the given file, if it could be read.
+   *
+   * @param file the path of the file relative to the directory, using {@code /} as separator
+   * @param variant the name of the {@code xkb_symbols} section
+   * @return empty iff the variant is unknown or could not be read
+   */
+  public Optional<KeyboardMap> keyboardMap(String file, String variant) {
+    return Optional.ofNullable(maps.get(name(file, variant)));
+  }
+
+  /**
+   * The problems encountered while reading the variants (keyed by {@code file(variant)}) and the
+   * files (keyed by their path).
+   *
+   * @return the failures, in the natural order of their keys
+   */
+  public ImmutableMap<String, Exception> failures() {
+    return failures;
+  }
+
+  /**
+   * The problems encountered while resolving the include directives of the variants that could be
+   * read, such as an include cycle or an include of an unknown or unreadable variant.
+   *
+   * @return the failures, keyed by {@code file(variant)}, in the natural order of their keys
+   */
+  public ImmutableMap<String, Exception> resolutionFailures() {
+    return resolutionFailures;
+  }
+
+  /**
+   * Returns the keyboard map designated by the given include expression, such as
+   * {@code pc+us(intl)+inet(evdev)}, composed from the resolved keyboard maps: the components
+   * separated by {@code +} override the keys of the previous ones, those separated by {@code |}
+   * only add keys, and those suffixed with {@code :N} give the first group of their keys as group
+   * N.
+   *
+   * @param expression an include expression
+   * @return the keyboard map
+   * @throws IllegalArgumentException if the expression is not well formed or designates a variant
+   *         that is not resolved
+   */
+  public KeyboardMap resolve(String expression) {
+    ImmutableList<XkbIncludeResolver.Component> components =
+        XkbIncludeResolver.components(expression);
+    final ImmutableList.Builder<KeyboardMap> componentMaps = new ImmutableList.Builder<>();
+    for (XkbIncludeResolver.Component component : components) {
+      String file = component.file();
+      String variant = component.variant()
+          .or(() -> Optional.ofNullable(defaultVariantByFile.get(file)))
+          .orElseThrow(() -> new IllegalArgumentException("Unknown file: " + file + "."));
+      String name = name(file, variant);
+      KeyboardMap map = resolved.get(name);
+      checkArgument(map != null, "Not resolved: %s.", name);
+      componentMaps.add(map);
+    }
+    return XkbIncludeResolver.merge(KeyboardMap.from(ImmutableListMultimap.of()), components,
+        componentMaps.build());
+  }
+}
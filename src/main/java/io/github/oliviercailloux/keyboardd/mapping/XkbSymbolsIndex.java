@@ -0,0 +1,164 @@
+package io.github.oliviercailloux.keyboardd.mapping;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.VerifyException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CharSource;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the {@code xkb_symbols} sections of a symbols file that may contain several variants
+ * (such as {@code us} or {@code fr}). Creating the index scans the text once for the lines that
+ * start (possibly after blanks) with a section header; the contents of a section and its keyboard
+ * map are extracted on first request, with work proportional to the size of that section, and
+ * cached.
+ * <p>
+ * Instances of this class are safe for concurrent use.
+ */
+public class XkbSymbolsIndex {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(XkbSymbolsIndex.class);
+
+  private static final String HEADER = "xkb_symbols \"";
+  private static final String DEFAULT = "default ";
+
+  /**
+   * Reads the given source and indexes its sections.
+   *
+   * @param source the symbols file
+   * @return an index
+   * @throws IOException if an I/O error occurs
+   */
+  public static XkbSymbolsIndex index(CharSource source) throws IOException {
+    return new XkbSymbolsIndex(source.read());
+  }
+
+  private final String text;
+  /** The start offset of each section header, in order of appearance. */
+  private final ImmutableMap<String, Integer> startByName;
+  /** The end offset of each section region, that is, the start of the next one or the text end. */
+  private final ImmutableMap<String, Integer> endByName;
+  /** The section flagged as default, or the first one, or {@code null} if there is none. */
+  private final String defaultName;
+  private final ConcurrentMap<String, Optional<String>> contents;
+  private final ConcurrentMap<String, XkbSymbolsReader.Symbols> symbols;
+
+  private XkbSymbolsIndex(String text) {
+    this.text = text;
+    final ImmutableMap.Builder<String, Integer> startsBuilder = new ImmutableMap.Builder<>();
+    final ImmutableMap.Builder<String, Integer> endsBuilder = new ImmutableMap.Builder<>();
+    String previousName = null;
+    String flaggedDefault = null;
+    boolean pendingDefault = false;
+    int lineStart = 0;
+    while (lineStart < text.length()) {
+      int headerStart = lineStart;
+      while (headerStart < text.length()
+          && (text.charAt(headerStart) == ' ' || text.charAt(headerStart) == '\t')) {
+        ++headerStart;
+      }
+      if (text.startsWith(DEFAULT, headerStart)) {
+        pendingDefault = true;
+        headerStart += DEFAULT.length();
+        while (headerStart < text.length()
+            && (text.charAt(headerStart) == ' ' || text.charAt(headerStart) == '\t')) {
+          ++headerStart;
+        }
+      }
+      if (text.startsWith(HEADER, headerStart)) {
+        int nameStart = headerStart + HEADER.length();
+        int nameEnd = text.indexOf('"', nameStart);
+        if (nameEnd != -1) {
+          if (previousName != null) {
+            endsBuilder.put(previousName, headerStart);
+          }
+          previousName = text.substring(nameStart, nameEnd);
+          startsBuilder.put(previousName, headerStart);
+          if (pendingDefault && flaggedDefault == null) {
+            flaggedDefault = previousName;
+          }
+          pendingDefault = false;
+        }
+      }
+      int lineEnd = text.indexOf('\n', lineStart);
+      lineStart = lineEnd == -1 ? text.length() : lineEnd + 1;
+    }
+    if (previousName != null) {
+      endsBuilder.put(previousName, text.length());
+    }
+    startByName = startsBuilder.build();
+    endByName = endsBuilder.build();
+    defaultName = flaggedDefault != null ? flaggedDefault
+        : startByName.keySet().stream().findFirst().orElse(null);
+    contents = new ConcurrentHashMap<>();
+    symbols = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * The names of the sections declared in the indexed text, in order of appearance.
+   *
+   * @return the names
+   */
+  public ImmutableSet<String> names() {
+    return startByName.keySet();
+  }
+
+  /**
+   * The section that an include directive designates when it mentions only this file: the one
+   * flagged {@code default}, or the first one if none is flagged.
+   *
+   * @return empty iff this index has no sections
+   */
+  public Optional<String> defaultName() {
+    return Optional.ofNullable(defaultName);
+  }
+
+  /**
+   * The contents of the given section, that is, the text between its opening and closing braces.
+   *
+   * @param name a section name, among {@link #names()}
+   * @return empty iff the section is not terminated before the next one
+   */
+  public Optional<String> contents(String name) {
+    checkArgument(startByName.containsKey(name), "Unknown section: %s.", name);
+    return contents.computeIfAbsent(name, n -> XkbKeymapDecomposer.contents(text,
+        startByName.get(n), endByName.get(n)));
+  }
+
+  /**
+   * The keyboard map of the given section, read with {@link XkbSymbolsReader#read(CharSource)},
+   * thus ignoring its include directives.
+   *
+   * @param name a section name, whose contents are available
+   * @return the keyboard map
+   */
+  public KeyboardMap keyboardMap(String name) {
+    return symbols(name).keyboardMap();
+  }
+
+  /**
+   * The include directives and keyboard map of the given section, read with
+   * {@link XkbSymbolsReader#readSymbols(CharSource)}.
+   *
+   * @param name a section name, whose contents are available
+   * @return the symbols
+   */
+  public XkbSymbolsReader.Symbols symbols(String name) {
+    return symbols.computeIfAbsent(name, n -> {
+      String sectionContents = contents(n)
+          .orElseThrow(() -> new IllegalArgumentException("Unsupported section: " + n + "."));
+      try {
+        return XkbSymbolsReader.readSymbols(CharSource.wrap(sectionContents));
+      } catch (IOException e) {
+        throw new VerifyException(e);
+      }
+    });
+  }
+}
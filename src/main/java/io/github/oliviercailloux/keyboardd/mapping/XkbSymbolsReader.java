@@ -1,17 +1,24 @@
 package io.github.oliviercailloux.keyboardd.mapping;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Verify.verify;
 
 import com.google.common.base.VerifyException;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableListMultimap;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharSource;
 import com.google.common.io.Resources;
-import io.github.oliviercailloux.keyboardd.utils.ParseUtils;
+import io.github.oliviercailloux.keyboardd.utils.LazyHolder;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher.LineMatcher;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher.Rule;
+import io.github.oliviercailloux.keyboardd.xkeys.PackedKeyName;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
@@ -29,13 +36,39 @@ public class XkbSymbolsReader {
   private static final Pattern P_OTHER = Pattern
       .compile("^(default )?(partial.*)|(xkb_symbols .*)|( *key.type.*)|( *name.*)|( *include .+)|"
           + "( *modifier_map.*)|(\\};)$");
-  private static final Pattern P_KEY = Pattern.compile(
-      "^ *key[ \\t]+<(?<name>.+)>" + "[ \\t]*\\{[ \\t]*\\[[ \\t]*" + "(?<entries>.*[^ \\t])"
-          + "[ \\t]*\\][ \\t]*" + "(,[ \\t]*type=\".+\"[ \\t]*)?" + "\\}[ \\t]*;[ \\t]*(//.*)?$");
-  private static final ImmutableSet<Pattern> PATTERNS = ImmutableSet.of(P_COMMENT, P_OTHER, P_KEY);
+  private static final Pattern P_KEY = Pattern.compile("^[ \\t]*key[ \\t]+<(?<name>.+)>"
+      + "[ \\t]*\\{(?<body>.*)\\}[ \\t]*;[ \\t]*(//.*)?$");
+  static final PatternDispatcher DISPATCHER = PatternDispatcher.using(Rule.prefix(P_KEY, "key"),
+      Rule.blank(P_COMMENT), Rule.prefix(P_COMMENT, "//"), Rule.prefix(P_OTHER, "key"),
+      Rule.prefix(P_OTHER, "default "), Rule.prefix(P_OTHER, "partial"),
+      Rule.prefix(P_OTHER, "xkb_symbols "), Rule.prefix(P_OTHER, "name"),
+      Rule.prefix(P_OTHER, "include "), Rule.prefix(P_OTHER, "modifier_map"),
+      Rule.prefix(P_OTHER, "};"));
+  private static final Pattern P_INCLUDE =
+      Pattern.compile("^[ \\t]*include[ \\t]+\"(?<include>[^\"]*)\".*$");
   private static final Pattern P_UNICODE = Pattern.compile("U(?<unicode>[0-9a-fA-F]+)");
   private static final Pattern P_CODE = Pattern.compile("0x(?<code>[0-9a-fA-F]+)");
-  private static final ImmutableSet<Pattern> PATTERNS_VALUES = ImmutableSet.of(P_UNICODE, P_CODE);
+  static final PatternDispatcher DISPATCHER_VALUES =
+      PatternDispatcher.using(Rule.prefix(P_UNICODE, "U"), Rule.prefix(P_CODE, "0x"));
+  /** The symbols of the next group. */
+  private static final Pattern P_LEVELS = Pattern.compile("^\\[(?<entries>.*)\\]$");
+  private static final Pattern P_GROUP_LEVELS = Pattern.compile("^symbols[ \\t]*\\[[ \\t]*"
+      + "(?i:group)(?<group>[1-9])[ \\t]*\\][ \\t]*=[ \\t]*\\[(?<entries>.*)\\]$");
+  /** The type of the given group, or of all groups. */
+  private static final Pattern P_TYPE = Pattern.compile("^type([ \\t]*\\[[ \\t]*"
+      + "(?i:group)(?<group>[1-9])[ \\t]*\\])?[ \\t]*=[ \\t]*\"(?<type>[^\"]+)\"$");
+  static final PatternDispatcher DISPATCHER_STATEMENTS =
+      PatternDispatcher.using(Rule.prefix(P_LEVELS, "["), Rule.prefix(P_GROUP_LEVELS, "symbols"),
+          Rule.prefix(P_TYPE, "type"));
+
+  private static final LazyHolder<KeyboardMap> COMMON =
+      LazyHolder.registered("XkbSymbolsReader.common", XkbSymbolsReader::loadCommon);
+  private static final LazyHolder<XkbSymbolsIndex> US_INDEX =
+      LazyHolder.registered("XkbSymbolsReader.usIndex", XkbSymbolsReader::loadUsIndex);
+  private static final LazyHolder<KeyboardMap> US = LazyHolder.registered("XkbSymbolsReader.us",
+      () -> US_INDEX.get().keyboardMap("basic"));
+  private static final LazyHolder<KeyboardMap> US_INTL = LazyHolder
+      .registered("XkbSymbolsReader.usIntl", () -> US_INDEX.get().keyboardMap("intl"));
 
   /**
    * From
@@ -57,7 +90,37 @@ public class XkbSymbolsReader {
     return source;
   }
 
+  /**
+   * The keyboard map of the bundled {@code pc} symbols file, loaded once per process (see
+   * {@link io.github.oliviercailloux.keyboardd.BundledData}).
+   *
+   * @return the common keyboard map
+   */
   public static KeyboardMap common() {
+    return COMMON.get();
+  }
+
+  /**
+   * The keyboard map of the {@code basic} variant of the bundled {@code us} symbols file, loaded
+   * once per process.
+   *
+   * @return the us keyboard map
+   */
+  public static KeyboardMap us() {
+    return US.get();
+  }
+
+  /**
+   * The keyboard map of the {@code intl} variant of the bundled {@code us} symbols file, loaded
+   * once per process.
+   *
+   * @return the us intl keyboard map
+   */
+  public static KeyboardMap usIntl() {
+    return US_INTL.get();
+  }
+
+  private static KeyboardMap loadCommon() {
     CharSource source = commonSource();
     try {
       return read(source);
@@ -66,64 +129,214 @@ public class XkbSymbolsReader {
     }
   }
 
-  public static KeyboardMap us() {
-    CharSource source = usSource();
+  private static XkbSymbolsIndex loadUsIndex() {
     try {
-      String symbolsMap = XkbKeymapDecomposer.bySymbolsMap(source).get("basic");
-      return read(CharSource.wrap(symbolsMap));
+      return XkbSymbolsIndex.index(usSource());
     } catch (IOException e) {
       throw new VerifyException(e);
     }
   }
 
-  public static KeyboardMap usIntl() {
-    CharSource source = usSource();
-    try {
-      String symbolsMap = XkbKeymapDecomposer.bySymbolsMap(source).get("intl");
-      return read(CharSource.wrap(symbolsMap));
-    } catch (IOException e) {
-      throw new VerifyException(e);
+  /** A statement of a symbols section: an include directive or a block of consecutive keys. */
+  public static sealed interface Statement
+      permits XkbSymbolsReader.Include, XkbSymbolsReader.KeyBlock {
+  }
+
+  /**
+   * An include directive.
+   *
+   * @param expression the include expression, such as {@code pc+us(intl)}
+   */
+  public static record Include (String expression) implements Statement {
+    public Include {
+      checkNotNull(expression);
+    }
+  }
+
+  /**
+   * Keys that a section defines between two include directives (or the start or end of the
+   * section).
+   *
+   * @param keyboardMap the keys
+   */
+  public static record KeyBlock (KeyboardMap keyboardMap) implements Statement {
+    public KeyBlock {
+      checkNotNull(keyboardMap);
+    }
+  }
+
+  /**
+   * The contents of a symbols section: its include directives and its own keys.
+   *
+   * @param statements the include directives and key blocks, in order of appearance
+   * @param keyboardMap all the keys defined in the section itself
+   */
+  public static record Symbols (ImmutableList<Statement> statements, KeyboardMap keyboardMap) {
+    public Symbols {
+      checkNotNull(statements);
+      checkNotNull(keyboardMap);
+    }
+
+    /**
+     * The include expressions of the section.
+     *
+     * @return the include expressions (such as {@code pc+us(intl)}), in order of appearance
+     */
+    public ImmutableList<String> includes() {
+      return statements.stream().filter(Include.class::isInstance).map(Include.class::cast)
+          .map(Include::expression).collect(ImmutableList.toImmutableList());
     }
   }
 
   /**
-   * Reads a keyboard map from the given source.
+   * Reads a keyboard map from the given source, ignoring its include directives.
    *
    * @param source the XKB symbols file to read from
    * @return a (possibly empty) keyboard map
    * @throws IOException if an I/O error occurs
    */
   public static KeyboardMap read(CharSource source) throws IOException {
+    return readSymbols(source).keyboardMap();
+  }
+
+  /**
+   * Reads the include directives and the keyboard map from the given source.
+   *
+   * @param source the XKB symbols file (or section) to read from
+   * @return the include directives and key blocks, and the (possibly empty) keyboard map
+   * @throws IOException if an I/O error occurs
+   */
+  public static Symbols readSymbols(CharSource source) throws IOException {
     ImmutableList<String> lines = source.readLines();
 
-    final ImmutableListMultimap.Builder<String, KeysymEntry> keys =
-        new ImmutableListMultimap.Builder<>();
+    final ImmutableList.Builder<Statement> statements = new ImmutableList.Builder<>();
+    final KeyboardMap.Builder keys = KeyboardMap.builder();
+    KeyboardMap.Builder block = KeyboardMap.builder();
+    boolean blockEmpty = true;
+    LineMatcher lineMatcher = DISPATCHER.lineMatcher();
+    LineMatcher statementsMatcher = DISPATCHER_STATEMENTS.lineMatcher();
+    LineMatcher valuesMatcher = DISPATCHER_VALUES.lineMatcher();
+    Matcher includeMatcher = P_INCLUDE.matcher("");
     for (String line : lines) {
-      Matcher matcher = ParseUtils.matcher(line, PATTERNS);
+      Matcher matcher = lineMatcher.matcher(line);
       if (matcher.pattern().equals(P_COMMENT)) {
         continue;
       } else if (matcher.pattern().equals(P_OTHER)) {
+        if (includeMatcher.reset(line).matches()) {
+          if (!blockEmpty) {
+            statements.add(endBlock(block, keys));
+            block = KeyboardMap.builder();
+            blockEmpty = true;
+          }
+          statements.add(new Include(includeMatcher.group("include")));
+        }
         continue;
       } else {
         verify(matcher.pattern().equals(P_KEY));
-        String name = matcher.group("name");
-        String entries = matcher.group("entries");
-        final ImmutableList<KeysymEntry> values = parseEntries(entries);
-        keys.putAll(name, values);
+        String name = PackedKeyName.name(line, matcher.start("name"), matcher.end("name"));
+        String body = matcher.group("body");
+        parseKey(name, body, block, statementsMatcher, valuesMatcher);
+        blockEmpty = false;
       }
     }
-    ImmutableListMultimap<String, KeysymEntry> map = keys.build();
-    return KeyboardMap.from(map);
+    if (!blockEmpty) {
+      statements.add(endBlock(block, keys));
+    }
+    return new Symbols(statements.build(), keys.build());
+  }
+
+  /** Builds the given block, and puts its groups into the keys of the whole section. */
+  private static KeyBlock endBlock(KeyboardMap.Builder block, KeyboardMap.Builder keys) {
+    KeyboardMap built = block.build();
+    for (String name : built.names()) {
+      for (int group = 1; group <= built.groupCount(name); ++group) {
+        ImmutableList<KeysymEntry> entries = built.entries(name, group);
+        if (entries.isEmpty()) {
+          continue;
+        }
+        Optional<String> type = built.type(name, group);
+        if (type.isPresent()) {
+          keys.put(name, group, entries, type.orElseThrow());
+        } else {
+          keys.put(name, group, entries);
+        }
+      }
+    }
+    return new KeyBlock(built);
+  }
+
+  /**
+   * Parses the statements of a key, such as {@code [ a, A ], type="TWO_LEVEL"} or
+   * {@code symbols[Group1]=[ a, A ], symbols[Group2]=[ Greek_alpha ]}, and puts its groups.
+   */
+  private static void parseKey(String name, String body, KeyboardMap.Builder keys,
+      LineMatcher statementsMatcher, LineMatcher valuesMatcher) {
+    final Map<Integer, ImmutableList<KeysymEntry>> levelsByGroup = new TreeMap<>();
+    final Map<Integer, String> typeByGroup = new HashMap<>();
+    String typeOfAll = null;
+    int nextGroup = 1;
+    for (String statement : splitStatements(body)) {
+      Matcher matcher = statementsMatcher.matcher(statement);
+      if (matcher.pattern().equals(P_TYPE)) {
+        String group = matcher.group("group");
+        if (group == null) {
+          typeOfAll = matcher.group("type");
+        } else {
+          typeByGroup.put(Integer.parseInt(group), matcher.group("type"));
+        }
+      } else {
+        int group = matcher.pattern().equals(P_LEVELS) ? nextGroup
+            : Integer.parseInt(matcher.group("group"));
+        levelsByGroup.put(group, parseEntries(matcher.group("entries").strip(), valuesMatcher));
+        nextGroup = group + 1;
+      }
+    }
+    checkArgument(!levelsByGroup.isEmpty(), "No symbols for key %s.", name);
+    for (int group : levelsByGroup.keySet()) {
+      String type = typeByGroup.getOrDefault(group, typeOfAll);
+      if (type == null) {
+        keys.put(name, group, levelsByGroup.get(group));
+      } else {
+        keys.put(name, group, levelsByGroup.get(group), type);
+      }
+    }
+  }
+
+  /** Splits the given text at its commas that are not within brackets or quotes, and strips. */
+  private static ImmutableList<String> splitStatements(String body) {
+    final ImmutableList.Builder<String> statements = new ImmutableList.Builder<>();
+    int depth = 0;
+    boolean quoted = false;
+    int start = 0;
+    for (int i = 0; i < body.length(); ++i) {
+      char c = body.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (!quoted && c == '[') {
+        ++depth;
+      } else if (!quoted && c == ']') {
+        --depth;
+      } else if (!quoted && depth == 0 && c == ',') {
+        statements.add(body.substring(start, i).strip());
+        start = i + 1;
+      }
+    }
+    String last = body.substring(start).strip();
+    if (!last.isEmpty()) {
+      statements.add(last);
+    }
+    return statements.build();
   }
 
-  private static ImmutableList<KeysymEntry> parseEntries(String entriesOneStr) {
+  private static ImmutableList<KeysymEntry> parseEntries(String entriesOneStr,
+      LineMatcher valuesMatcher) {
     String[] split = entriesOneStr.split(", *");
     ImmutableList<String> entriesMultStr = ImmutableList.copyOf(split);
 
     final ImmutableList.Builder<KeysymEntry> entries = new ImmutableList.Builder<>();
     for (String entryStr : entriesMultStr) {
       LOGGER.debug("Parsing entry: {}.", entryStr);
-      Optional<Matcher> matcherOpt = ParseUtils.matcherOpt(entryStr, PATTERNS_VALUES);
+      Optional<Matcher> matcherOpt = valuesMatcher.matcherOpt(entryStr);
       if (matcherOpt.isEmpty()) {
         String m = entryStr.strip();
         if (m.isEmpty()) {
@@ -132,7 +345,6 @@ public class XkbSymbolsReader {
         entries.add(new KeysymEntry.Mnemonic(m));
       } else {
         Matcher matcher = matcherOpt.orElseThrow(VerifyException::new);
-        verify(matcher.matches());
         if (matcher.pattern().equals(P_UNICODE)) {
           String uStr = matcher.group("unicode");
           int u = Integer.parseInt(uStr, 16);
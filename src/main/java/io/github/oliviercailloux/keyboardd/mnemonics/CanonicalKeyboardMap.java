@@ -1,10 +1,13 @@
 package io.github.oliviercailloux.keyboardd.mnemonics;
 
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableSet;
 import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.ReverseIndex;
 import java.util.Map;
+import java.util.function.Supplier;
 
 public class CanonicalKeyboardMap {
   /**
@@ -19,11 +22,31 @@ public class CanonicalKeyboardMap {
   }
 
   private final ImmutableListMultimap<String, CanonicalKeysymEntry> xKeyNameToEntries;
+  private final Supplier<ReverseIndex> reverse;
 
   private CanonicalKeyboardMap(KeyboardMap map, Mnemonics mnemonics) {
     xKeyNameToEntries = map.nameToEntries().entries().stream()
         .collect(ImmutableListMultimap.toImmutableListMultimap(Map.Entry::getKey,
             entry -> mnemonics.canonicalize(entry.getValue())));
+    reverse = Suppliers.memoize(this::buildReverse);
+  }
+
+  private ReverseIndex buildReverse() {
+    ReverseIndex.Builder builder = ReverseIndex.builder();
+    xKeyNameToEntries.forEach((name, entry) -> {
+      if (entry instanceof CanonicalMnemonic c) {
+        builder.putMnemonic(c.mnemonic(), name);
+        c.nonDeprecatedAliases().forEach(a -> builder.putMnemonic(a, name));
+        c.deprecatedAliases().forEach(a -> builder.putMnemonic(a, name));
+        c.ucp().ifPresent(u -> builder.putUcp(u, name));
+        builder.putCode(c.code(), name);
+      } else {
+        ImplicitUcp i = (ImplicitUcp) entry;
+        builder.putUcp(i.ucp(), name);
+        builder.putCode(i.code(), name);
+      }
+    });
+    return builder.build();
   }
 
   /**
@@ -53,4 +76,41 @@ public class CanonicalKeyboardMap {
   public ImmutableListMultimap<String, CanonicalKeysymEntry> nameToEntries() {
     return xKeyNameToEntries;
   }
+
+  /**
+   * The index of the canonical X key names by keysym mnemonic (canonical or alias), UCP and code
+   * found in this keyboard map. It is built on first request, and safe for concurrent use.
+   *
+   * @return the reverse index
+   */
+  public ReverseIndex reverseIndex() {
+    return reverse.get();
+  }
+
+  /**
+   * The X key names that are associated to the given entry.
+   *
+   * @param entry a canonical keysym entry
+   * @return empty iff the given entry is not found in this keyboard map
+   */
+  public ImmutableSet<String> names(CanonicalKeysymEntry entry) {
+    final int code;
+    if (entry instanceof CanonicalMnemonic c) {
+      code = c.code();
+    } else {
+      code = ((ImplicitUcp) entry).code();
+    }
+    return reverse.get().namesFromCode(code);
+  }
+
+  /**
+   * The X key names that are associated to the given Unicode code point, either explicitly by a
+   * canonical mnemonic or implicitly.
+   *
+   * @param ucp a Unicode code point
+   * @return empty iff the given Unicode code point is not found in this keyboard map
+   */
+  public ImmutableSet<String> namesFromUcp(int ucp) {
+    return reverse.get().namesFromUcp(ucp);
+  }
 }
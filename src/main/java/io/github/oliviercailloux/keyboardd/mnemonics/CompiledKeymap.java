@@ -0,0 +1,198 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.MoreObjects;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.KeysymEntry;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.util.Arrays;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A translation table from X keycodes to canonical keysyms, for use on hot paths such as handling
+ * each keystroke. It is compiled once from X keys, a keyboard map and mnemonics, into flat arrays
+ * indexed by keycode, group and level, so that a lookup reads a few ints, without hashing nor
+ * allocating.
+ * <p>
+ * The keycode of an X key name of the keyboard map is given by the X keys (names of the map that
+ * the X keys do not know are ignored); the keysym code and UCP of an entry are those of its
+ * canonical form (see {@link Mnemonics#canonicalize(KeysymEntry)}).
+ * <p>
+ * Instances of this class are immutable, thus safe for concurrent use.
+ */
+public class CompiledKeymap {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(CompiledKeymap.class);
+
+  /** The value returned when there is no such entry, or no UCP. */
+  public static final int ABSENT = -1;
+
+  /**
+   * Compiles the given keyboard map.
+   *
+   * @param xkeys the X keys that give the keycode of each X key name
+   * @param map the keyboard map, possibly using aliases
+   * @param mnemonics the mnemonics used to canonicalize the entries
+   * @return the compiled keymap
+   * @throws IllegalStateException if several X key names of the map have the same keycode
+   */
+  public static CompiledKeymap compile(Xkeys xkeys, KeyboardMap map, Mnemonics mnemonics) {
+    KeyboardMap canonicalMap = map.canonicalize(xkeys);
+    Map<String, Short> codeByCanonical = xkeys.codeByCanonical();
+    int minKeycode = Integer.MAX_VALUE;
+    int maxKeycode = Integer.MIN_VALUE;
+    int nbGroups = 0;
+    int nbLevels = 0;
+    for (String name : canonicalMap.names()) {
+      Short keycode = codeByCanonical.get(name);
+      if (keycode == null) {
+        continue;
+      }
+      minKeycode = Math.min(minKeycode, keycode);
+      maxKeycode = Math.max(maxKeycode, keycode);
+      nbGroups = Math.max(nbGroups, canonicalMap.groupCount(name));
+      for (int group = 1; group <= canonicalMap.groupCount(name); ++group) {
+        nbLevels = Math.max(nbLevels, canonicalMap.entries(name, group).size());
+      }
+    }
+    if (nbLevels == 0) {
+      return new CompiledKeymap(0, 0, 0, 0, new int[0], new int[0]);
+    }
+
+    int nbKeycodes = maxKeycode - minKeycode + 1;
+    int[] codes = new int[nbKeycodes * nbGroups * nbLevels];
+    int[] ucps = new int[codes.length];
+    Arrays.fill(codes, ABSENT);
+    Arrays.fill(ucps, ABSENT);
+    for (String name : canonicalMap.names()) {
+      Short keycode = codeByCanonical.get(name);
+      if (keycode == null) {
+        continue;
+      }
+      for (int group = 1; group <= canonicalMap.groupCount(name); ++group) {
+        int base = ((keycode - minKeycode) * nbGroups + group - 1) * nbLevels;
+        int level = 0;
+        for (KeysymEntry entry : canonicalMap.entries(name, group)) {
+          CanonicalKeysymEntry canonical = mnemonics.canonicalize(entry);
+          if (canonical instanceof CanonicalMnemonic c) {
+            codes[base + level] = c.code();
+            ucps[base + level] = c.ucp().orElse(ABSENT);
+          } else {
+            ImplicitUcp i = (ImplicitUcp) canonical;
+            codes[base + level] = i.code();
+            ucps[base + level] = i.ucp();
+          }
+          ++level;
+        }
+      }
+    }
+    return new CompiledKeymap(minKeycode, nbKeycodes, nbGroups, nbLevels, codes, ucps);
+  }
+
+  private final int minKeycode;
+  private final int nbKeycodes;
+  private final int nbGroups;
+  private final int nbLevels;
+  /** Indexed by keycode (from the minimal one), then group, then level. */
+  private final int[] codes;
+  /** Indexed as the codes. */
+  private final int[] ucps;
+
+  private CompiledKeymap(int minKeycode, int nbKeycodes, int nbGroups, int nbLevels, int[] codes,
+      int[] ucps) {
+    this.minKeycode = minKeycode;
+    this.nbKeycodes = nbKeycodes;
+    this.nbGroups = nbGroups;
+    this.nbLevels = nbLevels;
+    this.codes = checkNotNull(codes);
+    this.ucps = checkNotNull(ucps);
+  }
+
+  /**
+   * Returns the index of the given level of the given group of the given keycode, or -1.
+   */
+  private int index(int keycode, int group, int level) {
+    int k = keycode - minKeycode;
+    if (k < 0 || k >= nbKeycodes || group < 1 || group > nbGroups || level < 1
+        || level > nbLevels) {
+      return -1;
+    }
+    return (k * nbGroups + group - 1) * nbLevels + level - 1;
+  }
+
+  /**
+   * The canonical keysym code at the given level of the first group of the given keycode.
+   *
+   * @param keycode an X keycode, such as 38
+   * @param level the level, from one
+   * @return {@link #ABSENT} iff there is no entry at that level of that keycode
+   */
+  public int code(int keycode, int level) {
+    return code(keycode, 1, level);
+  }
+
+  /**
+   * The canonical keysym code at the given level of the given group of the given keycode.
+   *
+   * @param keycode an X keycode, such as 38
+   * @param group the group, from one
+   * @param level the level, from one
+   * @return {@link #ABSENT} iff there is no entry at that level of that group of that keycode
+   */
+  public int code(int keycode, int group, int level) {
+    int index = index(keycode, group, level);
+    return index == -1 ? ABSENT : codes[index];
+  }
+
+  /**
+   * The UCP of the canonical keysym at the given level of the first group of the given keycode.
+   *
+   * @param keycode an X keycode, such as 38
+   * @param level the level, from one
+   * @return {@link #ABSENT} iff there is no entry at that level of that keycode, or it has no UCP
+   */
+  public int ucp(int keycode, int level) {
+    return ucp(keycode, 1, level);
+  }
+
+  /**
+   * The UCP of the canonical keysym at the given level of the given group of the given keycode.
+   *
+   * @param keycode an X keycode, such as 38
+   * @param group the group, from one
+   * @param level the level, from one
+   * @return {@link #ABSENT} iff there is no entry at that level of that group of that keycode, or
+   *         it has no UCP
+   */
+  public int ucp(int keycode, int group, int level) {
+    int index = index(keycode, group, level);
+    return index == -1 ? ABSENT : ucps[index];
+  }
+
+  /**
+   * The maximal number of groups of a keycode.
+   *
+   * @return zero iff this keymap has no entries
+   */
+  public int groupCount() {
+    return nbGroups;
+  }
+
+  /**
+   * The maximal number of levels of a group.
+   *
+   * @return zero iff this keymap has no entries
+   */
+  public int levelCount() {
+    return nbLevels;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("min keycode", minKeycode)
+        .add("keycodes", nbKeycodes).add("groups", nbGroups).add("levels", nbLevels).toString();
+  }
+}
@@ -0,0 +1,295 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.MoreObjects;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes recordings of Linux input events (as read from {@code /dev/input/event*}, in the
+ * {@code struct input_event} layout of 64-bit systems: seconds and microseconds as 64-bit
+ * integers, then type and code as 16-bit integers, then value as a 32-bit integer, little endian),
+ * and translates their key events into canonical X key names and keysyms.
+ * <p>
+ * The evdev code of a key event plus eight is its X keycode, whose canonical X key name is given by
+ * the X keys and whose keysym is given by a compiled keymap, at the level selected by the shift
+ * and level three shift keys held (the keys whose first level is {@code Shift_L},
+ * {@code Shift_R} or {@code ISO_Level3_Shift}); a key that has no entry at that level gives its
+ * first level, as keys of type {@code ONE_LEVEL} do.
+ * <p>
+ * The events are decoded in place from byte buffers and handed over as primitive values, so that
+ * decoding allocates nothing per event. A file is memory mapped, region by region, and decoded
+ * without copy in the calling thread. When reading from a channel, a reader thread fills buffers
+ * by batches and decodes them into a lock-free ring of events, which the calling thread
+ * translates and hands to the handler.
+ * <p>
+ * Instances of this class are immutable, thus safe for concurrent use.
+ */
+public class EvdevEventDecoder {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(EvdevEventDecoder.class);
+
+  /** The size of an event, in bytes. */
+  public static final int EVENT_SIZE = 24;
+  /** The value of a key event that indicates a release. */
+  public static final int RELEASE = 0;
+  /** The value of a key event that indicates a press. */
+  public static final int PRESS = 1;
+  /** The value of a key event that indicates an automatic repetition. */
+  public static final int REPEAT = 2;
+
+  private static final int EV_KEY = 1;
+  private static final int KEYCODE_OFFSET = 8;
+  private static final int BATCH_EVENTS = 4096;
+  private static final int RING_CAPACITY = 1 << 16;
+  private static final int REGION_EVENTS = 1 << 20;
+
+  private static final int SHIFT_L = 0xFFE1;
+  private static final int SHIFT_R = 0xFFE2;
+  private static final int ISO_LEVEL3_SHIFT = 0xFE03;
+  private static final byte SHIFT = 1;
+  private static final byte LEVEL3 = 2;
+
+  /** Receives the key events, translated. */
+  @FunctionalInterface
+  public static interface KeyHandler {
+    /**
+     * Handles a key event.
+     *
+     * @param timeMicros the time of the event, in microseconds since the epoch
+     * @param keycode the X keycode
+     * @param xKeyName the canonical X key name, or {@code null} if the X keys do not know the
+     *        keycode
+     * @param keysymCode the canonical keysym code, or {@link CompiledKeymap#ABSENT}
+     * @param value {@link #RELEASE}, {@link #PRESS} or {@link #REPEAT}
+     */
+    void key(long timeMicros, int keycode, String xKeyName, int keysymCode, int value);
+  }
+
+  /**
+   * Returns a decoder that translates key events using the given X keys and keymap.
+   *
+   * @param xkeys the X keys that give the canonical X key name of each keycode
+   * @param keymap the keymap that gives the keysyms of each keycode
+   * @return a decoder
+   */
+  public static EvdevEventDecoder using(Xkeys xkeys, CompiledKeymap keymap) {
+    return new EvdevEventDecoder(xkeys, keymap);
+  }
+
+  private final CompiledKeymap keymap;
+  /** Indexed by keycode; null where unknown. */
+  private final String[] canonicalByKeycode;
+  /** Indexed by keycode; the modifiers that the key sets, as bits. */
+  private final byte[] modifierByKeycode;
+
+  private EvdevEventDecoder(Xkeys xkeys, CompiledKeymap keymap) {
+    this.keymap = checkNotNull(keymap);
+    int maxKeycode = xkeys.codes().stream().mapToInt(Short::intValue).max().orElse(0);
+    canonicalByKeycode = new String[maxKeycode + 1];
+    modifierByKeycode = new byte[maxKeycode + 1];
+    for (Map.Entry<Short, String> entry : xkeys.canonicalByCode().entrySet()) {
+      int keycode = entry.getKey();
+      canonicalByKeycode[keycode] = entry.getValue();
+      int first = keymap.code(keycode, 1);
+      if (first == SHIFT_L || first == SHIFT_R) {
+        modifierByKeycode[keycode] = SHIFT;
+      } else if (first == ISO_LEVEL3_SHIFT) {
+        modifierByKeycode[keycode] = LEVEL3;
+      }
+    }
+  }
+
+  /**
+   * Follows the modifiers held along a stream of key events, and translates them.
+   */
+  private class Translator implements KeyEventRing.Sink {
+    private final KeyHandler handler;
+    private int shifts;
+    private int level3s;
+    private long count;
+
+    private Translator(KeyHandler handler) {
+      this.handler = checkNotNull(handler);
+      shifts = 0;
+      level3s = 0;
+      count = 0;
+    }
+
+    @Override
+    public void accept(long timeMicros, int keycode, int value) {
+      String name = null;
+      int keysym = CompiledKeymap.ABSENT;
+      if (keycode < canonicalByKeycode.length) {
+        name = canonicalByKeycode[keycode];
+        int level = 1 + (shifts > 0 ? 1 : 0) + (level3s > 0 ? 2 : 0);
+        keysym = keymap.code(keycode, level);
+        if (keysym == CompiledKeymap.ABSENT) {
+          keysym = keymap.code(keycode, 1);
+        }
+        byte modifier = modifierByKeycode[keycode];
+        if (modifier != 0 && value != REPEAT) {
+          int delta = value == PRESS ? 1 : -1;
+          if (modifier == SHIFT) {
+            shifts = Math.max(0, shifts + delta);
+          } else {
+            level3s = Math.max(0, level3s + delta);
+          }
+        }
+      }
+      ++count;
+      handler.key(timeMicros, keycode, name, keysym, value);
+    }
+  }
+
+  /**
+   * Decodes the events of the given buffer, in place, from its position to its limit, giving the
+   * key events to the given sink; advances the position of the buffer past the last complete event.
+   */
+  private static void decode(ByteBuffer events, KeyEventRing.Sink sink) {
+    int position = events.position();
+    int end = position + (events.remaining() / EVENT_SIZE) * EVENT_SIZE;
+    for (int i = position; i < end; i += EVENT_SIZE) {
+      int type = events.getShort(i + 16) & 0xFFFF;
+      if (type != EV_KEY) {
+        continue;
+      }
+      long timeMicros = events.getLong(i) * 1_000_000L + events.getLong(i + 8);
+      int keycode = (events.getShort(i + 18) & 0xFFFF) + KEYCODE_OFFSET;
+      sink.accept(timeMicros, keycode, events.getInt(i + 20));
+    }
+    events.position(end);
+  }
+
+  /**
+   * Decodes the events of the given buffer, in the calling thread, from its position to its limit,
+   * and advances its position past the last complete event.
+   *
+   * @param events the events, in little endian order whatever the order of the buffer
+   * @param handler receives the key events
+   * @return the number of key events
+   */
+  public long decode(ByteBuffer events, KeyHandler handler) {
+    ByteBuffer littleEndian = events.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    Translator translator = new Translator(handler);
+    decode(littleEndian, translator);
+    events.position(littleEndian.position());
+    return translator.count;
+  }
+
+  /**
+   * Decodes the events of the given file, in the calling thread, mapping it in memory. A trailing
+   * partial event is ignored.
+   *
+   * @param recording the file
+   * @param handler receives the key events
+   * @return the number of key events
+   * @throws IOException if an I/O error occurs while reading
+   */
+  public long decode(Path recording, KeyHandler handler) throws IOException {
+    return decode(recording, handler, REGION_EVENTS);
+  }
+
+  /** Decodes the events of the given file, mapping regions of the given number of events. */
+  long decode(Path recording, KeyHandler handler, int regionEvents) throws IOException {
+    checkArgument(regionEvents >= 1);
+    long regionSize = (long) regionEvents * EVENT_SIZE;
+    Translator translator = new Translator(handler);
+    try (FileChannel channel = FileChannel.open(recording, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long complete = size - size % EVENT_SIZE;
+      for (long start = 0; start < complete; start += regionSize) {
+        ByteBuffer region = channel
+            .map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, complete - start))
+            .order(ByteOrder.LITTLE_ENDIAN);
+        decode(region, translator);
+      }
+      if (complete != size) {
+        LOGGER.warn("Ignored a trailing partial event of {} bytes.", size - complete);
+      }
+    }
+    return translator.count;
+  }
+
+  /**
+   * Decodes the events read from the given channel (such as a pipe) until its end, reading it in a
+   * thread of the given executor. A trailing partial event is ignored.
+   * <p>
+   * The calling thread waits for the events while the reading task runs. The executor must thus
+   * run that task in another thread, which it must allow to block on I/O. It must not be the
+   * executor of the calling thread, nor a pool such as the common fork join pool whose threads
+   * the calling thread may wait for.
+   *
+   * @param channel the channel, not closed by this method
+   * @param handler receives the key events, in the calling thread
+   * @param executor the executor that reads the channel, in a thread that may block
+   * @return the number of key events
+   * @throws IOException if an I/O error occurs while reading
+   */
+  public long decode(ReadableByteChannel channel, KeyHandler handler, Executor executor)
+      throws IOException {
+    checkNotNull(channel);
+    KeyEventRing ring = new KeyEventRing(RING_CAPACITY);
+    CompletableFuture<Void> reader =
+        CompletableFuture.runAsync(() -> read(channel, ring), executor);
+    Translator translator = new Translator(handler);
+    try {
+      while (ring.drain(translator)) {
+        /* Continue draining until the reader closes the ring. */
+      }
+      reader.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException u) {
+        throw u.getCause();
+      }
+      throw e;
+    } finally {
+      ring.abandon();
+    }
+    return translator.count;
+  }
+
+  private static void read(ReadableByteChannel channel, KeyEventRing ring) {
+    ByteBuffer buffer =
+        ByteBuffer.allocateDirect(BATCH_EVENTS * EVENT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    KeyEventRing.Sink sink = ring::put;
+    try {
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        decode(buffer, sink);
+        ring.publish();
+        buffer.compact();
+      }
+      if (buffer.position() != 0) {
+        LOGGER.warn("Ignored a trailing partial event of {} bytes.", buffer.position());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (CancellationException e) {
+      LOGGER.debug("Stopped reading, consumer abandoned.");
+    } finally {
+      ring.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("keymap", keymap).toString();
+  }
+}
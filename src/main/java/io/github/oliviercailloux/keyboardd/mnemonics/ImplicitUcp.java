@@ -8,11 +8,11 @@ public record ImplicitUcp (int ucp) implements CanonicalKeysymEntry {
   }
 
   public static ImplicitUcp byCode(int code) {
-    return new ImplicitUcp(UcpByCode.IMPLICIT_UCP_BY_CODE.apply(code));
+    return new ImplicitUcp(UcpByCode.implicitUcp(code));
   }
 
   public int code() {
-    return UcpByCode.CODE_BY_IMPLICIT_UCP.apply(ucp);
+    return UcpByCode.implicitCode(ucp);
   }
 
   public String asString() {
@@ -0,0 +1,122 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of key events between one producer thread and one consumer thread, lock free.
+ * The events are stored in primitive arrays used as a ring; the producer publishes them by batches
+ * and the consumer takes all the published ones at once, so that the threads synchronize once per
+ * batch rather than once per event.
+ */
+class KeyEventRing {
+  /** Receives the events taken from the ring. */
+  @FunctionalInterface
+  static interface Sink {
+    void accept(long timeMicros, int keycode, int value);
+  }
+
+  private static final int SPINS = 100;
+  private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final int mask;
+  private final long[] times;
+  private final int[] keycodes;
+  private final int[] values;
+  /** The number of events made visible to the consumer; written by the producer only. */
+  private final AtomicLong published;
+  /** The number of events taken by the consumer; written by the consumer only. */
+  private final AtomicLong consumed;
+  /** The number of events put so far, published or not; used by the producer only. */
+  private long written;
+  private volatile boolean closed;
+  private volatile boolean abandoned;
+
+  KeyEventRing(int capacity) {
+    checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1);
+    mask = capacity - 1;
+    times = new long[capacity];
+    keycodes = new int[capacity];
+    values = new int[capacity];
+    published = new AtomicLong();
+    consumed = new AtomicLong();
+    written = 0;
+    closed = false;
+    abandoned = false;
+  }
+
+  /**
+   * Puts an event, without publishing it, waiting for room if the ring is full (publishing the
+   * pending events meanwhile).
+   *
+   * @throws CancellationException if the consumer has abandoned
+   */
+  void put(long timeMicros, int keycode, int value) {
+    int spins = 0;
+    while (written - consumed.get() > mask) {
+      if (abandoned) {
+        throw new CancellationException("Consumer abandoned.");
+      }
+      publish();
+      spins = idle(spins);
+    }
+    int index = (int) written & mask;
+    times[index] = timeMicros;
+    keycodes[index] = keycode;
+    values[index] = value;
+    ++written;
+  }
+
+  /** Makes the events put so far visible to the consumer. */
+  void publish() {
+    published.setRelease(written);
+  }
+
+  /** Publishes the events put so far and indicates that no more will come. */
+  void close() {
+    publish();
+    closed = true;
+  }
+
+  /**
+   * Gives the published events not yet taken to the given sink, waiting for some if there are
+   * none.
+   *
+   * @return {@code false} iff the ring is closed and all its events have been taken
+   */
+  boolean drain(Sink sink) {
+    long from = consumed.get();
+    int spins = 0;
+    long to;
+    while ((to = published.getAcquire()) == from) {
+      if (closed && published.getAcquire() == from) {
+        return false;
+      }
+      spins = idle(spins);
+    }
+    for (long sequence = from; sequence < to; ++sequence) {
+      int index = (int) sequence & mask;
+      sink.accept(times[index], keycodes[index], values[index]);
+    }
+    consumed.setRelease(to);
+    return true;
+  }
+
+  /** Indicates that the consumer will take no more events, so that the producer stops waiting. */
+  void abandon() {
+    abandoned = true;
+  }
+
+  private static int idle(int spins) {
+    if (spins < SPINS) {
+      Thread.onSpinWait();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+    return spins + 1;
+  }
+}
@@ -0,0 +1,322 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mnemonics.KeystrokePlanner.Keystroke;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The number of times each level of each group of each key of a keyboard map is used to type a
+ * text corpus, as planned by a {@link KeystrokePlanner}, and the number of code points of the
+ * corpus that can’t be typed.
+ * <p>
+ * The corpus is memory mapped and split in chunks (at code point boundaries) counted in parallel,
+ * each into its own array of counters, the arrays being summed at the end. The UTF-8 bytes are
+ * decoded in place and the slot counted for each code point of the basic multilingual plane is
+ * memoized in a flat array, so that counting allocates nothing per character (supplementary code
+ * points go through the memo of the planner). Malformed sequences (including overlong forms and
+ * encoded surrogates) count as untypeable replacement characters, as with the JDK decoder.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public class KeyUsage {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyUsage.class);
+
+  private static final int CHUNK_SIZE = 1 << 24;
+  /** In the slot memo: not yet searched for. */
+  private static final int UNKNOWN = 0;
+  /** In the slot memo: the code point can’t be typed. */
+  private static final int UNTYPEABLE = -1;
+  private static final int REPLACEMENT = 0xFFFD;
+
+  /**
+   * Counts the usage of the keys needed to type the given UTF-8 corpus, using the common fork join
+   * pool.
+   *
+   * @param planner the planner that gives the keystroke of each code point
+   * @param corpus the file
+   * @return the key usage
+   * @throws IOException if an I/O error occurs while reading
+   */
+  public static KeyUsage count(KeystrokePlanner planner, Path corpus) throws IOException {
+    return count(planner, corpus, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Counts the usage of the keys needed to type the given UTF-8 corpus, using the given executor.
+   *
+   * @param planner the planner that gives the keystroke of each code point
+   * @param corpus the file
+   * @param executor the executor that counts the chunks
+   * @return the key usage
+   * @throws IOException if an I/O error occurs while reading
+   */
+  public static KeyUsage count(KeystrokePlanner planner, Path corpus, Executor executor)
+      throws IOException {
+    return count(planner, corpus, executor, CHUNK_SIZE);
+  }
+
+  /** Counts the usage of the keys, splitting the corpus in chunks of about the given size. */
+  static KeyUsage count(KeystrokePlanner planner, Path corpus, Executor executor, int chunkSize)
+      throws IOException {
+    checkNotNull(executor);
+    checkArgument(chunkSize >= 1);
+    Counter counter = new Counter(planner);
+    try (FileChannel channel = FileChannel.open(corpus, StandardOpenOption.READ)) {
+      ImmutableList<Long> starts = KeystrokePlanner.chunkStarts(channel, chunkSize);
+      ImmutableList<CompletableFuture<long[]>> chunks = IntStream.range(0, starts.size() - 1)
+          .mapToObj(i -> CompletableFuture.supplyAsync(
+              () -> counter.count(channel, starts.get(i), starts.get(i + 1)), executor))
+          .collect(ImmutableList.toImmutableList());
+      try {
+        /* Waits for every chunk, even after a failure, as they map the channel until done. */
+        CompletableFuture.allOf(chunks.toArray(CompletableFuture<?>[]::new)).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof UncheckedIOException u) {
+          throw u.getCause();
+        }
+        throw e;
+      }
+      long[] counts = new long[counter.nbSlots + 1];
+      for (CompletableFuture<long[]> chunk : chunks) {
+        long[] chunkCounts = chunk.join();
+        for (int i = 0; i < counts.length; ++i) {
+          counts[i] += chunkCounts[i];
+        }
+      }
+      return new KeyUsage(counter.names, counter.nbGroups, counter.nbLevels, counts);
+    }
+  }
+
+  /**
+   * Counts the chunks of a corpus. The slots of the counters are indexed by key, then group, then
+   * level; the last slot counts the untypeable code points.
+   */
+  private static class Counter {
+    private final KeystrokePlanner planner;
+    private final ImmutableList<String> names;
+    private final ImmutableMap<String, Integer> indexByName;
+    private final int nbGroups;
+    private final int nbLevels;
+    private final int nbSlots;
+    /**
+     * Indexed by code point of the basic multilingual plane: one plus the slot, or a special value.
+     * Races are benign: two searches for the same code point give the same slot.
+     */
+    private final int[] memo;
+
+    private Counter(KeystrokePlanner planner) {
+      this.planner = checkNotNull(planner);
+      KeyboardMap map = planner.map();
+      names = map.names().asList();
+      indexByName = IntStream.range(0, names.size()).boxed()
+          .collect(ImmutableMap.toImmutableMap(names::get, i -> i));
+      int maxGroups = 1;
+      int maxLevels = 1;
+      for (String name : names) {
+        maxGroups = Math.max(maxGroups, map.groupCount(name));
+        for (int group = 1; group <= map.groupCount(name); ++group) {
+          maxLevels = Math.max(maxLevels, map.entries(name, group).size());
+        }
+      }
+      nbGroups = maxGroups;
+      nbLevels = maxLevels;
+      nbSlots = names.size() * nbGroups * nbLevels;
+      memo = new int[Character.MIN_SUPPLEMENTARY_CODE_POINT];
+    }
+
+    private int slot(int codePoint) {
+      if (codePoint < memo.length) {
+        int known = memo[codePoint];
+        if (known == UNKNOWN) {
+          known = search(codePoint);
+          memo[codePoint] = known;
+        }
+        return known == UNTYPEABLE ? nbSlots : known - 1;
+      }
+      int found = search(codePoint);
+      return found == UNTYPEABLE ? nbSlots : found - 1;
+    }
+
+    private int search(int codePoint) {
+      Keystroke keystroke = planner.lookup(codePoint);
+      if (keystroke == null) {
+        return UNTYPEABLE;
+      }
+      int key = indexByName.get(keystroke.xKeyName());
+      return (key * nbGroups + keystroke.group() - 1) * nbLevels + keystroke.level();
+    }
+
+    private long[] count(FileChannel channel, long start, long end) {
+      long[] counts = new long[nbSlots + 1];
+      final MappedByteBuffer bytes;
+      try {
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      int limit = bytes.limit();
+      int i = 0;
+      while (i < limit) {
+        int b = bytes.get(i) & 0xFF;
+        final int length;
+        int codePoint;
+        /*
+         * The range of the second byte excludes overlong forms, surrogates and code points beyond
+         * U+10FFFF (Unicode, table 3-7); a malformed sequence counts as one replacement character
+         * and consumes its longest valid prefix.
+         */
+        int lower = 0x80;
+        int upper = 0xBF;
+        if (b < 0x80) {
+          length = 1;
+          codePoint = b;
+        } else if (b >= 0xC2 && b <= 0xDF) {
+          length = 2;
+          codePoint = b & 0x1F;
+        } else if (b >= 0xE0 && b <= 0xEF) {
+          length = 3;
+          codePoint = b & 0x0F;
+          if (b == 0xE0) {
+            lower = 0xA0;
+          } else if (b == 0xED) {
+            upper = 0x9F;
+          }
+        } else if (b >= 0xF0 && b <= 0xF4) {
+          length = 4;
+          codePoint = b & 0x07;
+          if (b == 0xF0) {
+            lower = 0x90;
+          } else if (b == 0xF4) {
+            upper = 0x8F;
+          }
+        } else {
+          length = 1;
+          codePoint = REPLACEMENT;
+        }
+        int read = 1;
+        while (read < length) {
+          int next = i + read < limit ? bytes.get(i + read) & 0xFF : -1;
+          if (next < lower || next > upper) {
+            codePoint = REPLACEMENT;
+            break;
+          }
+          codePoint = codePoint << 6 | (next & 0x3F);
+          lower = 0x80;
+          upper = 0xBF;
+          ++read;
+        }
+        ++counts[slot(codePoint)];
+        i += read;
+      }
+      return counts;
+    }
+  }
+
+  private final ImmutableList<String> names;
+  private final ImmutableMap<String, Integer> indexByName;
+  private final int nbGroups;
+  private final int nbLevels;
+  /** Indexed as the slots of the counter, followed by the number of untypeable code points. */
+  private final long[] counts;
+
+  private KeyUsage(ImmutableList<String> names, int nbGroups, int nbLevels, long[] counts) {
+    this.names = checkNotNull(names);
+    indexByName = IntStream.range(0, names.size()).boxed()
+        .collect(ImmutableMap.toImmutableMap(names::get, i -> i));
+    this.nbGroups = nbGroups;
+    this.nbLevels = nbLevels;
+    this.counts = checkNotNull(counts);
+    checkArgument(counts.length == names.size() * nbGroups * nbLevels + 1);
+  }
+
+  /**
+   * The number of times the given level of the given group of the given key is used.
+   *
+   * @param xKeyName an X key name
+   * @param group the group, from one
+   * @param level the level, from one
+   * @return zero if the key is not in the keyboard map, or has no such level
+   */
+  public long count(String xKeyName, int group, int level) {
+    Integer key = indexByName.get(xKeyName);
+    if (key == null || group < 1 || group > nbGroups || level < 1 || level > nbLevels) {
+      return 0;
+    }
+    return counts[(key * nbGroups + group - 1) * nbLevels + level - 1];
+  }
+
+  /**
+   * The number of times the given key is used, at any group and level.
+   *
+   * @param xKeyName an X key name
+   * @return zero if the key is not in the keyboard map
+   */
+  public long count(String xKeyName) {
+    Integer key = indexByName.get(xKeyName);
+    if (key == null) {
+      return 0;
+    }
+    long count = 0;
+    int perKey = nbGroups * nbLevels;
+    for (int i = key * perKey; i < (key + 1) * perKey; ++i) {
+      count += counts[i];
+    }
+    return count;
+  }
+
+  /**
+   * The number of times each key of the keyboard map is used, at any group and level.
+   *
+   * @return the counts, keyed by X key name, in the order of the keyboard map
+   */
+  public ImmutableMap<String, Long> countByXKeyName() {
+    return names.stream().collect(ImmutableMap.toImmutableMap(n -> n, this::count));
+  }
+
+  /**
+   * The number of code points of the corpus that can’t be typed.
+   *
+   * @return the count
+   */
+  public long untypeable() {
+    return counts[counts.length - 1];
+  }
+
+  /**
+   * The number of code points of the corpus.
+   *
+   * @return the count
+   */
+  public long total() {
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("counts", countByXKeyName())
+        .add("untypeable", untypeable()).toString();
+  }
+}
@@ -0,0 +1,391 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMultiset;
+import com.google.common.collect.TreeMultiset;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.KeysymEntry;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plans the keystrokes needed to type a text using a keyboard map: for each code point, an X key
+ * name, group and level whose entry produces that code point. Among the keys that can produce a
+ * code point, the one with the lowest group, then the lowest level, then coming first in the
+ * keyboard map is chosen. A line feed is typed with the {@code Return} keysym, a tab with the
+ * {@code Tab} keysym.
+ * <p>
+ * The keystroke of each code point is searched for (using the reverse index of the keyboard map)
+ * on first encounter, then memoized, so that planning a long text costs about an array read per
+ * code point. Files are read in a streaming fashion, or split in chunks that are planned in
+ * parallel.
+ * <p>
+ * Instances of this class are safe for concurrent use.
+ */
+public class KeystrokePlanner {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeystrokePlanner.class);
+
+  /**
+   * A key to press at some level of some group.
+   *
+   * @param xKeyName the X key name
+   * @param group the group, from one
+   * @param level the level, from one
+   */
+  public static record Keystroke (String xKeyName, int group, int level) {
+    public Keystroke {
+      checkNotNull(xKeyName);
+      checkArgument(group >= 1);
+      checkArgument(level >= 1);
+    }
+  }
+
+  /**
+   * The keystrokes that type a text, in order, omitting the code points that the keyboard map
+   * can’t type, and those code points, with their number of occurrences.
+   *
+   * @param keystrokes the keystrokes
+   * @param untypeable the code points that can’t be typed
+   */
+  public static record Plan (ImmutableList<Keystroke> keystrokes,
+      ImmutableSortedMultiset<Integer> untypeable) {
+    public Plan {
+      checkNotNull(keystrokes);
+      checkNotNull(untypeable);
+    }
+
+    /**
+     * Returns the proportion of code points of the text that can be typed.
+     *
+     * @return one if the text is empty
+     */
+    public double coverage() {
+      int total = keystrokes.size() + untypeable.size();
+      return total == 0 ? 1d : (double) keystrokes.size() / total;
+    }
+  }
+
+  /** Accumulates the plan of a text. */
+  private static class PlanBuilder {
+    private final ImmutableList.Builder<Keystroke> keystrokes = ImmutableList.builder();
+    private final TreeMultiset<Integer> untypeable = TreeMultiset.create();
+
+    private void add(PlanBuilder other) {
+      keystrokes.addAll(other.keystrokes.build());
+      untypeable.addAll(other.untypeable);
+    }
+
+    private Plan build() {
+      return new Plan(keystrokes.build(), ImmutableSortedMultiset.copyOfSorted(untypeable));
+    }
+  }
+
+  private static final int RETURN_CODE = 0xFF0D;
+  private static final int TAB_CODE = 0xFF09;
+  private static final int CHUNK_SIZE = 1 << 20;
+  /** Memoizes that a code point can’t be typed. */
+  private static final Object UNTYPEABLE = new Object();
+
+  public static KeystrokePlanner using(KeyboardMap map, Mnemonics mnemonics) {
+    return new KeystrokePlanner(map, mnemonics);
+  }
+
+  private final KeyboardMap map;
+  private final Mnemonics mnemonics;
+  /**
+   * Indexed by code point of the basic multilingual plane: a keystroke, {@link #UNTYPEABLE}, or
+   * {@code null} if not yet searched for. Races are benign: a keystroke has only final fields and
+   * two searches for the same code point give equal results.
+   */
+  private final Object[] bmpMemo;
+  private final ConcurrentMap<Integer, Object> supplementaryMemo;
+
+  private KeystrokePlanner(KeyboardMap map, Mnemonics mnemonics) {
+    this.map = checkNotNull(map);
+    this.mnemonics = checkNotNull(mnemonics);
+    bmpMemo = new Object[Character.MIN_SUPPLEMENTARY_CODE_POINT];
+    supplementaryMemo = new ConcurrentHashMap<>();
+  }
+
+  KeyboardMap map() {
+    return map;
+  }
+
+  /**
+   * Returns the keystroke that types the given code point.
+   *
+   * @param codePoint a Unicode code point
+   * @return empty iff the keyboard map can’t type it
+   */
+  public Optional<Keystroke> keystroke(int codePoint) {
+    return Optional.ofNullable(lookup(codePoint));
+  }
+
+  /** Returns {@code null} iff the code point can’t be typed. */
+  Keystroke lookup(int codePoint) {
+    final Object memoized;
+    if (codePoint >= 0 && codePoint < bmpMemo.length) {
+      Object known = bmpMemo[codePoint];
+      if (known == null) {
+        known = search(codePoint);
+        bmpMemo[codePoint] = known;
+      }
+      memoized = known;
+    } else {
+      memoized = supplementaryMemo.computeIfAbsent(codePoint, this::search);
+    }
+    return memoized == UNTYPEABLE ? null : (Keystroke) memoized;
+  }
+
+  private Object search(int codePoint) {
+    int targetCode = switch (codePoint) {
+      case '\n' -> RETURN_CODE;
+      case '\t' -> TAB_CODE;
+      default -> -1;
+    };
+    Set<String> candidates = new LinkedHashSet<>();
+    if (targetCode == -1) {
+      candidates.addAll(map.namesFromUcp(codePoint));
+      if (mnemonics.hasUcp(codePoint)) {
+        CanonicalMnemonic canonical = mnemonics.canonicalByUcp(codePoint);
+        canonical.mnemonics().forEach(m -> candidates.addAll(map.namesFromMnemonic(m)));
+        candidates.addAll(map.namesFromCode(canonical.code()));
+      }
+      if (UcpByCode.isImplicitUcp(codePoint)) {
+        candidates.addAll(map.namesFromCode(UcpByCode.implicitCode(codePoint)));
+      }
+    } else {
+      candidates.addAll(map.namesFromCode(targetCode));
+      if (mnemonics.hasCode(targetCode)) {
+        mnemonics.canonicalByCode(targetCode).mnemonics()
+            .forEach(m -> candidates.addAll(map.namesFromMnemonic(m)));
+      }
+    }
+
+    Keystroke best = null;
+    for (String name : map.names()) {
+      if (!candidates.contains(name)) {
+        continue;
+      }
+      for (int group = 1; group <= map.groupCount(name); ++group) {
+        ImmutableList<KeysymEntry> entries = map.entries(name, group);
+        for (int level = 1; level <= entries.size(); ++level) {
+          KeysymEntry entry = entries.get(level - 1);
+          boolean matches = targetCode == -1 ? ucp(entry) == codePoint : code(entry) == targetCode;
+          if (matches && (best == null || group < best.group()
+              || (group == best.group() && level < best.level()))) {
+            best = new Keystroke(name, group, level);
+          }
+        }
+      }
+    }
+    return best == null ? UNTYPEABLE : best;
+  }
+
+  /** Returns the UCP of the given entry, or -1. */
+  private int ucp(KeysymEntry entry) {
+    if (entry instanceof KeysymEntry.Ucp u) {
+      return u.ucp();
+    }
+    int code = code(entry);
+    if (code == -1) {
+      return -1;
+    }
+    if (mnemonics.hasCode(code)) {
+      return mnemonics.canonicalByCode(code).ucp().orElse(-1);
+    }
+    return UcpByCode.isImplicitCode(code) ? UcpByCode.implicitUcp(code) : -1;
+  }
+
+  /** Returns the keysym code of the given entry, or -1. */
+  private int code(KeysymEntry entry) {
+    if (entry instanceof KeysymEntry.Code c) {
+      return c.keysymCode();
+    }
+    if (entry instanceof KeysymEntry.Ucp u) {
+      return mnemonics.hasUcp(u.ucp()) ? mnemonics.canonicalByUcp(u.ucp()).code()
+          : UcpByCode.isImplicitUcp(u.ucp()) ? UcpByCode.implicitCode(u.ucp()) : -1;
+    }
+    String mnemonic = ((KeysymEntry.Mnemonic) entry).keysymMnemonic();
+    int id = mnemonics.nameIndex().id(mnemonic);
+    return id == MnemonicNameIndex.ABSENT ? -1 : mnemonics.canonicalById(id).code();
+  }
+
+  /**
+   * Plans the keystrokes that type the given text.
+   *
+   * @param text the text
+   * @return the plan
+   */
+  public Plan plan(CharSequence text) {
+    PlanBuilder builder = new PlanBuilder();
+    planInto(text, builder);
+    return builder.build();
+  }
+
+  private void planInto(CharSequence text, PlanBuilder builder) {
+    int length = text.length();
+    int i = 0;
+    while (i < length) {
+      int codePoint = Character.codePointAt(text, i);
+      Keystroke keystroke = lookup(codePoint);
+      if (keystroke == null) {
+        builder.untypeable.add(codePoint);
+      } else {
+        builder.keystrokes.add(keystroke);
+      }
+      i += Character.charCount(codePoint);
+    }
+  }
+
+  /**
+   * Plans the keystrokes that type the given text, reading it progressively.
+   *
+   * @param text the text, which this method does not close
+   * @return the plan
+   * @throws IOException if an I/O error occurs while reading
+   */
+  public Plan plan(Reader text) throws IOException {
+    PlanBuilder builder = new PlanBuilder();
+    CharBuffer buffer = CharBuffer.allocate(8192);
+    while (text.read(buffer) != -1) {
+      buffer.flip();
+      /* Keeps a high surrogate that ends the buffer for the next read. */
+      boolean split = buffer.hasRemaining()
+          && Character.isHighSurrogate(buffer.get(buffer.limit() - 1));
+      int end = split ? buffer.limit() - 1 : buffer.limit();
+      planInto(buffer.subSequence(0, end), builder);
+      buffer.position(end);
+      buffer.compact();
+    }
+    buffer.flip();
+    planInto(buffer, builder);
+    return builder.build();
+  }
+
+  /**
+   * Plans the keystrokes that type the given UTF-8 file, reading it progressively.
+   *
+   * @param file the file
+   * @return the plan
+   * @throws IOException if an I/O error occurs while reading, or if the file is not valid UTF-8
+   */
+  public Plan plan(Path file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      return plan(reader);
+    }
+  }
+
+  /**
+   * Plans the keystrokes that type the given UTF-8 file, splitting it into chunks (at code point
+   * boundaries) planned in parallel using the common fork join pool.
+   *
+   * @param file the file
+   * @return the plan, equal to the one returned by {@link #plan(Path)}
+   * @throws IOException if an I/O error occurs while reading, or if the file is not valid UTF-8
+   */
+  public Plan planInParallel(Path file) throws IOException {
+    return planInParallel(file, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Plans the keystrokes that type the given UTF-8 file, splitting it into chunks (at code point
+   * boundaries) planned in parallel using the given executor.
+   *
+   * @param file the file
+   * @param executor the executor that reads and plans the chunks
+   * @return the plan, equal to the one returned by {@link #plan(Path)}
+   * @throws IOException if an I/O error occurs while reading, or if the file is not valid UTF-8
+   */
+  public Plan planInParallel(Path file, Executor executor) throws IOException {
+    checkNotNull(executor);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ImmutableList<Long> starts = chunkStarts(channel, CHUNK_SIZE);
+      ImmutableList<CompletableFuture<PlanBuilder>> chunks = IntStream.range(0, starts.size() - 1)
+          .mapToObj(i -> CompletableFuture.supplyAsync(
+              () -> planChunk(channel, starts.get(i), starts.get(i + 1)), executor))
+          .collect(ImmutableList.toImmutableList());
+      try {
+        /* Waits for every chunk, even after a failure, as they read the channel until done. */
+        CompletableFuture.allOf(chunks.toArray(CompletableFuture<?>[]::new)).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof UncheckedIOException u) {
+          throw u.getCause();
+        }
+        throw e;
+      }
+      PlanBuilder builder = new PlanBuilder();
+      for (CompletableFuture<PlanBuilder> chunk : chunks) {
+        builder.add(chunk.join());
+      }
+      return builder.build();
+    }
+  }
+
+  /**
+   * Returns the start offsets of the chunks of about the given size, followed by the size of the
+   * file. Each chunk starts with a byte that is not a UTF-8 continuation byte.
+   */
+  static ImmutableList<Long> chunkStarts(FileChannel channel, int chunkSize) throws IOException {
+    long size = channel.size();
+    ImmutableList.Builder<Long> starts = ImmutableList.builder();
+    starts.add(0L);
+    ByteBuffer oneByte = ByteBuffer.allocate(1);
+    long start = chunkSize;
+    while (start < size) {
+      oneByte.clear();
+      channel.read(oneByte, start);
+      if ((oneByte.get(0) & 0xC0) == 0x80) {
+        ++start;
+        continue;
+      }
+      starts.add(start);
+      start += chunkSize;
+    }
+    starts.add(size);
+    return starts.build();
+  }
+
+  private PlanBuilder planChunk(FileChannel channel, long start, long end) {
+    ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(end - start));
+    try {
+      while (bytes.hasRemaining()) {
+        int read = channel.read(bytes, start + bytes.position());
+        if (read == -1) {
+          throw new IOException("File shrunk while reading.");
+        }
+      }
+      bytes.flip();
+      CharBuffer text = StandardCharsets.UTF_8.newDecoder().decode(bytes);
+      PlanBuilder builder = new PlanBuilder();
+      planInto(text, builder);
+      return builder;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
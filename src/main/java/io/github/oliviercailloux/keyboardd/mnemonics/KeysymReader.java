@@ -4,19 +4,32 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Verify.verify;
 
 import com.google.common.base.VerifyException;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Sets;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Streams;
 import com.google.common.io.CharSource;
 import com.google.common.io.Resources;
-import io.github.oliviercailloux.keyboardd.utils.ParseUtils;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher.LineMatcher;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher.Rule;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -110,10 +123,26 @@ class KeysymReader {
   private static final Pattern P_XKB_COMMENT_DEPRECATED =
       Pattern.compile("^#define XKB_KEY_(?<name>[^ ]+) + 0x(?<code>[0-9a-fA-F]+)  "
           + "/\\* deprecated((, )| )?(?<commentRemaining>[^\\*]*) \\*/$");
-  private static final ImmutableSet<Pattern> PATTERNS_START = ImmutableSet.of(P_XKB_NO_COMMENT,
-      P_XKB_UNICODE_MORE_SPECIFIC, P_XKB_UNICODE_DEPRECATED, P_XKB_COMMENT);
-  private static final ImmutableSet<Pattern> PATTERNS_COMMENTS =
-      ImmutableSet.of(P_XKB_COMMENT_ALIAS, P_XKB_COMMENT_UNICODE, P_XKB_COMMENT_DEPRECATED);
+  private static final String DEFINE = "#define XKB_KEY_";
+  static final PatternDispatcher DISPATCHER_START =
+      PatternDispatcher.using(Rule.marker(P_XKB_UNICODE_MORE_SPECIFIC, DEFINE, "/*<"),
+          Rule.marker(P_XKB_UNICODE_DEPRECATED, DEFINE, "/*("),
+          Rule.marker(P_XKB_COMMENT, DEFINE, "/*"), Rule.prefix(P_XKB_NO_COMMENT, DEFINE));
+  static final PatternDispatcher DISPATCHER_COMMENTS =
+      PatternDispatcher.using(Rule.marker(P_XKB_COMMENT_UNICODE, DEFINE, "/* U+"),
+          Rule.marker(P_XKB_COMMENT_DEPRECATED, DEFINE, "/* deprecated"),
+          Rule.marker(P_XKB_COMMENT_ALIAS, DEFINE, "/* Alias for "),
+          Rule.marker(P_XKB_COMMENT_ALIAS, DEFINE, "/* alias for "),
+          Rule.marker(P_XKB_COMMENT_ALIAS, DEFINE, "/* Same as XKB_KEY_"),
+          Rule.marker(P_XKB_COMMENT_ALIAS, DEFINE, "/* same as XKB_KEY_"));
+
+  /** The name of the resource containing the latest version of the mnemonics. */
+  static final String LATEST_RESOURCE_NAME = "xkbcommon-keysyms - 238d13.h";
+
+  static CharSource latestSource() {
+    return Resources.asCharSource(KeysymReader.class.getResource(LATEST_RESOURCE_NAME),
+        StandardCharsets.UTF_8);
+  }
 
   /**
    * Returns the latest version of the mnemonics, as included in this library. This will evolve with
@@ -122,8 +151,7 @@ class KeysymReader {
    * @return the latest version of the mnemonics.
    */
   public static ImmutableSet<ParsedMnemonic> latest() {
-    CharSource keysyms = Resources.asCharSource(
-        KeysymReader.class.getResource("xkbcommon-keysyms - 238d13.h"), StandardCharsets.UTF_8);
+    CharSource keysyms = latestSource();
     ImmutableSet<ParsedMnemonic> latest;
     try {
       latest = parse(keysyms);
@@ -134,26 +162,79 @@ class KeysymReader {
   }
 
   public static ImmutableSet<ParsedMnemonic> parse(CharSource keysyms) throws IOException {
-    ImmutableList<String> lines = keysyms.readLines();
-
-    final ImmutableSet.Builder<ParsedMnemonic> keysymBuilder = new ImmutableSet.Builder<>();
+    try (Reader reader = keysyms.openBufferedStream();
+        Stream<ParsedMnemonic> parsed = stream(reader)) {
+      return parsed.collect(ImmutableSet.toImmutableSet());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
 
-    for (String line : lines) {
-      Optional<Matcher> matcherStartOpt = ParseUtils.matcherOpt(line, PATTERNS_START);
-      if (!matcherStartOpt.isPresent()) {
-        continue;
+  /**
+   * Parses the given file lazily, as the returned stream is consumed. The caller should close the
+   * returned stream, which closes the file.
+   *
+   * @param keysyms a file in the format of xkbcommon-keysyms.h, encoded in UTF-8
+   * @return a sequential stream of the entries in the file (see {@link #stream(Reader)})
+   * @throws IOException if an I/O error occurs opening the file
+   */
+  public static Stream<ParsedMnemonic> stream(Path keysyms) throws IOException {
+    BufferedReader reader = Files.newBufferedReader(keysyms, StandardCharsets.UTF_8);
+    return stream(reader).onClose(() -> {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
-      Matcher matcherStart = matcherStartOpt.orElseThrow(VerifyException::new);
-      ParsedMnemonic parsed = parseLine(matcherStart);
-      keysymBuilder.add(parsed);
-    }
+    });
+  }
 
-    ImmutableSet<ParsedMnemonic> keysymsSet = keysymBuilder.build();
-    check(keysymsSet);
-    return keysymsSet;
+  /**
+   * Parses the given source lazily, line by line, as the returned stream is consumed, without
+   * keeping the lines read so far. The properties documented in this class are checked
+   * incrementally: the stream throws an {@link IllegalArgumentException} as soon as an entry
+   * violates them, or when reaching the end of the source if the violation can only be detected
+   * then.
+   * <p>
+   * The stream contains one element per entry in the source, thus, duplicates if the source
+   * contains duplicated entries. It throws an {@link UncheckedIOException} if an I/O error occurs.
+   * Closing the stream does not close the given reader.
+   *
+   * @param keysyms a source in the format of xkbcommon-keysyms.h
+   * @return a sequential stream of the entries in the source
+   */
+  public static Stream<ParsedMnemonic> stream(Reader keysyms) {
+    BufferedReader reader =
+        keysyms instanceof BufferedReader b ? b : new BufferedReader(keysyms);
+    IncrementalChecker checker = new IncrementalChecker();
+    LineMatcher startMatcher = DISPATCHER_START.lineMatcher();
+    LineMatcher commentsMatcher = DISPATCHER_COMMENTS.lineMatcher();
+    Iterator<ParsedMnemonic> iterator = new AbstractIterator<>() {
+      @Override
+      protected ParsedMnemonic computeNext() {
+        String line;
+        try {
+          line = reader.readLine();
+          while (line != null) {
+            Optional<Matcher> matcherStartOpt = startMatcher.matcherOpt(line);
+            if (matcherStartOpt.isPresent()) {
+              ParsedMnemonic parsed = parseLine(matcherStartOpt.orElseThrow(), commentsMatcher);
+              checker.add(parsed);
+              return parsed;
+            }
+            line = reader.readLine();
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        checker.end();
+        return endOfData();
+      }
+    };
+    return Streams.stream(iterator);
   }
 
-  private static ParsedMnemonic parseLine(Matcher matcherStart) {
+  private static ParsedMnemonic parseLine(Matcher matcherStart, LineMatcher commentsMatcher) {
     ParsedMnemonic parsed;
     String name = matcherStart.group("name");
     String codeStr = matcherStart.group("code");
@@ -171,8 +252,7 @@ class KeysymReader {
     } else {
       verify(matcherStart.pattern().equals(P_XKB_COMMENT));
       String comment = matcherStart.group("comment");
-      Optional<Matcher> matcherCommentsOpt =
-          ParseUtils.matcherOpt(matcherStart.group(), PATTERNS_COMMENTS);
+      Optional<Matcher> matcherCommentsOpt = commentsMatcher.matcherOpt(matcherStart.group());
       if (!matcherCommentsOpt.isPresent()) {
         parsed = (ParsedMnemonic.commented(name, code, comment));
       } else {
@@ -199,39 +279,59 @@ class KeysymReader {
     return parsed;
   }
 
-  private static void check(Set<ParsedMnemonic> mns) {
-    /* The mnemonics that correspond to a given keysym code correspond to at most one UCP. */
-    ImmutableSetMultimap<Integer, ParsedMnemonic> mnsByCode =
-        mns.stream().collect(ImmutableSetMultimap.toImmutableSetMultimap(m -> m.code(), m -> m));
-    for (int code : mnsByCode.keySet()) {
-      ImmutableSet<ParsedMnemonic> mnsForCode = mnsByCode.get(code);
-      ImmutableSet<Integer> ucpsAll = mnsForCode.stream().map(m -> m.unicode())
-          .flatMap(Optional::stream).collect(ImmutableSet.toImmutableSet());
-
-      checkArgument(ucpsAll.size() <= 1,
-          "Code 0x%s, UCPs %s.".formatted(Integer.toHexString(code), ucpsAll.toString()));
+  /**
+   * Checks the properties documented in this class as entries are added, keeping only, for each
+   * code, its UCP, and for each UCP, its codes.
+   */
+  private static class IncrementalChecker {
+    private final Map<Integer, Integer> ucpByCode = new HashMap<>();
+    /**
+     * For each UCP, the codes of the non deprecated and non specific mnemonics that correspond to
+     * it.
+     */
+    private final SetMultimap<Integer, Integer> codesByUcp =
+        MultimapBuilder.hashKeys().hashSetValues(2).build();
+
+    public void add(ParsedMnemonic mn) {
+      if (mn.unicode().isEmpty()) {
+        return;
+      }
+      int code = mn.code();
+      int ucp = mn.unicode().orElseThrow();
+      /* The mnemonics that correspond to a given keysym code correspond to at most one UCP. */
+      Integer previousUcp = ucpByCode.putIfAbsent(code, ucp);
+      if (previousUcp != null && previousUcp != ucp) {
+        throw new IllegalArgumentException(
+            "Code 0x%s, UCPs %s.".formatted(Integer.toHexString(code), List.of(previousUcp, ucp)));
+      }
+
+      if (mn.deprecated() || mn.specific()) {
+        return;
+      }
+      /*
+       * All non deprecated and non specific mnemonics corresponding to a given UCP correspond to
+       * the same keysym code, or exactly one of them corresponds to a keysym code in the range
+       * UcpByCode#IMPLICIT_UCP_KEYSYM_CODES. Having two implicit codes is detected here; having
+       * none is detected at the end.
+       */
+      Set<Integer> codesForUcp = codesByUcp.get(ucp);
+      if (UcpByCode.isImplicitCode(code) && !codesForUcp.contains(code)) {
+        boolean hasImplicit =
+            codesForUcp.stream().anyMatch(UcpByCode::isImplicitCode);
+        checkArgument(!hasImplicit, "Ucp %s, codes %s, %s.".formatted(ucp, codesForUcp, code));
+      }
+      codesForUcp.add(code);
     }
 
-    /*
-     * All non deprecated and non specific mnemonics corresponding to a given UCP correspond to the
-     * same keysym code, or exactly one of them corresponds to a keysym code in the range
-     * UcpByCode#IMPLICIT_UCP_KEYSYM_CODES.
-     */
-    ImmutableSetMultimap<Integer,
-        ParsedMnemonic> mnsByUcp = mns.stream().filter(m -> !m.deprecated())
-            .filter(m -> !m.specific()).filter(m -> m.unicode().isPresent())
-            .collect(ImmutableSetMultimap.toImmutableSetMultimap(
-                m -> m.unicode().orElseThrow(VerifyException::new), m -> m));
-    for (int ucp : mnsByUcp.keySet()) {
-      ImmutableSet<ParsedMnemonic> mnsForUcp = mnsByUcp.get(ucp);
-      ImmutableSet<Integer> codesForUcp =
-          mnsForUcp.stream().map(m -> m.code()).collect(ImmutableSet.toImmutableSet());
-      verify(codesForUcp.size() >= 1);
-      if (codesForUcp.size() >= 2) {
-        ImmutableSet<Integer> implicitCodes =
-            Sets.intersection(codesForUcp, UcpByCode.IMPLICIT_UCP_KEYSYM_CODES).immutableCopy();
-        checkArgument(implicitCodes.size() == 1,
-            "Ucp %s, mns %s.".formatted(ucp, mnsForUcp.toString()));
+    public void end() {
+      for (int ucp : codesByUcp.keySet()) {
+        Set<Integer> codesForUcp = codesByUcp.get(ucp);
+        verify(codesForUcp.size() >= 1);
+        if (codesForUcp.size() >= 2) {
+          checkArgument(
+              codesForUcp.stream().anyMatch(UcpByCode::isImplicitCode),
+              "Ucp %s, codes %s.".formatted(ucp, codesForUcp.toString()));
+        }
       }
     }
   }
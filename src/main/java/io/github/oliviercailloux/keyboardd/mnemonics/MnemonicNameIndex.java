@@ -0,0 +1,180 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * An index of keysym mnemonics that resolves a mnemonic, given as a (slice of a) char sequence, to
+ * its identifier, without allocating.
+ * <p>
+ * The identifier of a mnemonic is its position in the list given at construction. Lookups use an
+ * open addressing hash table; prefix queries use the mnemonics sorted in lexicographic order, and
+ * cost a binary search plus the number of results requested.
+ */
+public class MnemonicNameIndex {
+  /** Returned by lookups for mnemonics that are not in the index. */
+  public static final int ABSENT = -1;
+
+  /**
+   * Creates an index of the given mnemonics.
+   *
+   * @param mnemonics the mnemonics, each one occurring only once, none empty
+   * @return an index
+   */
+  static MnemonicNameIndex from(List<String> mnemonics) {
+    return new MnemonicNameIndex(mnemonics);
+  }
+
+  private final String[] mnemonics;
+  /** Ids in the hash table, ABSENT for empty slots; the size is a power of two. */
+  private final int[] slots;
+  /** Ids sorted by lexicographic order of the corresponding mnemonic. */
+  private final int[] sortedIds;
+
+  private MnemonicNameIndex(List<String> mnemonics) {
+    this.mnemonics = mnemonics.toArray(new String[0]);
+    /* The smallest power of two that is at least twice the number of mnemonics. */
+    int capacity = Integer.highestOneBit(Math.max(1, 2 * this.mnemonics.length - 1)) << 1;
+    slots = new int[capacity];
+    Arrays.fill(slots, ABSENT);
+    for (int id = 0; id < this.mnemonics.length; ++id) {
+      String mnemonic = this.mnemonics[id];
+      checkArgument(!mnemonic.isEmpty());
+      int slot = spread(mnemonic.hashCode()) & (capacity - 1);
+      while (slots[slot] != ABSENT) {
+        checkArgument(!this.mnemonics[slots[slot]].equals(mnemonic), "Duplicate: %s.", mnemonic);
+        slot = (slot + 1) & (capacity - 1);
+      }
+      slots[slot] = id;
+    }
+
+    sortedIds = IntStream.range(0, this.mnemonics.length).boxed()
+        .sorted(Comparator.comparing(id -> this.mnemonics[id])).mapToInt(id -> id).toArray();
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * The number of mnemonics in this index.
+   *
+   * @return the number of mnemonics, equal to one more than the greatest id
+   */
+  public int size() {
+    return mnemonics.length;
+  }
+
+  /**
+   * The mnemonic with the given id.
+   *
+   * @param id a valid id
+   * @return the mnemonic
+   */
+  public String mnemonic(int id) {
+    return mnemonics[id];
+  }
+
+  /**
+   * Returns the id of the given mnemonic.
+   *
+   * @param keysymMnemonic a mnemonic
+   * @return the id, or {@link #ABSENT}
+   */
+  public int id(CharSequence keysymMnemonic) {
+    return id(keysymMnemonic, 0, keysymMnemonic.length());
+  }
+
+  /**
+   * Returns the id of the mnemonic given as the chars in the given range of the given sequence.
+   * Does not allocate.
+   *
+   * @param chars the sequence containing the mnemonic
+   * @param start the start of the mnemonic, inclusive
+   * @param end the end of the mnemonic, exclusive
+   * @return the id, or {@link #ABSENT}
+   */
+  public int id(CharSequence chars, int start, int end) {
+    checkPositionIndexes(start, end, chars.length());
+    int hash = 0;
+    for (int i = start; i < end; ++i) {
+      hash = 31 * hash + chars.charAt(i);
+    }
+    int slot = spread(hash) & (slots.length - 1);
+    while (slots[slot] != ABSENT) {
+      int id = slots[slot];
+      if (contentEquals(mnemonics[id], chars, start, end)) {
+        return id;
+      }
+      slot = (slot + 1) & (slots.length - 1);
+    }
+    return ABSENT;
+  }
+
+  private static boolean contentEquals(String mnemonic, CharSequence chars, int start, int end) {
+    if (mnemonic.length() != end - start) {
+      return false;
+    }
+    for (int i = 0; i < mnemonic.length(); ++i) {
+      if (mnemonic.charAt(i) != chars.charAt(start + i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the mnemonics that start with the given prefix, in lexicographic order, up to the
+   * given number of results.
+   *
+   * @param prefix the prefix, possibly empty
+   * @param limit the maximal number of results
+   * @return at most limit mnemonics
+   */
+  public ImmutableList<String> withPrefix(CharSequence prefix, int limit) {
+    checkArgument(limit >= 0);
+    final ImmutableList.Builder<String> builder = new ImmutableList.Builder<>();
+    int nb = 0;
+    for (int i = firstSortedNotBefore(prefix); i < sortedIds.length && nb < limit; ++i) {
+      String mnemonic = mnemonics[sortedIds[i]];
+      if (!startsWith(mnemonic, prefix)) {
+        break;
+      }
+      builder.add(mnemonic);
+      ++nb;
+    }
+    return builder.build();
+  }
+
+  private int firstSortedNotBefore(CharSequence prefix) {
+    int low = 0;
+    int high = sortedIds.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (CharSequence.compare(mnemonics[sortedIds[middle]], prefix) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static boolean startsWith(String mnemonic, CharSequence prefix) {
+    if (mnemonic.length() < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); ++i) {
+      if (mnemonic.charAt(i) != prefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,21 +1,37 @@
 package io.github.oliviercailloux.keyboardd.mnemonics;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Verify.verify;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.collect.Maps;
 import com.google.common.collect.MoreCollectors;
+import com.google.common.collect.Multimaps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharSource;
 import io.github.oliviercailloux.keyboardd.mapping.KeysymEntry;
 import io.github.oliviercailloux.keyboardd.mnemonics.KeysymReader.ParsedMnemonic;
+import io.github.oliviercailloux.keyboardd.utils.LazyHolder;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -35,7 +51,25 @@ import java.util.Set;
  * <p>
  */
 public class Mnemonics {
+  private static final LazyHolder<Mnemonics> LATEST =
+      LazyHolder.registered("Mnemonics.latest", Mnemonics::loadLatest);
+
+  /**
+   * Returns the latest version of the mnemonics, as included in this library. It is loaded once per
+   * process (see {@link io.github.oliviercailloux.keyboardd.BundledData}), using the binary
+   * snapshot computed at build time when available, otherwise parsing the text resource.
+   *
+   * @return the latest version of the mnemonics.
+   */
   public static Mnemonics latest() {
+    return LATEST.get();
+  }
+
+  private static Mnemonics loadLatest() {
+    Optional<Mnemonics> snapshot = MnemonicsSnapshot.latest();
+    if (snapshot.isPresent()) {
+      return snapshot.orElseThrow();
+    }
     ImmutableSet<ParsedMnemonic> parsedMns = KeysymReader.latest();
     return toMnemonics(parsedMns);
   }
@@ -57,23 +91,39 @@ public class Mnemonics {
      * same ucp or all absent ucp) OR the same ucp (NOT implying the same code). Each such class is
      * then mapped to one canonical mnemonic per code in the class. This mapping depends on the
      * whole equivalence class (it is not separable).
+     *
+     * As a code corresponds to at most one ucp, a class is identified by the ucp of its codes, if
+     * any, and otherwise by its sole code. This permits to build the classes in one pass, keeping
+     * the order of the source both for the classes and within each class.
      */
-    final ImmutableSet.Builder<ImmutableSet<ParsedMnemonic>> equivalenceClassesBuilder =
-        new ImmutableSet.Builder<>();
+    final Map<Integer, Integer> ucpByCode = new HashMap<>();
     for (ParsedMnemonic parsedMn : parsedMns) {
-      equivalenceClassesBuilder.add(parsedMns.stream()
-          .filter(p -> parsedMn.code() == p.code()
-              || (parsedMn.unicode().isPresent() && parsedMn.unicode().equals(p.unicode())))
-          .collect(ImmutableSet.toImmutableSet()));
+      if (parsedMn.unicode().isPresent()) {
+        Integer previous = ucpByCode.put(parsedMn.code(), parsedMn.unicode().orElseThrow());
+        verify(previous == null || previous.equals(parsedMn.unicode().orElseThrow()),
+            parsedMn.toString());
+      }
     }
-    ImmutableSet<ImmutableSet<ParsedMnemonic>> equivalenceClasses =
-        equivalenceClassesBuilder.build();
-    ImmutableSet<CanonicalMnemonic> canonicals = equivalenceClasses.stream()
-        .flatMap(s -> toCanonicalsSoleUcp(s).stream()).collect(ImmutableSet.toImmutableSet());
+    ImmutableListMultimap<EquivalenceClassKey, ParsedMnemonic> equivalenceClasses =
+        Multimaps.index(parsedMns, p -> EquivalenceClassKey.of(p, ucpByCode));
+    ImmutableSet<CanonicalMnemonic> canonicals = equivalenceClasses.asMap().values().stream()
+        .flatMap(s -> toCanonicalsSoleUcp(ImmutableSet.copyOf(s)).stream())
+        .collect(ImmutableSet.toImmutableSet());
 
     return new Mnemonics(canonicals);
   }
 
+  private static record EquivalenceClassKey (boolean byUcp, int value) {
+    public static EquivalenceClassKey of(ParsedMnemonic parsedMn,
+        Map<Integer, Integer> ucpByCode) {
+      Integer ucp = ucpByCode.get(parsedMn.code());
+      if (ucp == null) {
+        return new EquivalenceClassKey(false, parsedMn.code());
+      }
+      return new EquivalenceClassKey(true, ucp);
+    }
+  }
+
   private static ImmutableSet<CanonicalMnemonic>
       toCanonicalsSoleUcp(Set<ParsedMnemonic> parsedMns) {
     Optional<Integer> ucp = soleUcp(parsedMns);
@@ -104,7 +154,7 @@ public class Mnemonics {
   private static int getCodeThatKeepsUcp(Set<ParsedMnemonic> parsedMns) {
     Comparator<ParsedMnemonic> mainComparator = Comparator
         .<ParsedMnemonic, Boolean>comparing(p -> !p.deprecated()).thenComparing(p -> !p.specific())
-        .thenComparing(p -> UcpByCode.IMPLICIT_UCP_KEYSYM_CODES.contains(p.code()));
+        .thenComparing(p -> UcpByCode.isImplicitCode(p.code()));
     Comparator<ParsedMnemonic> comparatorCompatibleWithEquals =
         mainComparator.thenComparing(ParsedMnemonic::mnemonic);
     ImmutableSortedSet<ParsedMnemonic> sortedMns =
@@ -154,28 +204,281 @@ public class Mnemonics {
     return new Mnemonics(canonicalMnemonics);
   }
 
-  private final ImmutableMap<String, CanonicalMnemonic> byMnemonic;
-  private final ImmutableBiMap<Integer, CanonicalMnemonic> byCode;
-  private final ImmutableBiMap<Integer, CanonicalMnemonic> byUcp;
+  /** Marks the absence of UCP in {@link #ucps}. */
+  static final int NO_UCP = -1;
+
+  /*
+   * The canonical mnemonics are stored as parallel arrays, indexed by their position in the set
+   * given at construction (the canonical index). CanonicalMnemonic instances are materialized only
+   * when requested, then kept.
+   */
+  private final int[] codes;
+  /** A UCP or NO_UCP. */
+  private final int[] ucps;
+  private final boolean[] deprecateds;
+  /**
+   * All the mnemonics, grouped by canonical index: the canonical one, then its non deprecated
+   * aliases, then its deprecated aliases.
+   */
+  private final String[] mnemonics;
+  /** Of size one more than the number of canonicals, the start of each group in mnemonics. */
+  private final int[] mnemonicsStarts;
+  /** The start of the deprecated aliases of each group in mnemonics. */
+  private final int[] deprecatedAliasesStarts;
+
+  /** The codes in ascending order, and the corresponding canonical indices. */
+  private final int[] sortedCodes;
+  private final int[] canonicalIndexBySortedCode;
+  /** The UCPs (other than NO_UCP) in ascending order, and the corresponding canonical indices. */
+  private final int[] sortedUcps;
+  private final int[] canonicalIndexBySortedUcp;
+
+  /** Identifies each mnemonic by its position in mnemonics. */
+  private final MnemonicNameIndex nameIndex;
+  private final int[] canonicalIndexByMnemonicId;
+
+  /** Lazily filled; racy initialization is harmless as the records are immutable. */
+  private final CanonicalMnemonic[] materialized;
+
+  private final Supplier<ImmutableMap<String, CanonicalMnemonic>> byMnemonic;
+  private final Supplier<ImmutableBiMap<Integer, CanonicalMnemonic>> byCode;
+  private final Supplier<ImmutableBiMap<Integer, CanonicalMnemonic>> byUcp;
+  private final Supplier<HashCode> fingerprint;
+
+  /**
+   * The canonical mnemonics as parallel arrays, as described by the fields of Mnemonics. The arrays
+   * are not copied.
+   */
+  static record Columns (int[] codes, int[] ucps, boolean[] deprecateds, String[] mnemonics,
+      int[] mnemonicsStarts, int[] deprecatedAliasesStarts) {
+    public static Columns from(Set<CanonicalMnemonic> canonicalMnemonics) {
+      final int nb = canonicalMnemonics.size();
+      final int[] codes = new int[nb];
+      final int[] ucps = new int[nb];
+      final boolean[] deprecateds = new boolean[nb];
+      final int[] mnemonicsStarts = new int[nb + 1];
+      final int[] deprecatedAliasesStarts = new int[nb];
+      final ImmutableList.Builder<String> mnemonicsBuilder = new ImmutableList.Builder<>();
+
+      int canonicalIndex = 0;
+      int mnemonicIndex = 0;
+      for (CanonicalMnemonic canonicalMnemonic : canonicalMnemonics) {
+        codes[canonicalIndex] = canonicalMnemonic.code();
+        ucps[canonicalIndex] = canonicalMnemonic.ucp().orElse(NO_UCP);
+        deprecateds[canonicalIndex] = canonicalMnemonic.deprecated();
+        mnemonicsStarts[canonicalIndex] = mnemonicIndex;
+        deprecatedAliasesStarts[canonicalIndex] =
+            mnemonicIndex + 1 + canonicalMnemonic.nonDeprecatedAliases().size();
+        for (String mnemonic : canonicalMnemonic.mnemonics()) {
+          mnemonicsBuilder.add(mnemonic);
+          ++mnemonicIndex;
+        }
+        ++canonicalIndex;
+      }
+      mnemonicsStarts[nb] = mnemonicIndex;
+      return new Columns(codes, ucps, deprecateds, mnemonicsBuilder.build().toArray(new String[0]),
+          mnemonicsStarts, deprecatedAliasesStarts);
+    }
+
+    Columns {
+      final int nb = codes.length;
+      checkArgument(ucps.length == nb && deprecateds.length == nb);
+      checkArgument(mnemonicsStarts.length == nb + 1 && deprecatedAliasesStarts.length == nb);
+      checkArgument(mnemonicsStarts[0] == 0 && mnemonicsStarts[nb] == mnemonics.length);
+      for (int i = 0; i < nb; ++i) {
+        checkArgument(codes[i] >= 0);
+        checkArgument(ucps[i] >= 0 || ucps[i] == NO_UCP);
+        checkArgument(mnemonicsStarts[i] < deprecatedAliasesStarts[i]);
+        checkArgument(deprecatedAliasesStarts[i] <= mnemonicsStarts[i + 1]);
+        if (deprecateds[i]) {
+          checkArgument(deprecatedAliasesStarts[i] == mnemonicsStarts[i] + 1);
+        }
+      }
+    }
+  }
+
+  static Mnemonics fromColumns(Columns columns) {
+    return new Mnemonics(columns);
+  }
 
   private Mnemonics(Set<CanonicalMnemonic> canonicalMnemonics) {
-    final ImmutableMap.Builder<String, CanonicalMnemonic> byMnemonicBuilder =
-        new ImmutableMap.Builder<>();
-    for (CanonicalMnemonic canonicalMnemonic : canonicalMnemonics) {
-      byMnemonicBuilder.putAll(Maps.asMap(canonicalMnemonic.mnemonics(), m -> canonicalMnemonic));
+    this(Columns.from(canonicalMnemonics));
+  }
+
+  private Mnemonics(Columns columns) {
+    final int nb = columns.codes().length;
+    codes = columns.codes();
+    ucps = columns.ucps();
+    deprecateds = columns.deprecateds();
+    mnemonicsStarts = columns.mnemonicsStarts();
+    deprecatedAliasesStarts = columns.deprecatedAliasesStarts();
+    mnemonics = columns.mnemonics();
+    for (int i = 0; i < mnemonics.length; ++i) {
+      mnemonics[i] = mnemonics[i].intern();
+    }
+    nameIndex = MnemonicNameIndex.from(Arrays.asList(mnemonics));
+    canonicalIndexByMnemonicId = new int[mnemonics.length];
+    for (int i = 0; i < nb; ++i) {
+      Arrays.fill(canonicalIndexByMnemonicId, mnemonicsStarts[i], mnemonicsStarts[i + 1], i);
+    }
+
+    sortedCodes = new int[nb];
+    canonicalIndexBySortedCode = new int[nb];
+    sortIndexed(codes, sortedCodes, canonicalIndexBySortedCode);
+
+    int nbUcps = (int) Arrays.stream(ucps).filter(u -> u != NO_UCP).count();
+    sortedUcps = new int[nbUcps];
+    canonicalIndexBySortedUcp = new int[nbUcps];
+    sortIndexed(ucps, sortedUcps, canonicalIndexBySortedUcp);
+
+    materialized = new CanonicalMnemonic[nb];
+    byMnemonic = Suppliers.memoize(this::toByMnemonic);
+    byCode = Suppliers.memoize(() -> toBiMap(codes));
+    byUcp = Suppliers.memoize(() -> toBiMap(ucps));
+    fingerprint = Suppliers.memoize(this::computeFingerprint);
+  }
+
+  /**
+   * Sorts the given values, ignoring NO_UCP, into the given sorted array, and stores in the given
+   * indices array the position in values of each sorted value.
+   *
+   * @throws IllegalArgumentException iff a value (other than NO_UCP) occurs twice
+   */
+  private static void sortIndexed(int[] values, int[] sorted, int[] indices) {
+    long[] packed = new long[sorted.length];
+    int nb = 0;
+    for (int i = 0; i < values.length; ++i) {
+      if (values[i] != NO_UCP) {
+        packed[nb] = ((long) values[i] << 32) | i;
+        ++nb;
+      }
+    }
+    verify(nb == sorted.length);
+    Arrays.sort(packed);
+    for (int i = 0; i < nb; ++i) {
+      sorted[i] = (int) (packed[i] >>> 32);
+      indices[i] = (int) packed[i];
+      checkArgument(i == 0 || sorted[i - 1] != sorted[i], "Duplicate value: %s.", sorted[i]);
     }
-    byMnemonic = byMnemonicBuilder.build();
+  }
+
+  Columns columns() {
+    return new Columns(codes, ucps, deprecateds, mnemonics, mnemonicsStarts,
+        deprecatedAliasesStarts);
+  }
 
-    byCode = canonicalMnemonics.stream()
-        .collect(ImmutableBiMap.toImmutableBiMap(CanonicalMnemonic::code, c -> c));
+  private CanonicalMnemonic materialize(int canonicalIndex) {
+    CanonicalMnemonic canonical = materialized[canonicalIndex];
+    if (canonical == null) {
+      int start = mnemonicsStarts[canonicalIndex];
+      int deprecatedStart = deprecatedAliasesStarts[canonicalIndex];
+      int end = mnemonicsStarts[canonicalIndex + 1];
+      int ucp = ucps[canonicalIndex];
+      canonical = new CanonicalMnemonic(mnemonics[start], codes[canonicalIndex],
+          ImmutableSet.copyOf(Arrays.asList(mnemonics).subList(start + 1, deprecatedStart)),
+          ImmutableSet.copyOf(Arrays.asList(mnemonics).subList(deprecatedStart, end)),
+          ucp == NO_UCP ? Optional.empty() : Optional.of(ucp), deprecateds[canonicalIndex]);
+      materialized[canonicalIndex] = canonical;
+    }
+    return canonical;
+  }
 
-    byUcp = canonicalMnemonics.stream().filter(c -> c.ucp().isPresent())
-        .collect(ImmutableBiMap.toImmutableBiMap(c -> c.ucp().orElseThrow(), c -> c));
+  private ImmutableMap<String, CanonicalMnemonic> toByMnemonic() {
+    final ImmutableMap.Builder<String, CanonicalMnemonic> builder = new ImmutableMap.Builder<>();
+    for (int i = 0; i < codes.length; ++i) {
+      for (int j = mnemonicsStarts[i]; j < mnemonicsStarts[i + 1]; ++j) {
+        builder.put(mnemonics[j], materialize(i));
+      }
+    }
+    return builder.build();
+  }
+
+  private ImmutableBiMap<Integer, CanonicalMnemonic> toBiMap(int[] keys) {
+    final ImmutableBiMap.Builder<Integer, CanonicalMnemonic> builder =
+        new ImmutableBiMap.Builder<>();
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] != NO_UCP) {
+        builder.put(keys[i], materialize(i));
+      }
+    }
+    return builder.build();
   }
 
   public CanonicalMnemonic canonical(String keysymMnemonic) {
-    checkArgument(byMnemonic.containsKey(keysymMnemonic));
-    return byMnemonic.get(keysymMnemonic);
+    int mnemonicId = nameIndex.id(keysymMnemonic);
+    checkArgument(mnemonicId != MnemonicNameIndex.ABSENT);
+    return canonicalById(mnemonicId);
+  }
+
+  /**
+   * Returns the index of all the mnemonics (canonical or not) known to this object, which permits
+   * to resolve a mnemonic to its id without allocating, and to query mnemonics by prefix.
+   *
+   * @return the index, whose ids are accepted by {@link #canonicalById(int)}
+   */
+  public MnemonicNameIndex nameIndex() {
+    return nameIndex;
+  }
+
+  /**
+   * Returns the canonical mnemonic associated to the mnemonic with the given id, without allocating
+   * once it has been requested a first time.
+   *
+   * @param mnemonicId an id in the {@link #nameIndex() index}, thus, not ABSENT
+   * @return the canonical mnemonic, possibly deprecated
+   */
+  public CanonicalMnemonic canonicalById(int mnemonicId) {
+    checkElementIndex(mnemonicId, canonicalIndexByMnemonicId.length);
+    return materialize(canonicalIndexByMnemonicId[mnemonicId]);
+  }
+
+  /**
+   * Indicates whether the given keysym code is associated to a mnemonic.
+   *
+   * @param keysymCode a keysym code
+   * @return {@code true} iff {@link #canonicalByCode(int)} accepts the given code
+   */
+  public boolean hasCode(int keysymCode) {
+    return Arrays.binarySearch(sortedCodes, keysymCode) >= 0;
+  }
+
+  /**
+   * Indicates whether the given UCP is associated to a mnemonic.
+   *
+   * @param ucp a Unicode code point
+   * @return {@code true} iff {@link #canonicalByUcp(int)} accepts the given UCP
+   */
+  public boolean hasUcp(int ucp) {
+    return ucp != NO_UCP && Arrays.binarySearch(sortedUcps, ucp) >= 0;
+  }
+
+  /**
+   * Returns the canonical mnemonic associated to the given keysym code, without allocating once it
+   * has been requested a first time.
+   *
+   * @param keysymCode a keysym code associated to a mnemonic
+   * @return the canonical mnemonic, possibly deprecated
+   * @throws IllegalArgumentException iff the given code is not associated to a mnemonic
+   */
+  public CanonicalMnemonic canonicalByCode(int keysymCode) {
+    int sortedIndex = Arrays.binarySearch(sortedCodes, keysymCode);
+    checkArgument(sortedIndex >= 0);
+    return materialize(canonicalIndexBySortedCode[sortedIndex]);
+  }
+
+  /**
+   * Returns the canonical mnemonic associated to the given UCP, without allocating once it has been
+   * requested a first time.
+   *
+   * @param ucp a Unicode code point associated to a mnemonic
+   * @return the canonical mnemonic, possibly deprecated
+   * @throws IllegalArgumentException iff the given UCP is not associated to a mnemonic
+   */
+  public CanonicalMnemonic canonicalByUcp(int ucp) {
+    checkArgument(ucp != NO_UCP);
+    int sortedIndex = Arrays.binarySearch(sortedUcps, ucp);
+    checkArgument(sortedIndex >= 0);
+    return materialize(canonicalIndexBySortedUcp[sortedIndex]);
   }
 
   /**
@@ -184,7 +487,7 @@ public class Mnemonics {
    *         deprecated ones
    */
   public ImmutableMap<String, CanonicalMnemonic> byMnemonic() {
-    return byMnemonic;
+    return byMnemonic.get();
   }
 
   /**
@@ -193,7 +496,7 @@ public class Mnemonics {
    *         deprecated ones
    */
   public ImmutableBiMap<Integer, CanonicalMnemonic> byCode() {
-    return byCode;
+    return byCode.get();
   }
 
   /**
@@ -202,18 +505,20 @@ public class Mnemonics {
    *         which might be deprecated
    */
   public ImmutableBiMap<Integer, CanonicalMnemonic> byUcp() {
-    return byUcp;
+    return byUcp.get();
   }
 
   /**
    * This loses entries that are mapped only to deprecated mnemonics.
    */
   public Mnemonics withoutDeprecated() {
-    Set<CanonicalMnemonic> nonDCan = byMnemonic.values().stream().filter(c -> !c.deprecated())
-        .collect(ImmutableSet.toImmutableSet());
-    ImmutableSet<CanonicalMnemonic> nonD = nonDCan.stream().map(Mnemonics::withoutDeprecatedAliases)
-        .collect(ImmutableSet.toImmutableSet());
-    return new Mnemonics(nonD);
+    final ImmutableSet.Builder<CanonicalMnemonic> nonD = new ImmutableSet.Builder<>();
+    for (int i = 0; i < codes.length; ++i) {
+      if (!deprecateds[i]) {
+        nonD.add(withoutDeprecatedAliases(materialize(i)));
+      }
+    }
+    return new Mnemonics(nonD.build());
   }
 
   public CanonicalKeysymEntry canonicalize(KeysymEntry keysymEntry) {
@@ -221,23 +526,83 @@ public class Mnemonics {
     if (keysymEntry instanceof KeysymEntry.Mnemonic mnemonic) {
       canonical = canonical(mnemonic.keysymMnemonic());
     } else if (keysymEntry instanceof KeysymEntry.Ucp ucp) {
-      if (byUcp.containsKey(ucp.ucp())) {
-        canonical = byUcp.get(ucp.ucp());
+      if (hasUcp(ucp.ucp())) {
+        canonical = canonicalByUcp(ucp.ucp());
       } else {
         canonical = ImplicitUcp.byUcp(ucp.ucp());
       }
     } else {
       verify(keysymEntry instanceof KeysymEntry.Code);
       KeysymEntry.Code code = (KeysymEntry.Code) keysymEntry;
-      if (byCode.containsKey(((KeysymEntry.Code) keysymEntry).keysymCode())) {
-        canonical = byCode.get(code.keysymCode());
+      if (hasCode(code.keysymCode())) {
+        canonical = canonicalByCode(code.keysymCode());
       } else {
-        canonical = ImplicitUcp.byCode(((KeysymEntry.Code) keysymEntry).keysymCode());
+        canonical = ImplicitUcp.byCode(code.keysymCode());
       }
     }
     return canonical;
   }
 
+  /**
+   * Returns a 128 bits fingerprint of the canonical mnemonics, computed on first request. Equal
+   * mnemonics have equal fingerprints; the fingerprint depends neither on the order of the
+   * canonical mnemonics or of their aliases nor on the run or the JVM, so that it may serve as a
+   * persistent cache key.
+   *
+   * @return the fingerprint
+   */
+  public HashCode fingerprint() {
+    return fingerprint.get();
+  }
+
+  private HashCode computeFingerprint() {
+    HashFunction function = Hashing.murmur3_128();
+    List<HashCode> canonicalHashes = new ArrayList<>(codes.length);
+    for (int i = 0; i < codes.length; ++i) {
+      Hasher hasher = function.newHasher().putInt(codes[i]).putInt(ucps[i])
+          .putBoolean(deprecateds[i]);
+      int start = mnemonicsStarts[i];
+      putSorted(hasher, Arrays.copyOfRange(mnemonics, start, start + 1));
+      putSorted(hasher, Arrays.copyOfRange(mnemonics, start + 1, deprecatedAliasesStarts[i]));
+      putSorted(hasher,
+          Arrays.copyOfRange(mnemonics, deprecatedAliasesStarts[i], mnemonicsStarts[i + 1]));
+      canonicalHashes.add(hasher.hash());
+    }
+    Hasher hasher = function.newHasher().putInt(codes.length);
+    if (!canonicalHashes.isEmpty()) {
+      hasher.putBytes(Hashing.combineUnordered(canonicalHashes).asBytes());
+    }
+    return hasher.hash();
+  }
+
+  private static void putSorted(Hasher hasher, String[] strings) {
+    Arrays.sort(strings);
+    hasher.putInt(strings.length);
+    for (String string : strings) {
+      hasher.putInt(string.length()).putString(string, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Two mnemonics objects are equal iff they have the same canonical mnemonics.
+   */
+  @Override
+  public boolean equals(Object o2) {
+    if (!(o2 instanceof Mnemonics)) {
+      return false;
+    }
+    final Mnemonics t2 = (Mnemonics) o2;
+    if (this == t2) {
+      return true;
+    }
+    return fingerprint().equals(t2.fingerprint()) && byCode().equals(t2.byCode());
+  }
+
+  @Override
+  public int hashCode() {
+    return fingerprint().asInt();
+  }
+
   private static CanonicalMnemonic withoutDeprecatedAliases(CanonicalMnemonic canonicalMnemonic) {
     return new CanonicalMnemonic(canonicalMnemonic.mnemonic(), canonicalMnemonic.code(),
         canonicalMnemonic.nonDeprecatedAliases(), ImmutableSet.of(), canonicalMnemonic.ucp(),
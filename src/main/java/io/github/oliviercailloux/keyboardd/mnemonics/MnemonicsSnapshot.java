@@ -0,0 +1,150 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.VerifyException;
+import io.github.oliviercailloux.keyboardd.utils.SnapshotUtils;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A binary snapshot of the latest mnemonics included in this library, computed at build time so
+ * that {@link Mnemonics#latest()} does not have to parse and check the text resource.
+ * <p>
+ * The snapshot is a resource named after the text resource it is computed from (which includes a
+ * hash of its content) and also records that name, so that a snapshot of an outdated text resource
+ * is not used.
+ * <p>
+ * The same format is used for snapshots of other sources, identified by another name (see
+ * {@link io.github.oliviercailloux.keyboardd.SystemXkb}).
+ */
+public class MnemonicsSnapshot {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(MnemonicsSnapshot.class);
+
+  static final String LATEST_SNAPSHOT_NAME =
+      KeysymReader.LATEST_RESOURCE_NAME.replaceFirst("\\.h$", ".snapshot");
+
+  /**
+   * Writes the snapshot of the latest mnemonics, parsed from the text resource, into the given
+   * directory of classes (for example, {@code target/classes}).
+   *
+   * @param args the directory of classes
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    checkArgument(args.length == 1, "Expected the classes directory as sole argument.");
+    Path target = Path.of(args[0]).resolve(
+        MnemonicsSnapshot.class.getPackageName().replace('.', '/')).resolve(LATEST_SNAPSHOT_NAME);
+    Mnemonics latest = Mnemonics.fromSource(KeysymReader.latestSource());
+    Files.createDirectories(target.getParent());
+    try (OutputStream output = Files.newOutputStream(target)) {
+      write(latest, output);
+    }
+    LOGGER.info("Wrote {}.", target);
+  }
+
+  /**
+   * Reads the snapshot of the latest mnemonics, if it is available and corresponds to the current
+   * text resource.
+   *
+   * @return empty iff no suitable snapshot is available
+   */
+  static Optional<Mnemonics> latest() {
+    final Optional<ByteBuffer> bufferOpt;
+    try {
+      bufferOpt = SnapshotUtils.read(MnemonicsSnapshot.class.getResource(LATEST_SNAPSHOT_NAME));
+    } catch (IOException e) {
+      throw new VerifyException(e);
+    }
+    if (bufferOpt.isEmpty()) {
+      LOGGER.debug("No snapshot found, will parse.");
+      return Optional.empty();
+    }
+    return read(bufferOpt.orElseThrow(), KeysymReader.LATEST_RESOURCE_NAME);
+  }
+
+  static void write(Mnemonics mnemonics, OutputStream destination) throws IOException {
+    write(mnemonics, KeysymReader.LATEST_RESOURCE_NAME, destination);
+  }
+
+  /**
+   * Writes a snapshot of the given mnemonics.
+   *
+   * @param mnemonics the mnemonics to write
+   * @param sourceName the name that identifies the text the mnemonics have been parsed from
+   * @param destination where to write; not closed
+   * @throws IOException if an I/O error occurs
+   */
+  public static void write(Mnemonics mnemonics, String sourceName, OutputStream destination)
+      throws IOException {
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(destination));
+    SnapshotUtils.putHeader(output, sourceName);
+    Mnemonics.Columns columns = mnemonics.columns();
+    int nb = columns.codes().length;
+    output.writeInt(nb);
+    output.writeInt(columns.mnemonics().length);
+    for (int i = 0; i < nb; ++i) {
+      output.writeInt(columns.codes()[i]);
+      output.writeInt(columns.ucps()[i]);
+      output.writeBoolean(columns.deprecateds()[i]);
+      output.writeInt(columns.mnemonicsStarts()[i]);
+      output.writeInt(columns.deprecatedAliasesStarts()[i]);
+    }
+    for (String mnemonic : columns.mnemonics()) {
+      SnapshotUtils.putString(output, mnemonic);
+    }
+    output.flush();
+  }
+
+  /**
+   * Reads a snapshot.
+   *
+   * @param buffer the snapshot
+   * @param sourceName the name of the text that the snapshot must correspond to
+   * @return empty iff the snapshot does not correspond to the given source or is invalid
+   */
+  public static Optional<Mnemonics> read(ByteBuffer buffer, String sourceName) {
+    try {
+      if (!SnapshotUtils.readHeader(buffer, sourceName)) {
+        LOGGER.debug("Snapshot does not correspond to {}, will parse.", sourceName);
+        return Optional.empty();
+      }
+      int nb = buffer.getInt();
+      int nbMnemonics = buffer.getInt();
+      final int[] codes = new int[nb];
+      final int[] ucps = new int[nb];
+      final boolean[] deprecateds = new boolean[nb];
+      final int[] mnemonicsStarts = new int[nb + 1];
+      final int[] deprecatedAliasesStarts = new int[nb];
+      for (int i = 0; i < nb; ++i) {
+        codes[i] = buffer.getInt();
+        ucps[i] = buffer.getInt();
+        deprecateds[i] = buffer.get() != 0;
+        mnemonicsStarts[i] = buffer.getInt();
+        deprecatedAliasesStarts[i] = buffer.getInt();
+      }
+      mnemonicsStarts[nb] = nbMnemonics;
+      final String[] mnemonics = new String[nbMnemonics];
+      for (int i = 0; i < nbMnemonics; ++i) {
+        mnemonics[i] = SnapshotUtils.getString(buffer);
+      }
+      return Optional.of(Mnemonics.fromColumns(new Mnemonics.Columns(codes, ucps, deprecateds,
+          mnemonics, mnemonicsStarts, deprecatedAliasesStarts)));
+    } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+      LOGGER.warn("Invalid snapshot, will parse.", e);
+      return Optional.empty();
+    }
+  }
+
+  private MnemonicsSnapshot() {}
+}
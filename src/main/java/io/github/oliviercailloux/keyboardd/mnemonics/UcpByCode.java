@@ -4,74 +4,147 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Verify.verify;
 
 import com.google.common.collect.ContiguousSet;
-import com.google.common.collect.ImmutableBiMap;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 
-/** TODO consider removing this, seems not useful. */
+/**
+ * TODO consider removing this, seems not useful.
+ * <p>
+ * The domains are represented as the implicit ranges plus the (few) explicit values out of these
+ * ranges; the explicit mapping is stored as arrays sorted by code.
+ */
 class UcpByCode {
   public static final ContiguousSet<Integer> IMPLICIT_UCPS = ContiguousSet.closed(0x100, 0x10F_FFF);
   public static final ContiguousSet<Integer> IMPLICIT_UCP_KEYSYM_CODES =
       ContiguousSet.closed(0x01_000_100, 0x01_10F_FFF);
-  public static Function<Integer, Integer> IMPLICIT_UCP_BY_CODE = c -> c - 0x01_000_000;
-  public static Function<Integer, Integer> CODE_BY_IMPLICIT_UCP = u -> u + 0x01_000_000;
+  public static Function<Integer, Integer> IMPLICIT_UCP_BY_CODE = c -> implicitUcp(c);
+  public static Function<Integer, Integer> CODE_BY_IMPLICIT_UCP = u -> implicitCode(u);
 
-  public static UcpByCode implicit() {
-    return new UcpByCode(ImmutableMap.of(), IMPLICIT_UCP_KEYSYM_CODES, IMPLICIT_UCPS);
+  private static final int IMPLICIT_OFFSET = 0x01_000_000;
+
+  public static boolean isImplicitUcp(int ucp) {
+    return 0x100 <= ucp && ucp <= 0x10F_FFF;
   }
 
-  public static UcpByCode implicitAndExplicit(Map<Integer, Integer> ucpByCodeExplicit) {
-    ContiguousSet<Integer> domain = IMPLICIT_UCP_KEYSYM_CODES;
-    ImmutableSet.Builder<Integer> domainBuilder = ImmutableSet.builder();
+  public static boolean isImplicitCode(int code) {
+    return 0x01_000_100 <= code && code <= 0x01_10F_FFF;
+  }
+
+  /**
+   * The UCP implicitly associated to the given code, assuming it is in
+   * {@link #IMPLICIT_UCP_KEYSYM_CODES}.
+   *
+   * @param code a code
+   * @return the corresponding UCP
+   */
+  public static int implicitUcp(int code) {
+    return code - IMPLICIT_OFFSET;
+  }
+
+  /**
+   * The code implicitly associated to the given UCP, assuming it is in {@link #IMPLICIT_UCPS}.
+   *
+   * @param ucp a UCP
+   * @return the corresponding code
+   */
+  public static int implicitCode(int ucp) {
+    return ucp + IMPLICIT_OFFSET;
+  }
 
-    ContiguousSet<Integer> coDomain = IMPLICIT_UCPS;
-    ImmutableSet.Builder<Integer> coDomainBuilder = ImmutableSet.builder();
+  public static UcpByCode implicit() {
+    return new UcpByCode(new int[0], new int[0]);
+  }
 
-    return new UcpByCode(ucpByCodeExplicit,
-        domainBuilder.addAll(domain).addAll(ucpByCodeExplicit.keySet()).build(),
-        coDomainBuilder.addAll(coDomain).addAll(ucpByCodeExplicit.values()).build());
+  public static UcpByCode implicitAndExplicit(Map<Integer, Integer> ucpByCodeExplicit) {
+    int[] codes = Ints.toArray(ucpByCodeExplicit.keySet());
+    int[] ucps = Ints.toArray(ucpByCodeExplicit.values());
+    return new UcpByCode(codes, ucps);
   }
 
   public static UcpByCode implicitAndExplicit(Mnemonics mnemonics) {
-    ImmutableBiMap<Integer, CanonicalMnemonic> byUcp = mnemonics.byUcp();
-    ImmutableBiMap<Integer, Integer> codeByUcp = byUcp.keySet().stream()
-        .collect(ImmutableBiMap.toImmutableBiMap(u -> u, u -> byUcp.get(u).code()));
-    return implicitAndExplicit(codeByUcp.inverse());
+    Mnemonics.Columns columns = mnemonics.columns();
+    int[] allCodes = columns.codes();
+    int[] allUcps = columns.ucps();
+    int nb = (int) Arrays.stream(allUcps).filter(u -> u != Mnemonics.NO_UCP).count();
+    int[] codes = new int[nb];
+    int[] ucps = new int[nb];
+    int explicit = 0;
+    for (int i = 0; i < allCodes.length; ++i) {
+      if (allUcps[i] != Mnemonics.NO_UCP) {
+        codes[explicit] = allCodes[i];
+        ucps[explicit] = allUcps[i];
+        ++explicit;
+      }
+    }
+    return new UcpByCode(codes, ucps);
   }
 
-  private final ImmutableMap<Integer, Integer> ucpByCodeExplicit;
-  private final ImmutableSet<Integer> domainOfCodes;
-  private final ImmutableSet<Integer> coDomainOfUcps;
+  /** The explicit codes, in ascending order. */
+  private final int[] explicitCodes;
+  /** The UCP of each explicit code. */
+  private final int[] explicitUcps;
+  private final Set<Integer> domainOfCodes;
+  private final Set<Integer> coDomainOfUcps;
 
-  private UcpByCode(Map<Integer, Integer> ucpByCodeExplicit, Set<Integer> domain,
-      Set<Integer> coDomain) {
-    checkArgument(domain.size() >= coDomain.size());
+  /**
+   * @param codes the explicit codes, distinct, in any order
+   * @param ucps the corresponding UCPs
+   */
+  private UcpByCode(int[] codes, int[] ucps) {
+    checkArgument(codes.length == ucps.length);
+    long[] packed = new long[codes.length];
+    for (int i = 0; i < codes.length; ++i) {
+      packed[i] = (long) codes[i] << 32 | (ucps[i] & 0xFFFF_FFFFL);
+    }
+    Arrays.sort(packed);
+    explicitCodes = new int[codes.length];
+    explicitUcps = new int[codes.length];
+    for (int i = 0; i < packed.length; ++i) {
+      explicitCodes[i] = (int) (packed[i] >> 32);
+      explicitUcps[i] = (int) packed[i];
+      checkArgument(i == 0 || explicitCodes[i - 1] != explicitCodes[i]);
+    }
 
-    this.ucpByCodeExplicit = ImmutableMap.copyOf(ucpByCodeExplicit);
-    checkArgument(domain.containsAll(ucpByCodeExplicit.keySet()));
-    this.domainOfCodes = ImmutableSet.copyOf(domain);
-    checkArgument(coDomain.containsAll(ucpByCodeExplicit.values()));
-    this.coDomainOfUcps = ImmutableSet.copyOf(coDomain);
+    ImmutableSet<Integer> extraCodes = Arrays.stream(explicitCodes).filter(c -> !isImplicitCode(c))
+        .boxed().collect(ImmutableSet.toImmutableSet());
+    ImmutableSet<Integer> extraUcps = Arrays.stream(explicitUcps).filter(u -> !isImplicitUcp(u))
+        .boxed().collect(ImmutableSet.toImmutableSet());
+    domainOfCodes = Sets.union(IMPLICIT_UCP_KEYSYM_CODES, extraCodes);
+    coDomainOfUcps = Sets.union(IMPLICIT_UCPS, extraUcps);
+    checkArgument(domainOfCodes.size() >= coDomainOfUcps.size());
   }
 
-  public ImmutableSet<Integer> domainOfCodes() {
+  /**
+   * The codes this object knows about: the implicit ones and the explicit ones.
+   *
+   * @return an unmodifiable set, whose membership checks take constant time
+   */
+  public Set<Integer> domainOfCodes() {
     return domainOfCodes;
   }
 
-  public ImmutableSet<Integer> coDomainOfUcps() {
+  /**
+   * The UCPs this object knows about: the implicit ones and the explicit ones.
+   *
+   * @return an unmodifiable set, whose membership checks take constant time
+   */
+  public Set<Integer> coDomainOfUcps() {
     return coDomainOfUcps;
   }
 
   public int ucp(int code) {
-    checkArgument(domainOfCodes.contains(code));
-    if (ucpByCodeExplicit.containsKey(code)) {
-      return ucpByCodeExplicit.get(code);
+    int index = Arrays.binarySearch(explicitCodes, code);
+    if (index >= 0) {
+      return explicitUcps[index];
     }
-    int ucp = IMPLICIT_UCP_BY_CODE.apply(code);
-    verify(coDomainOfUcps.contains(ucp));
+    checkArgument(isImplicitCode(code));
+    int ucp = implicitUcp(code);
+    verify(isImplicitUcp(ucp));
     return ucp;
   }
 }
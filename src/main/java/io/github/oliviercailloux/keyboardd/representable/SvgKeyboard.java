@@ -6,8 +6,6 @@ import static com.google.common.base.Verify.verify;
 import com.google.common.base.VerifyException;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.UnmodifiableIterator;
 import io.github.oliviercailloux.jaris.xml.DomHelper;
 import io.github.oliviercailloux.jaris.xml.XmlName;
 import io.github.oliviercailloux.svgb.DoublePoint;
@@ -18,10 +16,13 @@ import io.github.oliviercailloux.svgb.SvgDocumentHelper;
 import io.github.oliviercailloux.svgb.SvgHelper;
 import io.github.oliviercailloux.svgb.TextElement;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -40,6 +41,8 @@ public class SvgKeyboard {
   public static final XmlName KEYBOARDD_X_KEY_NAME =
       XmlName.expandedName(KEYBOARDD_NS, KEYBOARDD_X_KEY_NAME_LOCAL_NAME);
 
+  private static final String HEATMAP_COLOR = "#d7301f";
+
   private static ImmutableList<Element> getElements(Element root, XmlName name) {
     if (name.namespace().isPresent()) {
       return DomHelper.toElements(
@@ -77,7 +80,15 @@ public class SvgKeyboard {
   }
 
   private static record LineColDivision (int n, int nbCols, int nbLines) {
+    /** The divisions of the usual numbers of representations, computed once. */
+    private static final LineColDivision[] SMALL =
+        IntStream.range(0, 32).mapToObj(LineColDivision::compute).toArray(LineColDivision[]::new);
+
     public static LineColDivision forNb(int n) {
+      return n < SMALL.length ? SMALL[n] : compute(n);
+    }
+
+    private static LineColDivision compute(int n) {
       /*
        * Given n the nuber of representations, we want to determine suitable values for x = nb
        * columns and y = nb lines (all three non negative integer values). We want to minimize the
@@ -96,102 +107,124 @@ public class SvgKeyboard {
       return new LineColDivision(n, x, y);
     }
 
-    public ImmutableSet<PositiveSize> offsetsToCorners(PositiveSize size) {
-      return offsets(size, 0d);
+    /**
+     * Writes the offsets of the corners of the n parts of the given size into the given arrays,
+     * from the given index, each offset being added to the given start.
+     */
+    public void offsetsToCorners(PositiveSize start, PositiveSize size, double[] xs, double[] ys,
+        int from) {
+      offsets(start, size, 0d, xs, ys, from);
     }
 
-    public ImmutableSet<PositiveSize> offsetsToMiddle(PositiveSize size) {
-      return offsets(size, 0.5d);
+    /**
+     * Writes the offsets of the middles of the n parts of the given size into the given arrays,
+     * from the given index, each offset being added to the given start.
+     */
+    public void offsetsToMiddle(PositiveSize start, PositiveSize size, double[] xs, double[] ys,
+        int from) {
+      offsets(start, size, 0.5d, xs, ys, from);
     }
 
-    private ImmutableSet<PositiveSize> offsets(PositiveSize size, double additionalColFrac) {
+    private void offsets(PositiveSize start, PositiveSize size, double additionalColFrac,
+        double[] xs, double[] ys, int from) {
       int nbShorterLines = nbCols * nbLines - n;
       int nbFullLines = nbLines - nbShorterLines;
       double xStep = size.x() / nbCols;
       double yStep = size.y() / nbLines;
-      ImmutableSet.Builder<PositiveSize> builder = ImmutableSet.builder();
+      int i = from;
       for (int col = 0; col < nbCols - 1; ++col) {
         for (int line = nbLines - 1; line >= 0; --line) {
-          builder.add(new PositiveSize((col + additionalColFrac) * xStep,
-              (line + additionalColFrac) * yStep));
+          xs[i] = start.x() + (col + additionalColFrac) * xStep;
+          ys[i] = start.y() + (line + additionalColFrac) * yStep;
+          ++i;
         }
       }
       int col = nbCols - 1;
       for (int line = nbLines - 1; line > nbLines - 1 - nbFullLines; --line) {
-        builder.add(new PositiveSize((col + additionalColFrac) * xStep,
-            (line + additionalColFrac) * yStep));
+        xs[i] = start.x() + (col + additionalColFrac) * xStep;
+        ys[i] = start.y() + (line + additionalColFrac) * yStep;
+        ++i;
       }
-      ImmutableSet<PositiveSize> offsets = builder.build();
-      verify(offsets.size() == n);
-      return offsets;
+      verify(i - from == n);
     }
   }
 
-  private static record RepresentableSubZone (PositiveSize absoluteOffset, Representation repr,
-      RepresentableZone parent) {
-    public PositiveSize size() {
-      return parent.subSize();
-    }
-
-    /** A positive finite double if non-empty string; otherwise positive infinity. */
-    public double maxWidthPerCp() {
-      if (!repr.isString()) {
-        return Double.POSITIVE_INFINITY;
+  /**
+   * The geometry of the zones of a document and of their sub-zones (one per representation),
+   * computed once, in flat arrays, before anything is emitted. The sub-zones of the zone of index
+   * {@code z} have the indices from {@code subStarts[z]} (included) to {@code subStarts[z + 1]}
+   * (excluded); their offsets are absolute.
+   */
+  private static class Layout {
+    public static Layout of(ImmutableMap<RectangleElement, String> keyNameByZone,
+        XKeyNamesRepresenter representationsByXKeyName) {
+      ImmutableList<RectangleElement> zones = keyNameByZone.keySet().asList();
+      int nbZones = zones.size();
+      List<ImmutableList<Representation>> reprsByZone = new ArrayList<>(nbZones);
+      int[] subStarts = new int[nbZones + 1];
+      for (int z = 0; z < nbZones; ++z) {
+        List<Representation> reprs =
+            representationsByXKeyName.representations(keyNameByZone.get(zones.get(z)));
+        ImmutableList<Representation> copy = ImmutableList.copyOf(reprs);
+        reprsByZone.add(copy);
+        subStarts[z + 1] = subStarts[z] + copy.size();
       }
-      return size().x() / repr.string().codePoints().count();
-    }
-
-    public PositiveSize absoluteOffsetToMiddle() {
-      return absoluteOffset.plus(size().mult(0.5d));
-    }
-  }
-
-  private static record RepresentableZone (RectangleElement zone,
-      ImmutableList<Representation> reprs) {
-    public DoublePoint zoneStart() {
-      return zone.getStart();
-    }
-
-    public PositiveSize zoneSize() {
-      return zone.getSize();
-    }
-
-    public PositiveSize startOffset() {
-      return PositiveSize.between(DoublePoint.zero(), zoneStart());
-    }
-
-    public LineColDivision div() {
-      return LineColDivision.forNb(reprs.size());
-    }
-
-    public PositiveSize subSize() {
-      return PositiveSize.given(zoneSize().x() / div().nbCols, zoneSize().y() / div().nbLines);
-    }
 
-    public ImmutableSet<PositiveSize> relativeOffsets() {
-      return div().offsetsToCorners(zoneSize());
-    }
-
-    public ImmutableSet<PositiveSize> absoluteOffsets() {
-      return relativeOffsets().stream().map(offset -> startOffset().plus(offset))
-          .collect(ImmutableSet.toImmutableSet());
-    }
-
-    public ImmutableSet<RepresentableSubZone> subZones() {
-      ImmutableSet<PositiveSize> offsets = absoluteOffsets();
-      UnmodifiableIterator<Representation> rIt = reprs.iterator();
-      final ImmutableSet.Builder<RepresentableSubZone> subs = new ImmutableSet.Builder<>();
-      for (PositiveSize offset : offsets) {
-        Representation r = rIt.next();
-        subs.add(new RepresentableSubZone(offset, r, this));
+      int nbSubZones = subStarts[nbZones];
+      double[] subWidths = new double[nbZones];
+      double[] subHeights = new double[nbZones];
+      Representation[] reprs = new Representation[nbSubZones];
+      double[] offsetXs = new double[nbSubZones];
+      double[] offsetYs = new double[nbSubZones];
+      double maxWidthPerCp = Double.POSITIVE_INFINITY;
+      for (int z = 0; z < nbZones; ++z) {
+        RectangleElement zone = zones.get(z);
+        ImmutableList<Representation> zoneReprs = reprsByZone.get(z);
+        LineColDivision div = LineColDivision.forNb(zoneReprs.size());
+        PositiveSize zoneSize = zone.getSize();
+        subWidths[z] = zoneSize.x() / div.nbCols;
+        subHeights[z] = zoneSize.y() / div.nbLines;
+        PositiveSize startOffset = PositiveSize.between(DoublePoint.zero(), zone.getStart());
+        div.offsetsToCorners(startOffset, zoneSize, offsetXs, offsetYs, subStarts[z]);
+        for (int i = 0; i < zoneReprs.size(); ++i) {
+          Representation repr = zoneReprs.get(i);
+          reprs[subStarts[z] + i] = repr;
+          /* A positive finite double if non-empty string; otherwise positive infinity. */
+          if (repr.isString()) {
+            maxWidthPerCp =
+                Math.min(maxWidthPerCp, subWidths[z] / repr.string().codePoints().count());
+          }
+        }
       }
-      verify(!rIt.hasNext());
-      return subs.build();
+      return new Layout(zones, subStarts, subWidths, subHeights, reprs, offsetXs, offsetYs,
+          maxWidthPerCp);
     }
 
-    public double maxWidthPerCp() {
-      return subZones().stream().mapToDouble(RepresentableSubZone::maxWidthPerCp).min()
-          .orElse(Double.POSITIVE_INFINITY);
+    private final ImmutableList<RectangleElement> zones;
+    private final int[] subStarts;
+    /** Indexed by zone. */
+    private final double[] subWidths;
+    /** Indexed by zone. */
+    private final double[] subHeights;
+    /** Indexed by sub-zone. */
+    private final Representation[] reprs;
+    /** Indexed by sub-zone. */
+    private final double[] offsetXs;
+    /** Indexed by sub-zone. */
+    private final double[] offsetYs;
+    private final double maxWidthPerCp;
+
+    private Layout(ImmutableList<RectangleElement> zones, int[] subStarts, double[] subWidths,
+        double[] subHeights, Representation[] reprs, double[] offsetXs, double[] offsetYs,
+        double maxWidthPerCp) {
+      this.zones = zones;
+      this.subStarts = subStarts;
+      this.subWidths = subWidths;
+      this.subHeights = subHeights;
+      this.reprs = reprs;
+      this.offsetXs = offsetXs;
+      this.offsetYs = offsetYs;
+      this.maxWidthPerCp = maxWidthPerCp;
     }
   }
 
@@ -218,22 +251,21 @@ public class SvgKeyboard {
     return Optional.empty();
   }
 
-  private static Element toSvg(SvgDocumentHelper h, RepresentableSubZone subZone) {
-    final Representation r = subZone.repr;
+  private static Element toSvg(SvgDocumentHelper h, Representation r, PositiveSize subSize) {
     if (r.isString()) {
-      PositiveSize halfSize = subZone.size().mult(0.5d);
+      PositiveSize halfSize = subSize.mult(0.5d);
       return h.text().setBaselineStart(DoublePoint.given(halfSize.x(), halfSize.y()))
           .setContent(r.string()).getElement();
     }
     Element svgRepr = (Element) h.document().importNode(r.svg().getDocumentElement(), true);
     if (size(svgRepr).isEmpty()) {
-      SvgHelper.setSize(svgRepr, subZone.size());
+      SvgHelper.setSize(svgRepr, subSize);
     } else {
       PositiveSize size = size(svgRepr).orElseThrow(VerifyException::new);
-      if (size.x() > subZone.size().x() || size.y() > subZone.size().y()) {
-        SvgHelper.setSize(svgRepr, subZone.size());
+      if (size.x() > subSize.x() || size.y() > subSize.y()) {
+        SvgHelper.setSize(svgRepr, subSize);
       } else {
-        PositiveSize gap = subZone.size().plus(size.opposite());
+        PositiveSize gap = subSize.plus(size.opposite());
         PositiveSize halfGap = gap.mult(0.5d);
         DoublePoint start = DoublePoint.zero().plus(halfGap);
         setXY(svgRepr, start);
@@ -318,13 +350,7 @@ public class SvgKeyboard {
   public double maxWidthPerCp(Function<String, ? extends List<String>> descriptionsByXKeyName) {
     XKeyNamesRepresenter representationsByXKeyName = s -> descriptionsByXKeyName.apply(s).stream()
         .map(Representation::fromString).collect(ImmutableList.toImmutableList());
-    ImmutableSet<RepresentableZone> zones = getZones(representationsByXKeyName);
-    return maxWidthPerCp(zones);
-  }
-
-  private double maxWidthPerCp(Set<RepresentableZone> zones) {
-    return zones.stream().mapToDouble(t -> t.maxWidthPerCp()).min()
-        .orElse(Double.POSITIVE_INFINITY);
+    return Layout.of(keyNameByZone(), representationsByXKeyName).maxWidthPerCp;
   }
 
   /** NaN for maxWidthPerCp (default) */
@@ -333,11 +359,11 @@ public class SvgKeyboard {
     return this;
   }
 
-  private double fontSize(Set<RepresentableZone> zones) {
+  private double fontSize(Layout layout) {
     if (!Double.isNaN(fontSize)) {
       return fontSize;
     }
-    return maxWidthPerCp(zones);
+    return layout.maxWidthPerCp;
   }
 
   /**
@@ -354,11 +380,11 @@ public class SvgKeyboard {
     // result);
     // Document d = (Document) result.getNode();
 
-    ImmutableSet<RepresentableZone> zones = getZones(representationsByXKeyName);
+    Layout layout = Layout.of(keyNameByZone(), representationsByXKeyName);
     // it’s very unlikely that the font size will be constrained in height, so let’s just consider
     // the available width. We consider that 1px font size (which determines the height of am em
     // box) is about a 1px car wide. A very rough approximation, to be sure.
-    double effectiveFontSize = fontSize(zones);
+    double effectiveFontSize = fontSize(layout);
     if (Double.isFinite(effectiveFontSize)) {
       String inner = """
           text-anchor: middle;
@@ -367,25 +393,62 @@ public class SvgKeyboard {
       appendStyle(TextElement.NODE_NAME, inner);
     }
 
-    for (RepresentableZone zone : zones) {
-      for (RepresentableSubZone r : zone.subZones()) {
-        Element g = h.g().translate(r.absoluteOffset).getElement();
-        Element svgRepr = toSvg(h, r);
+    for (int z = 0; z < layout.zones.size(); ++z) {
+      Element zone = layout.zones.get(z).getElement();
+      PositiveSize subSize = PositiveSize.given(layout.subWidths[z], layout.subHeights[z]);
+      for (int i = layout.subStarts[z]; i < layout.subStarts[z + 1]; ++i) {
+        PositiveSize offset = PositiveSize.given(layout.offsetXs[i], layout.offsetYs[i]);
+        Element g = h.g().translate(offset).getElement();
+        Element svgRepr = toSvg(h, layout.reprs[i], subSize);
         g.appendChild(svgRepr);
-        Node prev = zone.zone.getElement().getNextSibling();
-        zone.zone.getElement().getParentNode().insertBefore(g, prev);
+        Node prev = zone.getNextSibling();
+        zone.getParentNode().insertBefore(g, prev);
       }
     }
     return h.document();
   }
 
-  private ImmutableSet<RepresentableZone> getZones(XKeyNamesRepresenter representationsByXKeyName) {
+  /**
+   * Fills the zones found in this document with a color whose opacity is proportional to the
+   * weight of their X key name (relative to the greatest weight), such as its usage count. The
+   * other declarations of the style of the zones are kept.
+   *
+   * @param weightByXKeyName the non negative weights; zones whose X key name has no weight are not
+   *        filled.
+   * @return the document with the filled zones.
+   */
+  public Document withHeatmap(Map<String, ? extends Number> weightByXKeyName) {
+    double max = weightByXKeyName.values().stream().mapToDouble(Number::doubleValue).max()
+        .orElse(0d);
+    checkArgument(weightByXKeyName.values().stream().allMatch(w -> w.doubleValue() >= 0d));
     ImmutableMap<RectangleElement, String> keyNameByZone = keyNameByZone();
-    ImmutableSet<RepresentableZone> zones = keyNameByZone.keySet().stream().map(zone -> {
-      String xKeyName = keyNameByZone.get(zone);
-      List<Representation> reprs = representationsByXKeyName.representations(xKeyName);
-      return new RepresentableZone(zone, ImmutableList.copyOf(reprs));
-    }).collect(ImmutableSet.toImmutableSet());
-    return zones;
+    for (RectangleElement zone : keyNameByZone.keySet()) {
+      Number weight = weightByXKeyName.get(keyNameByZone.get(zone));
+      if (weight == null) {
+        continue;
+      }
+      double opacity = max == 0d ? 0d : weight.doubleValue() / max;
+      Element element = zone.getElement();
+      element.setAttribute("style", withFill(element.getAttribute("style"), opacity));
+    }
+    return h.document();
+  }
+
+  /**
+   * Returns the given inline style without its fill declarations, followed by fill declarations
+   * for the heatmap color with the given opacity.
+   */
+  private static String withFill(String style, double opacity) {
+    StringBuilder result = new StringBuilder();
+    for (String declaration : style.split(";")) {
+      String property = declaration.split(":", 2)[0].strip();
+      if (property.isEmpty() || property.equals("fill") || property.equals("fill-opacity")) {
+        continue;
+      }
+      result.append(declaration.strip()).append("; ");
+    }
+    result.append(String.format(Locale.ROOT, "fill: %s; fill-opacity: %.3f;", HEATMAP_COLOR,
+        opacity));
+    return result.toString();
   }
 }
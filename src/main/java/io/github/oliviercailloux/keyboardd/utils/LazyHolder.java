@@ -0,0 +1,113 @@
+package io.github.oliviercailloux.keyboardd.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Holds a value that is loaded once, on first request, and then shared, until reset. Safe for
+ * concurrent use: concurrent first requests wait for a single load.
+ * <p>
+ * Each holder is registered under a unique name when created, and counts the requests served
+ * without loading (hits) and the loads.
+ *
+ * @param <T> the type of the value
+ */
+public class LazyHolder<T> {
+  public static record Statistics (long hits, long loads) {
+  }
+
+  private static final ConcurrentMap<String, LazyHolder<?>> REGISTERED = new ConcurrentHashMap<>();
+
+  /**
+   * Creates and registers a holder.
+   *
+   * @param <T> the type of the value
+   * @param name a name that is not already registered
+   * @param loader the loader of the value, which must not return {@code null}
+   * @return a holder with no value yet
+   */
+  public static <T> LazyHolder<T> registered(String name, Supplier<T> loader) {
+    LazyHolder<T> holder = new LazyHolder<>(name, loader);
+    LazyHolder<?> previous = REGISTERED.putIfAbsent(name, holder);
+    checkState(previous == null, "Already registered: %s.", name);
+    return holder;
+  }
+
+  /**
+   * The holders created so far (thus, those of the classes that have been initialized).
+   *
+   * @return the holders by name
+   */
+  public static ImmutableMap<String, LazyHolder<?>> all() {
+    return ImmutableMap.copyOf(REGISTERED);
+  }
+
+  private final String name;
+  private final Supplier<T> loader;
+  private volatile T value;
+  private final LongAdder hits;
+  private final LongAdder loads;
+
+  private LazyHolder(String name, Supplier<T> loader) {
+    this.name = checkNotNull(name);
+    this.loader = checkNotNull(loader);
+    value = null;
+    hits = new LongAdder();
+    loads = new LongAdder();
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Returns the value, loading it if this is the first request since creation or last reset.
+   *
+   * @return the value
+   */
+  public T get() {
+    T current = value;
+    if (current != null) {
+      hits.increment();
+      return current;
+    }
+    synchronized (this) {
+      current = value;
+      if (current == null) {
+        current = checkNotNull(loader.get());
+        value = current;
+        loads.increment();
+      } else {
+        hits.increment();
+      }
+      return current;
+    }
+  }
+
+  /**
+   * Forgets the value, if any, so that the next request loads it again. Does not reset the
+   * counters.
+   */
+  public void reset() {
+    synchronized (this) {
+      value = null;
+    }
+  }
+
+  public Statistics statistics() {
+    return new Statistics(hits.sum(), loads.sum());
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("name", name).add("statistics", statistics())
+        .toString();
+  }
+}
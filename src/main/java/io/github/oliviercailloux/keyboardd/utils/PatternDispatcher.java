@@ -0,0 +1,213 @@
+package io.github.oliviercailloux.keyboardd.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Verify.verify;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds which one of a few patterns matches a line, trying only the patterns that a cheap
+ * classification of the line designates as candidates, instead of trying all of them as
+ * {@link ParseUtils#matcherOpt(String, java.util.Set)} does.
+ * <p>
+ * The classification uses rules, each associating a pattern to a guard: either the line is blank,
+ * or the line starts, after leading spaces and tabs, with a given prefix, and possibly contains a
+ * given marker after that prefix. A guard must be a necessary condition for its pattern to match a
+ * line (several rules may concern the same pattern). The dispatcher tries, in the order of the
+ * rules, the patterns whose guard is satisfied by the line, and returns the first one that
+ * matches.
+ * <p>
+ * In strict mode, the dispatcher also tries all patterns, and checks that at most one of them
+ * matches and that it is the one found using the guards (thereby checking the guards, at the cost
+ * of the speed gain).
+ * <p>
+ * Instances of this class are immutable. The {@link LineMatcher} instances they create reuse their
+ * matchers and are thus not safe for concurrent use.
+ */
+public class PatternDispatcher {
+  /**
+   * Associates a pattern to a guard. The marker is empty when not required; both prefix and
+   * marker are empty for the blank lines guard.
+   */
+  public static record Rule (Pattern pattern, boolean blank, String prefix, String marker) {
+    /**
+     * The given pattern is a candidate for blank (possibly empty) lines.
+     *
+     * @param pattern the pattern
+     * @return a rule
+     */
+    public static Rule blank(Pattern pattern) {
+      return new Rule(pattern, true, "", "");
+    }
+
+    /**
+     * The given pattern is a candidate for lines that start with the given prefix, after leading
+     * spaces and tabs.
+     *
+     * @param pattern the pattern
+     * @param prefix a non empty prefix
+     * @return a rule
+     */
+    public static Rule prefix(Pattern pattern, String prefix) {
+      return new Rule(pattern, false, prefix, "");
+    }
+
+    /**
+     * The given pattern is a candidate for lines that start with the given prefix, after leading
+     * spaces and tabs, and contain the given marker, after the prefix.
+     *
+     * @param pattern the pattern
+     * @param prefix a non empty prefix
+     * @param marker a non empty marker
+     * @return a rule
+     */
+    public static Rule marker(Pattern pattern, String prefix, String marker) {
+      checkArgument(!marker.isEmpty());
+      return new Rule(pattern, false, prefix, marker);
+    }
+
+    public Rule {
+      checkNotNull(pattern);
+      checkArgument(blank == prefix.isEmpty());
+      checkArgument(!blank || marker.isEmpty());
+    }
+  }
+
+  /**
+   * Finds the matching pattern of each line given to it, reusing one matcher per pattern.
+   */
+  public static class LineMatcher {
+    private final PatternDispatcher dispatcher;
+    private final boolean strict;
+    /** Indexed as the dispatcher patterns. */
+    private final Matcher[] matchers;
+
+    private LineMatcher(PatternDispatcher dispatcher, boolean strict) {
+      this.dispatcher = dispatcher;
+      this.strict = strict;
+      matchers = dispatcher.patterns.stream().map(p -> p.matcher("")).toArray(Matcher[]::new);
+    }
+
+    /**
+     * Returns the matcher of the pattern that matches the given line, if any. The returned matcher
+     * is valid until the next call to this object.
+     *
+     * @param line the line
+     * @return empty iff no pattern matches the line
+     * @throws com.google.common.base.VerifyException in strict mode, if multiple patterns match
+     *         the line or the guards are not satisfied by the line that a pattern matches
+     */
+    public Optional<Matcher> matcherOpt(CharSequence line) {
+      int start = 0;
+      while (start < line.length() && (line.charAt(start) == ' ' || line.charAt(start) == '\t')) {
+        ++start;
+      }
+      final boolean blank = start == line.length();
+      int found = -1;
+      for (int r = 0; r < dispatcher.rules.size(); ++r) {
+        Rule rule = dispatcher.rules.get(r);
+        if (rule.blank() ? blank : guards(rule, line, start)) {
+          int index = dispatcher.patternIndexByRule[r];
+          if (matchers[index].reset(line).matches()) {
+            found = index;
+            break;
+          }
+        }
+      }
+      if (strict) {
+        checkStrict(line, found);
+      }
+      return found == -1 ? Optional.empty() : Optional.of(matchers[found]);
+    }
+
+    /**
+     * Returns the matcher of the pattern that matches the given line.
+     *
+     * @param line the line
+     * @return the matcher, valid until the next call to this object
+     * @throws IllegalArgumentException if no pattern matches the line
+     */
+    public Matcher matcher(CharSequence line) {
+      return matcherOpt(line).orElseThrow(
+          () -> new IllegalArgumentException("Unrecognised pattern on line: ‘" + line + "’."));
+    }
+
+    private static boolean guards(Rule rule, CharSequence line, int start) {
+      String prefix = rule.prefix();
+      if (line.length() - start < prefix.length()) {
+        return false;
+      }
+      for (int i = 0; i < prefix.length(); ++i) {
+        if (line.charAt(start + i) != prefix.charAt(i)) {
+          return false;
+        }
+      }
+      return rule.marker().isEmpty()
+          || line.toString().indexOf(rule.marker(), start + prefix.length()) != -1;
+    }
+
+    private void checkStrict(CharSequence line, int found) {
+      for (int i = 0; i < matchers.length; ++i) {
+        if (i == found) {
+          continue;
+        }
+        verify(!matchers[i].reset(line).matches(), "Line ‘%s’ matched by %s, found %s.", line,
+            matchers[i].pattern(), found == -1 ? "none" : matchers[found].pattern());
+      }
+    }
+  }
+
+  /**
+   * Creates a dispatcher that uses the given rules.
+   *
+   * @param rules the rules, in the order the patterns should be tried
+   * @return a dispatcher
+   */
+  public static PatternDispatcher using(Rule... rules) {
+    return new PatternDispatcher(ImmutableList.copyOf(rules));
+  }
+
+  private final ImmutableList<Rule> rules;
+  /** The distinct patterns of the rules. */
+  private final ImmutableList<Pattern> patterns;
+  private final int[] patternIndexByRule;
+
+  private PatternDispatcher(ImmutableList<Rule> rules) {
+    this.rules = checkNotNull(rules);
+    patterns = rules.stream().map(Rule::pattern).collect(ImmutableSet.toImmutableSet()).asList();
+    patternIndexByRule = rules.stream().mapToInt(r -> patterns.indexOf(r.pattern())).toArray();
+  }
+
+  /**
+   * The distinct patterns of the rules, in order of first occurrence.
+   *
+   * @return the patterns
+   */
+  public ImmutableList<Pattern> patterns() {
+    return patterns;
+  }
+
+  /**
+   * Returns a new line matcher that uses the guards to select the patterns to try.
+   *
+   * @return a line matcher, not safe for concurrent use
+   */
+  public LineMatcher lineMatcher() {
+    return new LineMatcher(this, false);
+  }
+
+  /**
+   * Returns a new line matcher that also checks that at most one pattern matches each line and
+   * that the guards are correct.
+   *
+   * @return a line matcher, not safe for concurrent use
+   */
+  public LineMatcher strictLineMatcher() {
+    return new LineMatcher(this, true);
+  }
+}
@@ -0,0 +1,246 @@
+package io.github.oliviercailloux.keyboardd.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash map whose updates return a new map that shares most of its structure with the
+ * original one (a hash array mapped trie), so that adding or removing a key takes a time
+ * logarithmic (in base 32) in the size of the map, instead of linear for a copy.
+ * <p>
+ * Keys and values may not be {@code null}. Instances of this class are immutable, thus safe for
+ * concurrent use.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class PersistentHashMap<K, V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+  /** Beyond this shift, all hash bits have been consumed and keys collide. */
+  private static final int MAX_SHIFT = 30;
+
+  @SuppressWarnings("rawtypes")
+  private static final PersistentHashMap EMPTY = new PersistentHashMap<>(null, 0);
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentHashMap<K, V> empty() {
+    return EMPTY;
+  }
+
+  /**
+   * A node: a bitmap of its occupied slots among 32, and for each occupied slot (in order), either
+   * a key and its value, or {@code null} and a child node. Nodes at the maximal depth contain
+   * colliding keys in sequence, with a bitmap equal to their number.
+   */
+  private static final class Node {
+    private final int bitmap;
+    private final Object[] contents;
+
+    private Node(int bitmap, Object[] contents) {
+      this.bitmap = bitmap;
+      this.contents = contents;
+    }
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private final Node root;
+  private final int size;
+
+  private PersistentHashMap(Node root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the value associated to the given key.
+   *
+   * @param key the key
+   * @return {@code null} iff the key is not in this map
+   */
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    int hash = hash(key);
+    Node node = root;
+    int shift = 0;
+    while (node != null) {
+      if (shift > MAX_SHIFT) {
+        for (int i = 0; i < node.contents.length; i += 2) {
+          if (node.contents[i].equals(key)) {
+            return (V) node.contents[i + 1];
+          }
+        }
+        return null;
+      }
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((node.bitmap & bit) == 0) {
+        return null;
+      }
+      int index = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+      Object k = node.contents[index];
+      if (k == null) {
+        node = (Node) node.contents[index + 1];
+        shift += BITS;
+      } else {
+        return k.equals(key) ? (V) node.contents[index + 1] : null;
+      }
+    }
+    return null;
+  }
+
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Returns a map that associates the given value to the given key, and is otherwise equal to
+   * this one.
+   *
+   * @param key the key
+   * @param value the value
+   * @return a new map, sharing most of its structure with this one
+   */
+  public PersistentHashMap<K, V> with(K key, V value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    boolean[] added = new boolean[1];
+    Node newRoot = with(root, 0, hash(key), key, value, added);
+    return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size);
+  }
+
+  private static Node with(Node node, int shift, int hash, Object key, Object value,
+      boolean[] added) {
+    if (node == null) {
+      added[0] = true;
+      if (shift > MAX_SHIFT) {
+        return new Node(1, new Object[] {key, value});
+      }
+      return new Node(1 << ((hash >>> shift) & MASK), new Object[] {key, value});
+    }
+    if (shift > MAX_SHIFT) {
+      for (int i = 0; i < node.contents.length; i += 2) {
+        if (node.contents[i].equals(key)) {
+          Object[] contents = node.contents.clone();
+          contents[i + 1] = value;
+          return new Node(node.bitmap, contents);
+        }
+      }
+      added[0] = true;
+      Object[] contents = Arrays.copyOf(node.contents, node.contents.length + 2);
+      contents[node.contents.length] = key;
+      contents[node.contents.length + 1] = value;
+      return new Node(node.bitmap + 1, contents);
+    }
+    int bit = 1 << ((hash >>> shift) & MASK);
+    int index = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+    if ((node.bitmap & bit) == 0) {
+      added[0] = true;
+      Object[] contents = new Object[node.contents.length + 2];
+      System.arraycopy(node.contents, 0, contents, 0, index);
+      contents[index] = key;
+      contents[index + 1] = value;
+      System.arraycopy(node.contents, index, contents, index + 2, node.contents.length - index);
+      return new Node(node.bitmap | bit, contents);
+    }
+    Object k = node.contents[index];
+    Object[] contents = node.contents.clone();
+    if (k == null) {
+      contents[index + 1] =
+          with((Node) node.contents[index + 1], shift + BITS, hash, key, value, added);
+    } else if (k.equals(key)) {
+      contents[index + 1] = value;
+    } else {
+      Node child = with(null, shift + BITS, hash(k), k, node.contents[index + 1], added);
+      added[0] = false;
+      contents[index] = null;
+      contents[index + 1] = with(child, shift + BITS, hash, key, value, added);
+    }
+    return new Node(node.bitmap, contents);
+  }
+
+  /**
+   * Returns a map that does not contain the given key, and is otherwise equal to this one.
+   *
+   * @param key the key
+   * @return this map if it does not contain the key, otherwise a new map, sharing most of its
+   *         structure with this one
+   */
+  public PersistentHashMap<K, V> without(Object key) {
+    if (!containsKey(key)) {
+      return this;
+    }
+    return new PersistentHashMap<>(without(root, 0, hash(key), key), size - 1);
+  }
+
+  /** The given node contains the key. Returns {@code null} if the node becomes empty. */
+  private static Node without(Node node, int shift, int hash, Object key) {
+    if (shift > MAX_SHIFT) {
+      if (node.bitmap == 1) {
+        return null;
+      }
+      Object[] contents = new Object[node.contents.length - 2];
+      int j = 0;
+      for (int i = 0; i < node.contents.length; i += 2) {
+        if (!node.contents[i].equals(key)) {
+          contents[j++] = node.contents[i];
+          contents[j++] = node.contents[i + 1];
+        }
+      }
+      return new Node(node.bitmap - 1, contents);
+    }
+    int bit = 1 << ((hash >>> shift) & MASK);
+    int index = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+    if (node.contents[index] == null) {
+      Node child = without((Node) node.contents[index + 1], shift + BITS, hash, key);
+      if (child != null) {
+        Object[] contents = node.contents.clone();
+        contents[index + 1] = child;
+        return new Node(node.bitmap, contents);
+      }
+    }
+    if (node.bitmap == bit) {
+      return null;
+    }
+    Object[] contents = new Object[node.contents.length - 2];
+    System.arraycopy(node.contents, 0, contents, 0, index);
+    System.arraycopy(node.contents, index + 2, contents, index, contents.length - index);
+    return new Node(node.bitmap & ~bit, contents);
+  }
+
+  /**
+   * Gives each key and its value to the given action, in an unspecified order.
+   *
+   * @param action the action
+   */
+  @SuppressWarnings("unchecked")
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    forEach(root, (BiConsumer<Object, Object>) action);
+  }
+
+  private static void forEach(Node node, BiConsumer<Object, Object> action) {
+    if (node == null) {
+      return;
+    }
+    for (int i = 0; i < node.contents.length; i += 2) {
+      if (node.contents[i] == null) {
+        forEach((Node) node.contents[i + 1], action);
+      } else {
+        action.accept(node.contents[i], node.contents[i + 1]);
+      }
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package io.github.oliviercailloux.keyboardd.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharSource;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A directory of binary snapshots of structures parsed from text files, so that a process can load
+ * a structure that some process has already parsed without parsing it again.
+ * <p>
+ * Each snapshot is stamped with the size, modification time and content hash of the file it has
+ * been parsed from. It is used if the file has the same size and modification time, or the same
+ * size and content (in which case the file is read and hashed, but not parsed, and the snapshot is
+ * stamped again with the new modification time, so that the next loads need not hash the file);
+ * otherwise, the file is parsed and the snapshot replaced. Snapshots are replaced atomically, so
+ * that concurrent processes never read a partial one; failing to write one is logged and otherwise
+ * ignored.
+ * <p>
+ * Instances of this class are safe for concurrent use.
+ */
+public class SnapshotCache {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotCache.class);
+
+  /**
+   * How to parse a structure from a text and to write and read its snapshots (see
+   * {@link SnapshotUtils}).
+   *
+   * @param <T> the type of the structure
+   */
+  public static interface Codec<T> {
+    /**
+     * Parses a structure.
+     *
+     * @param source the text
+     * @return the structure
+     * @throws IOException if an I/O error occurs
+     */
+    T parse(CharSource source) throws IOException;
+
+    /**
+     * Writes a snapshot of the given structure, starting with a header that identifies the source.
+     *
+     * @param value the structure
+     * @param sourceName the name of the text the structure has been parsed from
+     * @param destination where to write; not closed
+     * @throws IOException if an I/O error occurs
+     */
+    void write(T value, String sourceName, OutputStream destination) throws IOException;
+
+    /**
+     * Reads a snapshot.
+     *
+     * @param buffer the snapshot
+     * @param sourceName the name of the text that the snapshot must correspond to
+     * @return empty iff the snapshot does not correspond to the given source or is invalid
+     */
+    Optional<T> read(ByteBuffer buffer, String sourceName);
+  }
+
+  /**
+   * The number of structures loaded from snapshots (hits) and parsed, and the number of files
+   * hashed because their modification time differed from the one of their snapshot (rehashes).
+   */
+  public static record Statistics (long hits, long parses, long rehashes) {
+  }
+
+  /**
+   * Returns a cache that stores its snapshots in the given directory, created when a snapshot is
+   * first written.
+   *
+   * @param directory the directory
+   * @return a cache
+   */
+  public static SnapshotCache in(Path directory) {
+    return new SnapshotCache(directory);
+  }
+
+  private final Path directory;
+  private final LongAdder hits;
+  private final LongAdder parses;
+  private final LongAdder rehashes;
+
+  private SnapshotCache(Path directory) {
+    this.directory = checkNotNull(directory);
+    hits = new LongAdder();
+    parses = new LongAdder();
+    rehashes = new LongAdder();
+  }
+
+  /**
+   * The directory that contains the snapshots.
+   *
+   * @return the directory
+   */
+  public Path directory() {
+    return directory;
+  }
+
+  /**
+   * Loads the structure of the given kind from the snapshot of the given file, if it is up to date,
+   * otherwise parses the file (as UTF-8) and replaces the snapshot.
+   *
+   * @param <T> the type of the structure
+   * @param kind identifies, together with the file, the structure and its snapshot, such as
+   *        {@code xkeys}
+   * @param source the file to parse
+   * @param codec how to parse the file and write and read the snapshot
+   * @return the structure
+   * @throws IOException if an I/O error occurs while reading the file
+   */
+  public <T> T load(String kind, Path source, Codec<T> codec) throws IOException {
+    String sourceName = kind + " " + source.toAbsolutePath().normalize();
+    HashCode key = Hashing.murmur3_128().hashString(sourceName, StandardCharsets.UTF_8);
+    Path snapshot = directory.resolve(key + ".snapshot");
+    long size = Files.size(source);
+    long modified = Files.getLastModifiedTime(source).to(TimeUnit.NANOSECONDS);
+
+    /* The content of the file, if read to check its hash. */
+    byte[] bytes = null;
+    Optional<ByteBuffer> bufferOpt = map(snapshot);
+    if (bufferOpt.isPresent()) {
+      ByteBuffer buffer = bufferOpt.orElseThrow();
+      Optional<Stamp> stampOpt = Stamp.read(buffer, sourceName);
+      if (stampOpt.isPresent() && stampOpt.orElseThrow().size() == size) {
+        Stamp stamp = stampOpt.orElseThrow();
+        boolean same = stamp.modified() == modified;
+        boolean restamp = !same;
+        if (!same) {
+          bytes = Files.readAllBytes(source);
+          same = hash(bytes).equals(stamp.hash());
+          rehashes.increment();
+          LOGGER.debug("Modification time of {} changed, same content: {}.", source, same);
+        }
+        if (same) {
+          Optional<T> value = codec.read(buffer, sourceName);
+          if (value.isPresent()) {
+            hits.increment();
+            if (restamp) {
+              write(snapshot, new Stamp(size, modified, stamp.hash()), sourceName, codec,
+                  value.orElseThrow());
+            }
+            return value.orElseThrow();
+          }
+        }
+      }
+    }
+
+    if (bytes == null) {
+      bytes = Files.readAllBytes(source);
+    }
+    T value = codec.parse(CharSource.wrap(new String(bytes, StandardCharsets.UTF_8)));
+    parses.increment();
+    write(snapshot, new Stamp(size, modified, hash(bytes)), sourceName, codec, value);
+    return value;
+  }
+
+  /**
+   * The number of structures loaded from snapshots and parsed, and of files rehashed, by this
+   * cache so far.
+   *
+   * @return the statistics
+   */
+  public Statistics statistics() {
+    return new Statistics(hits.sum(), parses.sum(), rehashes.sum());
+  }
+
+  /**
+   * The stamp of a file, that precedes the snapshot of its structure.
+   *
+   * @param size the size of the file, in bytes
+   * @param modified the last modification time of the file, in nanoseconds since the epoch
+   * @param hash the hash of the content of the file
+   */
+  private static record Stamp (long size, long modified, HashCode hash) {
+    private Stamp {
+      checkNotNull(hash);
+    }
+
+    private static Optional<Stamp> read(ByteBuffer buffer, String sourceName) {
+      try {
+        if (!SnapshotUtils.readHeader(buffer, sourceName)) {
+          return Optional.empty();
+        }
+        long size = buffer.getLong();
+        long modified = buffer.getLong();
+        return Optional.of(new Stamp(size, modified, HashCode.fromString(
+            SnapshotUtils.getString(buffer))));
+      } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+        LOGGER.warn("Invalid snapshot stamp, will parse.", e);
+        return Optional.empty();
+      }
+    }
+
+    private void write(DataOutputStream output, String sourceName) throws IOException {
+      SnapshotUtils.putHeader(output, sourceName);
+      output.writeLong(size);
+      output.writeLong(modified);
+      SnapshotUtils.putString(output, hash.toString());
+    }
+  }
+
+  private static HashCode hash(byte[] bytes) {
+    return Hashing.murmur3_128().hashBytes(bytes);
+  }
+
+  private static Optional<ByteBuffer> map(Path snapshot) throws IOException {
+    try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+      return Optional.of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } catch (NoSuchFileException e) {
+      LOGGER.debug("No snapshot {}, will parse.", snapshot);
+      return Optional.empty();
+    }
+  }
+
+  private static <T> void write(Path snapshot, Stamp stamp, String sourceName, Codec<T> codec,
+      T value) {
+    Path temporary = null;
+    try {
+      Files.createDirectories(snapshot.getParent());
+      temporary = Files.createTempFile(snapshot.getParent(), "snapshot", ".tmp");
+      try (OutputStream output = Files.newOutputStream(temporary)) {
+        DataOutputStream data = new DataOutputStream(output);
+        stamp.write(data, sourceName);
+        data.flush();
+        codec.write(value, sourceName, output);
+      }
+      Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      LOGGER.debug("Wrote {}.", snapshot);
+    } catch (IOException e) {
+      LOGGER.warn("Could not write snapshot {}.", snapshot, e);
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException d) {
+          LOGGER.warn("Could not delete {}.", temporary, d);
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this).add("directory", directory)
+        .add("statistics", statistics()).toString();
+  }
+}
@@ -0,0 +1,100 @@
+package io.github.oliviercailloux.keyboardd.utils;
+
+import com.google.common.io.Resources;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * Helpers to write and read binary snapshots of structures parsed from text resources. A snapshot
+ * starts with a header that identifies the format and the text resource it has been computed from
+ * (whose name includes a hash of its content); it is read back as a big-endian byte buffer.
+ */
+public class SnapshotUtils {
+  private static final int MAGIC = 0x4B424444;
+  private static final int VERSION = 1;
+
+  /**
+   * Returns the contents of the given resource, memory-mapped if it is a file, otherwise read in
+   * one go.
+   *
+   * @param resource the resource, possibly {@code null}
+   * @return empty iff the given resource is {@code null}
+   * @throws IOException if an I/O error occurs
+   */
+  public static Optional<ByteBuffer> read(URL resource) throws IOException {
+    if (resource == null) {
+      return Optional.empty();
+    }
+    if (resource.getProtocol().equals("file")) {
+      final Path path;
+      try {
+        path = Path.of(resource.toURI());
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        return Optional.of(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      }
+    }
+    return Optional.of(ByteBuffer.wrap(Resources.toByteArray(resource)));
+  }
+
+  /**
+   * Writes a header that identifies the given source.
+   *
+   * @param output where to write
+   * @param sourceName the name of the text resource the snapshot is computed from
+   * @throws IOException if an I/O error occurs
+   */
+  public static void putHeader(DataOutputStream output, String sourceName) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    putString(output, sourceName);
+  }
+
+  /**
+   * Reads a header and indicates whether it identifies the given source. If the buffer is too short
+   * to contain a header, returns {@code false}.
+   *
+   * @param buffer the buffer to read from, positioned at the start of the header
+   * @param sourceName the name of the expected text resource
+   * @return {@code true} iff the header is in the current format and identifies the given source
+   */
+  public static boolean readHeader(ByteBuffer buffer, String sourceName) {
+    if (buffer.remaining() < 3 * Integer.BYTES) {
+      return false;
+    }
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      return false;
+    }
+    int length = buffer.getInt();
+    if (length < 0 || buffer.remaining() < length) {
+      return false;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8).equals(sourceName);
+  }
+
+  public static void putString(DataOutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  public static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private SnapshotUtils() {}
+}
@@ -6,10 +6,11 @@ import com.google.common.base.VerifyException;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharSource;
 import com.google.common.io.Resources;
-import io.github.oliviercailloux.keyboardd.utils.ParseUtils;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher.LineMatcher;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher.Rule;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.regex.Matcher;
@@ -29,12 +30,23 @@ class EvdevReader {
       Pattern.compile("^[ \\t]*<(?<name>[^>]+)>[ \\t]*=[ \\t]*(?<code>[0-9]+);.*");
   private static final Pattern P_ALIAS_NAME_CODE = Pattern
       .compile("^[ \\t]*alias[ \\t]+<(?<newName>[^>]+)>[ \\t]*=[ \\t]*<(?<previousName>[^>]+)>;.*");
-  private static final ImmutableSet<Pattern> PATTERNS =
-      ImmutableSet.of(P_NOTHING, P_COMMENT, P_OTHER, P_NAME_CODE, P_ALIAS_NAME_CODE);
+  static final PatternDispatcher DISPATCHER = PatternDispatcher.using(
+      Rule.prefix(P_NAME_CODE, "<"), Rule.prefix(P_ALIAS_NAME_CODE, "alias"), Rule.blank(P_NOTHING),
+      Rule.prefix(P_COMMENT, "//"), Rule.prefix(P_COMMENT, "#"), Rule.prefix(P_OTHER, "default "),
+      Rule.prefix(P_OTHER, "xkb_keycodes"), Rule.prefix(P_OTHER, "};"),
+      Rule.prefix(P_OTHER, "minimum"), Rule.prefix(P_OTHER, "maximum"),
+      Rule.prefix(P_OTHER, "indicator "));
 
-  public static Xkeys latest() {
-    CharSource evdev = Resources.asCharSource(EvdevReader.class.getResource("evdev - 733b90"),
+  /** The name of the resource containing the latest version of the X keys. */
+  static final String LATEST_RESOURCE_NAME = "evdev - 733b90";
+
+  static CharSource latestSource() {
+    return Resources.asCharSource(EvdevReader.class.getResource(LATEST_RESOURCE_NAME),
         StandardCharsets.UTF_8);
+  }
+
+  public static Xkeys latest() {
+    CharSource evdev = latestSource();
     try {
       return parse(evdev);
     } catch (IOException e) {
@@ -48,8 +60,9 @@ class EvdevReader {
     final ImmutableBiMap.Builder<String, Short> builder = new ImmutableBiMap.Builder<>();
     final ImmutableMap.Builder<String, String> builderAliases = new ImmutableMap.Builder<>();
 
+    LineMatcher lineMatcher = DISPATCHER.lineMatcher();
     for (String line : lines) {
-      Matcher matcher = ParseUtils.matcher(line, PATTERNS);
+      Matcher matcher = lineMatcher.matcher(line);
       if (matcher.pattern().equals(P_NOTHING)) {
         continue;
       } else if (matcher.pattern().equals(P_COMMENT)) {
@@ -57,14 +70,16 @@ class EvdevReader {
       } else if (matcher.pattern().equals(P_OTHER)) {
         continue;
       } else if (matcher.pattern().equals(P_NAME_CODE)) {
-        String name = matcher.group("name");
+        String name = PackedKeyName.name(line, matcher.start("name"), matcher.end("name"));
         String codeStr = matcher.group("code");
         short code = Short.parseShort(codeStr);
         builder.put(name, code);
       } else {
         verify(matcher.pattern().equals(P_ALIAS_NAME_CODE));
-        String newName = matcher.group("newName");
-        String previousName = matcher.group("previousName");
+        String newName =
+            PackedKeyName.name(line, matcher.start("newName"), matcher.end("newName"));
+        String previousName =
+            PackedKeyName.name(line, matcher.start("previousName"), matcher.end("previousName"));
         builderAliases.put(newName, previousName);
       }
     }
@@ -0,0 +1,108 @@
+package io.github.oliviercailloux.keyboardd.xkeys;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+
+/**
+ * Encodes X key names of one to eight ASCII characters (such as {@code AE01}, {@code LFSH} or
+ * {@code I372}, which covers all the names of the bundled X keys) into a {@code long}, one
+ * character per byte, so that they can be looked up (see {@link Xkeys#code(long)}) without
+ * creating strings. Longer names, or names with other characters, can’t be packed; they are
+ * looked up as strings.
+ * <p>
+ * Parsers may also use {@link #name(CharSequence, int, int)} to obtain the X key name found in a
+ * buffer as a string shared with previous occurrences, rather than as a new substring.
+ */
+public final class PackedKeyName {
+  /** The value that {@link #pack(CharSequence)} returns for names that can’t be packed. */
+  public static final long UNPACKABLE = 0L;
+
+  private static final int MAX_LENGTH = Long.BYTES;
+  private static final int CACHE_BITS = 12;
+  /**
+   * A direct-mapped cache of unpacked names, indexed by a hash of their packed value. Races are
+   * benign: strings are immutable, and a name that is overwritten is recreated if needed.
+   */
+  private static final String[] CACHE = new String[1 << CACHE_BITS];
+
+  private PackedKeyName() {
+  }
+
+  /**
+   * Packs the given name.
+   *
+   * @param name an X key name
+   * @return {@link #UNPACKABLE} iff the given name is empty, longer than eight characters, or
+   *         contains a character that is not ASCII or is the null character
+   */
+  public static long pack(CharSequence name) {
+    return pack(name, 0, name.length());
+  }
+
+  /**
+   * Packs the name found between the given positions of the given text.
+   *
+   * @param text the text
+   * @param start the position of the first character of the name
+   * @param end the position after the last character of the name
+   * @return {@link #UNPACKABLE} iff the name is empty, longer than eight characters, or contains a
+   *         character that is not ASCII or is the null character
+   */
+  public static long pack(CharSequence text, int start, int end) {
+    checkPositionIndexes(start, end, text.length());
+    if (end - start > MAX_LENGTH) {
+      return UNPACKABLE;
+    }
+    long packed = 0L;
+    for (int i = start; i < end; ++i) {
+      char c = text.charAt(i);
+      if (c == 0 || c > 0x7F) {
+        return UNPACKABLE;
+      }
+      packed = packed << Byte.SIZE | c;
+    }
+    return packed;
+  }
+
+  /**
+   * Returns the name that the given value encodes.
+   *
+   * @param packed a value returned by {@link #pack(CharSequence)}, not {@link #UNPACKABLE}
+   * @return a new string
+   */
+  public static String unpack(long packed) {
+    checkArgument(packed != UNPACKABLE);
+    char[] chars = new char[MAX_LENGTH];
+    int start = MAX_LENGTH;
+    for (long rest = packed; rest != 0L; rest >>>= Byte.SIZE) {
+      --start;
+      chars[start] = (char) (rest & 0xFF);
+    }
+    return new String(chars, start, MAX_LENGTH - start);
+  }
+
+  /**
+   * Returns the name found between the given positions of the given text. If the name can be
+   * packed, the string is shared with previous calls for the same name (unless evicted by a
+   * colliding name), so that parsing many occurrences of a name allocates it about once.
+   *
+   * @param text the text
+   * @param start the position of the first character of the name
+   * @param end the position after the last character of the name
+   * @return the name
+   */
+  public static String name(CharSequence text, int start, int end) {
+    long packed = pack(text, start, end);
+    if (packed == UNPACKABLE) {
+      return text.subSequence(start, end).toString();
+    }
+    int index = (int) ((packed ^ (packed >>> 32)) * 0x9E3779B9L) >>> (Integer.SIZE - CACHE_BITS);
+    String cached = CACHE[index];
+    if (cached != null && pack(cached) == packed) {
+      return cached;
+    }
+    String name = unpack(packed);
+    CACHE[index] = name;
+    return name;
+  }
+}
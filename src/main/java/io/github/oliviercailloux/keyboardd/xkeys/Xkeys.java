@@ -3,6 +3,7 @@ package io.github.oliviercailloux.keyboardd.xkeys;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import com.google.common.io.CharSource;
 import java.io.IOException;
 import java.util.Map;
@@ -12,8 +13,15 @@ import java.util.Map;
  * system.
  */
 public interface Xkeys {
+  /**
+   * Returns the latest version of the X keys, as included in this library. It is loaded once per
+   * process (see {@link io.github.oliviercailloux.keyboardd.BundledData}), using the binary
+   * snapshot computed at build time when available, otherwise parsing the text resource.
+   *
+   * @return the latest version of the X keys.
+   */
   public static Xkeys latest() {
-    return EvdevReader.latest();
+    return XkeysImpl.LATEST.get();
   }
 
   /**
@@ -105,6 +113,26 @@ public interface Xkeys {
    */
   short code(String keyName);
 
+  /**
+   * Returns the code of the given X key name, without allocating. Names that can’t be packed are
+   * only found by {@link #code(String)}.
+   *
+   * @param packedKeyName a legal X key name, packed with {@link PackedKeyName#pack(CharSequence)}
+   * @return the code
+   * @throws IllegalArgumentException iff the given value is not a legal packed X key name
+   */
+  short code(long packedKeyName);
+
+  /**
+   * Returns the canonical X key name corresponding to the given X key name, without allocating.
+   * Names that can’t be packed are only found by {@link #canonical(String)}.
+   *
+   * @param packedKeyName a legal X key name, packed with {@link PackedKeyName#pack(CharSequence)}
+   * @return the canonical name (equal to the unpacked argument iff it is canonical)
+   * @throws IllegalArgumentException iff the given value is not a legal packed X key name
+   */
+  String canonical(long packedKeyName);
+
   /**
    *
    * @return key set equals the legal names; values equals the legal codes;
@@ -113,6 +141,15 @@ public interface Xkeys {
 
   Xkeys withoutAliases();
 
+  /**
+   * Returns a 128 bits fingerprint of the canonical names, codes and aliases, computed once.
+   * Equal X keys have equal fingerprints; the fingerprint depends neither on iteration orders nor
+   * on the run or the JVM, so that it may serve as a persistent cache key.
+   *
+   * @return the fingerprint
+   */
+  HashCode fingerprint();
+
   @Override
   boolean equals(Object o2);
 }
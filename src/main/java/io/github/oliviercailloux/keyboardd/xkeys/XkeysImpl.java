@@ -3,13 +3,23 @@ package io.github.oliviercailloux.keyboardd.xkeys;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.github.oliviercailloux.keyboardd.utils.LazyHolder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,8 +27,34 @@ class XkeysImpl implements Xkeys {
   @SuppressWarnings("unused")
   private static final Logger LOGGER = LoggerFactory.getLogger(XkeysImpl.class);
 
+  /**
+   * The latest X keys (see {@link Xkeys#latest()}), from the snapshot if available, otherwise from
+   * the text resource.
+   */
+  static final LazyHolder<Xkeys> LATEST = LazyHolder.registered("Xkeys.latest",
+      () -> XkeysSnapshot.latest().orElseGet(EvdevReader::latest));
+
   private final ImmutableBiMap<String, Short> codeByCanonical;
   private final ImmutableMap<String, String> canonicalByAlias;
+  /*
+   * Precomputed at construction, so that the accessors neither compute nor allocate. The dense
+   * arrays are indexed by code minus minCode, and contain null where there is no such code.
+   */
+  private final int minCode;
+  private final String[] canonicalByCodeIndex;
+  /** The canonical name followed by its aliases. */
+  private final ImmutableSet<String>[] namesByCodeIndex;
+  private final ImmutableSet<String>[] aliasesByCodeIndex;
+  private final ImmutableSet<String> names;
+  private final ImmutableMap<String, Short> codeByName;
+  /**
+   * The packable names, packed, in ascending order, with their code and canonical name; the other
+   * names are only found in codeByName.
+   */
+  private final long[] sortedPackedNames;
+  private final short[] codeBySortedPackedName;
+  private final String[] canonicalBySortedPackedName;
+  private final Supplier<HashCode> fingerprint;
 
   /**
    *
@@ -35,6 +71,74 @@ class XkeysImpl implements Xkeys {
     this.canonicalByAlias = ImmutableMap.copyOf(canonicalByAlias);
     checkArgument(codeByCanonical.keySet().containsAll(canonicalByAlias.values()));
     checkArgument(Sets.intersection(codeByCanonical.keySet(), canonicalByAlias.keySet()).isEmpty());
+
+    int min = codeByCanonical.values().stream().mapToInt(Short::intValue).min().orElse(0);
+    int max = codeByCanonical.values().stream().mapToInt(Short::intValue).max().orElse(-1);
+    minCode = min;
+    int nbIndices = max - min + 1;
+    canonicalByCodeIndex = new String[nbIndices];
+    @SuppressWarnings("unchecked")
+    ImmutableSet.Builder<String>[] aliasesBuilders =
+        (ImmutableSet.Builder<String>[]) new ImmutableSet.Builder<?>[nbIndices];
+    codeByCanonical.forEach((canonical, code) -> {
+      canonicalByCodeIndex[code - min] = canonical;
+      aliasesBuilders[code - min] = ImmutableSet.builder();
+    });
+    canonicalByAlias.forEach(
+        (alias, canonical) -> aliasesBuilders[codeByCanonical.get(canonical) - min].add(alias));
+    @SuppressWarnings("unchecked")
+    ImmutableSet<String>[] aliasesArray = (ImmutableSet<String>[]) new ImmutableSet<?>[nbIndices];
+    @SuppressWarnings("unchecked")
+    ImmutableSet<String>[] namesArray = (ImmutableSet<String>[]) new ImmutableSet<?>[nbIndices];
+    for (int i = 0; i < nbIndices; ++i) {
+      if (canonicalByCodeIndex[i] != null) {
+        aliasesArray[i] = aliasesBuilders[i].build();
+        namesArray[i] = ImmutableSet.<String>builder().add(canonicalByCodeIndex[i])
+            .addAll(aliasesArray[i]).build();
+      }
+    }
+    aliasesByCodeIndex = aliasesArray;
+    namesByCodeIndex = namesArray;
+    names = ImmutableSet.<String>builder().addAll(codeByCanonical.keySet())
+        .addAll(canonicalByAlias.keySet()).build();
+    codeByName = ImmutableMap.<String, Short>builderWithExpectedSize(names.size())
+        .putAll(codeByCanonical)
+        .putAll(Maps.transformValues(canonicalByAlias, codeByCanonical::get)).build();
+    sortedPackedNames = names.stream().mapToLong(PackedKeyName::pack)
+        .filter(p -> p != PackedKeyName.UNPACKABLE).sorted().toArray();
+    codeBySortedPackedName = new short[sortedPackedNames.length];
+    canonicalBySortedPackedName = new String[sortedPackedNames.length];
+    for (int i = 0; i < sortedPackedNames.length; ++i) {
+      String name = PackedKeyName.unpack(sortedPackedNames[i]);
+      codeBySortedPackedName[i] = codeByName.get(name);
+      canonicalBySortedPackedName[i] = canonical(name);
+    }
+    fingerprint = Suppliers.memoize(this::computeFingerprint);
+  }
+
+  /** Returns the index of the given code in the dense arrays, or -1 if it is not a legal code. */
+  private int codeIndex(int code) {
+    int index = code - minCode;
+    return index >= 0 && index < canonicalByCodeIndex.length && canonicalByCodeIndex[index] != null
+        ? index
+        : -1;
+  }
+
+  private HashCode computeFingerprint() {
+    HashFunction function = Hashing.murmur3_128();
+    List<HashCode> entryHashes = new ArrayList<>();
+    codeByCanonical.forEach((name, code) -> entryHashes.add(function.newHasher().putByte((byte) 0)
+        .putString(name, StandardCharsets.UTF_8).putShort(code).hash()));
+    canonicalByAlias.forEach((alias, canonical) -> entryHashes.add(
+        function.newHasher().putByte((byte) 1).putInt(alias.length())
+            .putString(alias, StandardCharsets.UTF_8).putString(canonical, StandardCharsets.UTF_8)
+            .hash()));
+    Hasher hasher = function.newHasher().putInt(codeByCanonical.size())
+        .putInt(canonicalByAlias.size());
+    if (!entryHashes.isEmpty()) {
+      hasher.putBytes(Hashing.combineUnordered(entryHashes).asBytes());
+    }
+    return hasher.hash();
   }
 
   @Override
@@ -49,17 +153,19 @@ class XkeysImpl implements Xkeys {
 
   @Override
   public String canonical(String keyName) {
-    if (canonicals().contains(keyName)) {
-      return keyName;
+    String canonical = canonicalByAlias.get(keyName);
+    if (canonical != null) {
+      return canonical;
     }
-    checkArgument(aliases().contains(keyName));
-    return canonicalByAlias.get(keyName);
+    checkArgument(codeByCanonical.containsKey(keyName));
+    return keyName;
   }
 
   @Override
   public String canonical(short code) {
-    checkArgument(codes().contains(code));
-    return codeByCanonical.inverse().get(code);
+    int index = codeIndex(code);
+    checkArgument(index != -1);
+    return canonicalByCodeIndex[index];
   }
 
   @Override
@@ -79,8 +185,9 @@ class XkeysImpl implements Xkeys {
 
   @Override
   public ImmutableSet<String> aliases(String canonical) {
-    checkArgument(canonicals().contains(canonical));
-    return canonicalByAlias.asMultimap().inverse().get(canonical);
+    Short code = codeByCanonical.get(canonical);
+    checkArgument(code != null);
+    return aliasesByCodeIndex[code - minCode];
   }
 
   @Override
@@ -90,33 +197,46 @@ class XkeysImpl implements Xkeys {
 
   @Override
   public ImmutableSet<String> names() {
-    return Sets.union(canonicals(), aliases()).immutableCopy();
+    return names;
   }
 
   @Override
   public ImmutableSet<String> names(short code) {
-    checkArgument(codes().contains(code));
-    String canonical = canonicalByCode().get(code);
-    ImmutableSet<String> aliases = aliases(canonical);
-    final ImmutableSet.Builder<String> all =
-        new ImmutableSet.Builder<String>().add(canonical).addAll(aliases);
-    return all.build();
+    int index = codeIndex(code);
+    checkArgument(index != -1);
+    return namesByCodeIndex[index];
   }
 
   @Override
   public boolean isAlias(String keyName) {
-    checkArgument(aliases().contains(keyName) || canonicals().contains(keyName));
-    return aliases().contains(keyName);
+    checkArgument(codeByName.containsKey(keyName));
+    return canonicalByAlias.containsKey(keyName);
   }
 
   @Override
   public short code(String keyName) {
-    return codeByCanonical.get(canonical(keyName));
+    Short code = codeByName.get(keyName);
+    checkArgument(code != null);
+    return code;
+  }
+
+  @Override
+  public short code(long packedKeyName) {
+    int index = Arrays.binarySearch(sortedPackedNames, packedKeyName);
+    checkArgument(index >= 0);
+    return codeBySortedPackedName[index];
+  }
+
+  @Override
+  public String canonical(long packedKeyName) {
+    int index = Arrays.binarySearch(sortedPackedNames, packedKeyName);
+    checkArgument(index >= 0);
+    return canonicalBySortedPackedName[index];
   }
 
   @Override
   public ImmutableMap<String, Short> codeByName() {
-    return Maps.toMap(names(), this::code);
+    return codeByName;
   }
 
   @Override
@@ -124,19 +244,27 @@ class XkeysImpl implements Xkeys {
     return XkeysImpl.fromMaps(codeByCanonical, ImmutableMap.of());
   }
 
+  @Override
+  public HashCode fingerprint() {
+    return fingerprint.get();
+  }
+
   @Override
   public boolean equals(Object o2) {
     if (!(o2 instanceof XkeysImpl)) {
       return false;
     }
     final XkeysImpl t2 = (XkeysImpl) o2;
-    return codeByCanonical.equals(t2.codeByCanonical)
+    if (this == t2) {
+      return true;
+    }
+    return fingerprint().equals(t2.fingerprint()) && codeByCanonical.equals(t2.codeByCanonical)
         && canonicalByAlias.equals(t2.canonicalByAlias);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(codeByCanonical, canonicalByAlias);
+    return fingerprint().asInt();
   }
 
   @Override
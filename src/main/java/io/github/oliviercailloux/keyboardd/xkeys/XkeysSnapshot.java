@@ -0,0 +1,138 @@
+package io.github.oliviercailloux.keyboardd.xkeys;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.VerifyException;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableMap;
+import io.github.oliviercailloux.keyboardd.utils.SnapshotUtils;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A binary snapshot of the latest X keys included in this library, computed at build time so that
+ * {@link Xkeys#latest()} does not have to parse the text resource.
+ * <p>
+ * The snapshot is a resource named after the text resource it is computed from (which includes a
+ * hash of its content) and also records that name, so that a snapshot of an outdated text resource
+ * is not used.
+ * <p>
+ * The same format is used for snapshots of other sources, identified by another name (see
+ * {@link io.github.oliviercailloux.keyboardd.SystemXkb}).
+ */
+public class XkeysSnapshot {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(XkeysSnapshot.class);
+
+  static final String LATEST_SNAPSHOT_NAME = EvdevReader.LATEST_RESOURCE_NAME + ".snapshot";
+
+  /**
+   * Writes the snapshot of the latest X keys, parsed from the text resource, into the given
+   * directory of classes (for example, {@code target/classes}).
+   *
+   * @param args the directory of classes
+   * @throws IOException if an I/O error occurs
+   */
+  public static void main(String[] args) throws IOException {
+    checkArgument(args.length == 1, "Expected the classes directory as sole argument.");
+    Path target = Path.of(args[0]).resolve(
+        XkeysSnapshot.class.getPackageName().replace('.', '/')).resolve(LATEST_SNAPSHOT_NAME);
+    Xkeys latest = EvdevReader.parse(EvdevReader.latestSource());
+    Files.createDirectories(target.getParent());
+    try (OutputStream output = Files.newOutputStream(target)) {
+      write(latest, output);
+    }
+    LOGGER.info("Wrote {}.", target);
+  }
+
+  /**
+   * Reads the snapshot of the latest X keys, if it is available and corresponds to the current text
+   * resource.
+   *
+   * @return empty iff no suitable snapshot is available
+   */
+  static Optional<Xkeys> latest() {
+    final Optional<ByteBuffer> bufferOpt;
+    try {
+      bufferOpt = SnapshotUtils.read(XkeysSnapshot.class.getResource(LATEST_SNAPSHOT_NAME));
+    } catch (IOException e) {
+      throw new VerifyException(e);
+    }
+    if (bufferOpt.isEmpty()) {
+      LOGGER.debug("No snapshot found, will parse.");
+      return Optional.empty();
+    }
+    return read(bufferOpt.orElseThrow(), EvdevReader.LATEST_RESOURCE_NAME);
+  }
+
+  static void write(Xkeys xkeys, OutputStream destination) throws IOException {
+    write(xkeys, EvdevReader.LATEST_RESOURCE_NAME, destination);
+  }
+
+  /**
+   * Writes a snapshot of the given X keys.
+   *
+   * @param xkeys the X keys to write
+   * @param sourceName the name that identifies the text the X keys have been parsed from
+   * @param destination where to write; not closed
+   * @throws IOException if an I/O error occurs
+   */
+  public static void write(Xkeys xkeys, String sourceName, OutputStream destination)
+      throws IOException {
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(destination));
+    SnapshotUtils.putHeader(output, sourceName);
+    output.writeInt(xkeys.codeByCanonical().size());
+    for (Map.Entry<String, Short> entry : xkeys.codeByCanonical().entrySet()) {
+      SnapshotUtils.putString(output, entry.getKey());
+      output.writeShort(entry.getValue());
+    }
+    output.writeInt(xkeys.canonicalByAlias().size());
+    for (Map.Entry<String, String> entry : xkeys.canonicalByAlias().entrySet()) {
+      SnapshotUtils.putString(output, entry.getKey());
+      SnapshotUtils.putString(output, entry.getValue());
+    }
+    output.flush();
+  }
+
+  /**
+   * Reads a snapshot.
+   *
+   * @param buffer the snapshot
+   * @param sourceName the name of the text that the snapshot must correspond to
+   * @return empty iff the snapshot does not correspond to the given source or is invalid
+   */
+  public static Optional<Xkeys> read(ByteBuffer buffer, String sourceName) {
+    try {
+      if (!SnapshotUtils.readHeader(buffer, sourceName)) {
+        LOGGER.debug("Snapshot does not correspond to {}, will parse.", sourceName);
+        return Optional.empty();
+      }
+      int nbCanonicals = buffer.getInt();
+      final ImmutableBiMap.Builder<String, Short> codes = new ImmutableBiMap.Builder<>();
+      for (int i = 0; i < nbCanonicals; ++i) {
+        codes.put(SnapshotUtils.getString(buffer), buffer.getShort());
+      }
+      int nbAliases = buffer.getInt();
+      final ImmutableMap.Builder<String, String> aliases = new ImmutableMap.Builder<>();
+      for (int i = 0; i < nbAliases; ++i) {
+        aliases.put(SnapshotUtils.getString(buffer), SnapshotUtils.getString(buffer));
+      }
+      return Optional.of(Xkeys.fromMaps(codes.build(), aliases.build()));
+    } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+      LOGGER.warn("Invalid snapshot, will parse.", e);
+      return Optional.empty();
+    }
+  }
+
+  private XkeysSnapshot() {}
+}
@@ -0,0 +1,57 @@
+package io.github.oliviercailloux.keyboardd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.keyboardd.mnemonics.Mnemonics;
+import io.github.oliviercailloux.keyboardd.utils.LazyHolder;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class BundledDataTests {
+  /** A holder local to these tests, so that invalidating it does not affect the other tests. */
+  private static final LazyHolder<Object> PROBE =
+      LazyHolder.registered("BundledDataTests.probe", Object::new);
+
+  @Test
+  public void testShared() throws Exception {
+    Mnemonics mnemonics = Mnemonics.latest();
+    LazyHolder.Statistics before = BundledData.statistics().get("Mnemonics.latest");
+    assertSame(mnemonics, Mnemonics.latest());
+    LazyHolder.Statistics after = BundledData.statistics().get("Mnemonics.latest");
+    assertEquals(before.loads(), after.loads());
+    assertEquals(before.hits() + 1, after.hits());
+
+    assertSame(Xkeys.latest(), Xkeys.latest());
+    assertSame(XkbSymbolsReader.us(), XkbSymbolsReader.us());
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    Object probe = PROBE.get();
+    long loads = BundledData.statistics().get(PROBE.name()).loads();
+    Mnemonics mnemonics = Mnemonics.latest();
+    BundledData.invalidate(Set.of(PROBE.name()));
+    assertNotSame(probe, PROBE.get());
+    assertEquals(loads + 1, BundledData.statistics().get(PROBE.name()).loads());
+    assertSame(mnemonics, Mnemonics.latest());
+    assertThrows(IllegalArgumentException.class,
+        () -> BundledData.invalidate(Set.of("BundledDataTests.unknown")));
+  }
+
+  @Test
+  public void testPreload() throws Exception {
+    BundledData.preload();
+    assertTrue(BundledData.statistics().keySet().containsAll(
+        Set.of("Mnemonics.latest", "Xkeys.latest", "XkbSymbolsReader.common",
+            "XkbSymbolsReader.us", "XkbSymbolsReader.usIntl")));
+    long loads = BundledData.statistics().get("XkbSymbolsReader.common").loads();
+    XkbSymbolsReader.common();
+    assertEquals(loads, BundledData.statistics().get("XkbSymbolsReader.common").loads());
+  }
+}
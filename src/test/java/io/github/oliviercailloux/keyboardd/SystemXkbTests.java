@@ -0,0 +1,70 @@
+package io.github.oliviercailloux.keyboardd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.io.Resources;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.keyboardd.mnemonics.Mnemonics;
+import io.github.oliviercailloux.keyboardd.utils.SnapshotCache;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+
+public class SystemXkbTests {
+  private static void copy(Class<?> context, String resourceName, Path target) throws Exception {
+    Files.createDirectories(target.getParent());
+    Resources.asByteSource(context.getResource(resourceName))
+        .copyTo(MoreFiles.asByteSink(target));
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    Path directory = Files.createTempDirectory("xkb");
+    try {
+      Path root = directory.resolve("xkb");
+      Path evdev = root.resolve("keycodes").resolve("evdev");
+      Path header = directory.resolve("xkbcommon-keysyms.h");
+      Path cache = directory.resolve("cache");
+      copy(Xkeys.class, "evdev - 733b90", evdev);
+      copy(Mnemonics.class, "xkbcommon-keysyms - 238d13.h", header);
+      copy(KeyboardMap.class, "us - f7eb40", root.resolve("symbols").resolve("us"));
+
+      SystemXkb first = SystemXkb.using(root, header, cache);
+      assertEquals(Xkeys.latest(), first.xkeys());
+      assertEquals(Mnemonics.latest(), first.mnemonics());
+      assertEquals(XkbSymbolsReader.usIntl(), first.symbols("us", "intl"));
+      assertEquals(new SnapshotCache.Statistics(0, 3, 0), first.statistics());
+
+      SystemXkb second = SystemXkb.using(root, header, cache);
+      assertEquals(Xkeys.latest(), second.xkeys());
+      assertEquals(Mnemonics.latest(), second.mnemonics());
+      assertEquals(XkbSymbolsReader.usIntl(), second.symbols("us", "intl"));
+      assertEquals(XkbSymbolsReader.us(), second.symbols("us", "basic"));
+      assertEquals(new SnapshotCache.Statistics(3, 1, 0), second.statistics());
+
+      Files.setLastModifiedTime(evdev, FileTime.from(Instant.now().plusSeconds(3600)));
+      assertEquals(Xkeys.latest(), second.xkeys());
+      assertEquals(new SnapshotCache.Statistics(4, 1, 1), second.statistics());
+      SystemXkb third = SystemXkb.using(root, header, cache);
+      assertEquals(Xkeys.latest(), third.xkeys());
+      assertEquals(new SnapshotCache.Statistics(1, 0, 0), third.statistics());
+
+      copy(Xkeys.class, "evdev - bookworm - e88d1d", evdev);
+      Xkeys bookworm = Xkeys.fromSource(MoreFiles.asCharSource(evdev, StandardCharsets.UTF_8));
+      assertNotEquals(Xkeys.latest(), bookworm);
+      assertEquals(bookworm, second.xkeys());
+      assertEquals(new SnapshotCache.Statistics(4, 2, 1), second.statistics());
+      assertEquals(bookworm, SystemXkb.using(root, header, cache).xkeys());
+    } finally {
+      MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+}
@@ -2,10 +2,14 @@ package io.github.oliviercailloux.keyboardd.mapping;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharSource;
@@ -14,10 +18,17 @@ import io.github.oliviercailloux.jaris.io.PathUtils;
 import io.github.oliviercailloux.jaris.xml.DomHelper;
 import io.github.oliviercailloux.keyboardd.mapping.KeysymEntry.Mnemonic;
 import io.github.oliviercailloux.keyboardd.representable.SvgKeyboard;
+import io.github.oliviercailloux.keyboardd.utils.DispatcherBenchmark;
 import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -144,6 +155,29 @@ public class KeyboardMapTests {
     assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("b")), canonicalized.entries("BKSL"));
   }
 
+  @Test
+  void testCanonicalizeMemoized() throws Exception {
+    KeyboardMap map = XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us());
+    Xkeys xkeys = Xkeys.latest();
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    KeyboardMap canonicalized = map.canonicalize(xkeys);
+    LOGGER.info("First canonicalization: {}.", stopwatch.elapsed());
+    stopwatch.reset().start();
+    for (int i = 0; i < 1000; ++i) {
+      assertSame(canonicalized, map.canonicalize(xkeys));
+    }
+    LOGGER.info("Thousand memoized canonicalizations: {}.", stopwatch.elapsed());
+    assertEquals(canonicalized, map.canonicalize(ImmutableMap.copyOf(xkeys.canonicalByAlias())));
+    assertSame(canonicalized, canonicalized.canonicalize(xkeys));
+
+    KeyboardMap kbMap = KeyboardMap
+        .from(ImmutableListMultimap.<String, KeysymEntry>of("AC12", new Mnemonic("b")));
+    Map<String, String> aliases = new HashMap<>();
+    assertSame(kbMap, kbMap.canonicalize(aliases));
+    aliases.put("AC12", "BKSL");
+    assertEquals(ImmutableSet.of("BKSL"), kbMap.canonicalize(aliases).names());
+  }
+
   @Test
   void testReadCommon() throws Exception {
     KeyboardMap kbMap = XkbSymbolsReader.common();
@@ -201,4 +235,137 @@ public class KeyboardMapTests {
     assertTrue(map.entries("LCTL").size() == 1);
     assertEquals(ImmutableList.of(new Mnemonic("Control_L")), map.entries("LCTL"));
   }
+
+  @Test
+  void testGroups() throws Exception {
+    String section = String.join("\n",
+        "key <AC01> { type[Group1]=\"TWO_LEVEL\", symbols[Group1]=[ a, A ],"
+            + " symbols[group2]=[ U3B1 ] };",
+        "key <AC02> { [ b, B ], [ Greek_beta ], type = \"ALPHABETIC\" };",
+        "key <AC03> { symbols[Group2] = [ 0x1000394 ] };");
+    KeyboardMap map = XkbSymbolsReader.read(CharSource.wrap(section));
+
+    assertEquals(ImmutableSet.of("AC01", "AC02", "AC03"), map.names());
+    assertEquals(2, map.groupCount("AC01"));
+    assertEquals(0, map.groupCount("AC04"));
+    assertEquals(Optional.of(new KeysymEntry.Ucp(0x3B1)), map.entry("AC01", 2, 1));
+    assertEquals(Optional.empty(), map.entry("AC01", 2, 2));
+    assertEquals(Optional.empty(), map.entry("AC01", 3, 1));
+    assertEquals(Optional.of("TWO_LEVEL"), map.type("AC01", 1));
+    assertEquals(Optional.empty(), map.type("AC01", 2));
+    assertEquals(ImmutableList.of(new Mnemonic("Greek_beta")), map.entries("AC02", 2));
+    assertEquals(Optional.of("ALPHABETIC"), map.type("AC02", 2));
+    assertEquals(ImmutableList.of(), map.entries("AC03"));
+    assertEquals(ImmutableList.of(new KeysymEntry.Code(0x1000394)), map.entries("AC03", 2));
+    assertEquals(ImmutableSet.of("AC01", "AC02"), map.nameToEntries().keySet());
+    assertEquals(ImmutableSet.of("AC01"), map.namesFromUcp(0x3B1));
+
+    KeyboardMap built = KeyboardMap.builder()
+        .put("AC01", 1, ImmutableList.of(new Mnemonic("a"), new Mnemonic("A")), "TWO_LEVEL")
+        .put("AC01", 2, ImmutableList.of(new KeysymEntry.Ucp(0x3B1)))
+        .put("AC02", 1, ImmutableList.of(new Mnemonic("b"), new Mnemonic("B")), "ALPHABETIC")
+        .put("AC02", 2, ImmutableList.of(new Mnemonic("Greek_beta")), "ALPHABETIC")
+        .put("AC03", 2, ImmutableList.of(new KeysymEntry.Code(0x1000394))).build();
+    assertEquals(built, map);
+    assertEquals(built.hashCode(), map.hashCode());
+    assertEquals(built.fingerprint(), map.fingerprint());
+    KeyboardMap untyped = KeyboardMap.builder().putKey("AC01", map).putKey("AC03", map)
+        .put("AC02", 1, ImmutableList.of(new Mnemonic("b"), new Mnemonic("B")))
+        .put("AC02", 2, ImmutableList.of(new Mnemonic("Greek_beta")), "ALPHABETIC").build();
+    assertNotEquals(untyped, map);
+    assertNotEquals(untyped.fingerprint(), map.fingerprint());
+    /* The fingerprint must not change across runs, JVMs or versions. */
+    assertEquals("f142352fb7eb110ae15bbc251911be56",
+        KeyboardMap.from(ImmutableListMultimap.of("AC01", new Mnemonic("a"), "AC02",
+            new KeysymEntry.Ucp(0x3B1))).fingerprint().toString());
+    assertEquals("f142352fb7eb110ae15bbc251911be56",
+        KeyboardMap.from(ImmutableListMultimap.of("AC02", new KeysymEntry.Ucp(0x3B1), "AC01",
+            new Mnemonic("a"))).fingerprint().toString());
+
+    KeyboardMap overwritten =
+        map.overwrite(KeyboardMap.from(ImmutableListMultimap.of("AC01", new Mnemonic("q"))));
+    assertEquals(1, overwritten.groupCount("AC01"));
+    assertEquals(map.entries("AC02", 2), overwritten.entries("AC02", 2));
+  }
+
+  @Test
+  void testToBuilder() throws Exception {
+    KeyboardMap.Builder fullBuilder = KeyboardMap.builder();
+    for (int i = 0; i < 100; ++i) {
+      fullBuilder.put("K" + i, 1, ImmutableList.of(new KeysymEntry.Ucp(0x61 + i)));
+    }
+    KeyboardMap full = fullBuilder.build();
+
+    KeyboardMap changed = full.toBuilder()
+        .put("K3", 2, ImmutableList.of(new Mnemonic("Greek_beta")), "ALPHABETIC").remove("K5")
+        .put("New", 1, ImmutableList.of(new Mnemonic("q"))).remove("Absent").build();
+    assertEquals(100, changed.names().size());
+    assertFalse(changed.names().contains("K5"));
+    assertEquals("New", changed.names().asList().get(99));
+    assertEquals(full.entries("K3"), changed.entries("K3"));
+    assertEquals(Optional.of("ALPHABETIC"), changed.type("K3", 2));
+    assertEquals(ImmutableSet.of("K3"), changed.namesFromMnemonic("Greek_beta"));
+    assertEquals(ImmutableList.of(), full.entries("K3", 2));
+    assertEquals(ImmutableList.of(new KeysymEntry.Ucp(0x61 + 5)), full.entries("K5"));
+
+    KeyboardMap.Builder expectedBuilder = KeyboardMap.builder();
+    for (int i = 0; i < 100; ++i) {
+      if (i != 5) {
+        expectedBuilder.putKey("K" + i, full);
+      }
+    }
+    KeyboardMap expected = expectedBuilder
+        .put("K3", 2, ImmutableList.of(new Mnemonic("Greek_beta")), "ALPHABETIC")
+        .put("New", 1, ImmutableList.of(new Mnemonic("q"))).build();
+    assertEquals(expected, changed);
+    assertEquals(expected.hashCode(), changed.hashCode());
+    assertEquals(changed, changed.toBuilder().remove("New").putKey("New", changed).build());
+    assertEquals(full, changed.toBuilder().remove("New").putKey("K5", full)
+        .putKey("K3", full).build());
+
+    KeyboardMap edited = full;
+    for (int i = 0; i < 300; ++i) {
+      edited = edited.toBuilder()
+          .put("K" + i % 150, 1, ImmutableList.of(new KeysymEntry.Code(0x1000000 + i))).build();
+    }
+    assertEquals(150, edited.names().size());
+    assertEquals(ImmutableList.of(new KeysymEntry.Code(0x1000000 + 299)), edited.entries("K149"));
+    assertEquals(ImmutableList.of(new KeysymEntry.Code(0x1000000 + 150)), edited.entries("K0"));
+    assertEquals(ImmutableSet.of("K149"), edited.namesFromCode(0x1000000 + 299));
+  }
+
+  @Test
+  void testReverseIndexConcurrent() throws Exception {
+    KeyboardMap us = KeyboardMap.from(XkbSymbolsReader.us().nameToEntries());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ImmutableList<Future<ReverseIndex>> indices =
+          IntStream.range(0, 8).mapToObj(i -> executor.submit(us::reverseIndex))
+              .collect(ImmutableList.toImmutableList());
+      for (Future<ReverseIndex> index : indices) {
+        assertSame(us.reverseIndex(), index.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    ReverseIndex index = us.reverseIndex();
+    assertEquals(ImmutableSet.of("AC01"), index.namesFromMnemonic("a"));
+    assertEquals(ImmutableSet.of("AC01"), index.names(new Mnemonic("A")));
+    assertEquals(ImmutableSet.of(), index.names(new KeysymEntry.Ucp('a')));
+    assertEquals(ImmutableSet.of(), index.namesFromCode(0x61));
+
+    ReverseIndex built = ReverseIndex.builder().putUcp(0x3B1, "AD01").putCode(0x7e1, "AD01")
+        .putUcp(0x3B1, "AD02").putUcp(0x3B1, "AD01").build();
+    assertEquals(ImmutableList.of("AD01", "AD02"), built.namesFromUcp(0x3B1).asList());
+    assertEquals(ImmutableSet.of("AD01"), built.namesFromCode(0x7e1));
+    assertEquals(ImmutableSet.of(), built.namesFromCode(0x3B1));
+  }
+
+  @Test
+  public void testDispatcher() throws Exception {
+    ImmutableList<String> lines = XkbSymbolsReader.usSource().readLines();
+    DispatcherBenchmark.assertAgrees(lines, XkbSymbolsReader.DISPATCHER);
+    DispatcherBenchmark.benchmark(lines, XkbSymbolsReader.DISPATCHER);
+  }
 }
@@ -1,15 +1,30 @@
 package io.github.oliviercailloux.keyboardd.mapping;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharSource;
+import com.google.common.io.CharStreams;
 import com.google.common.io.Resources;
+import io.github.oliviercailloux.keyboardd.mapping.XkbKeymapDecomposer.Section;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 
 public class XkbKeymapDecomposerTests {
@@ -34,4 +49,136 @@ public class XkbKeymapDecomposerTests {
     assertTrue(bySymbolsMap.get("intl")
         .contains("key <TLDE> { [dead_grave, dead_tilde,         grave,       asciitilde ] };"));
   }
+
+  @Test
+  void testIndexUs() throws Exception {
+    CharSource source = Resources.asCharSource(KeyboardMapTests.class.getResource("us - f7eb40"),
+        StandardCharsets.UTF_8);
+    ImmutableMap<String, String> bySymbolsMap = XkbKeymapDecomposer.bySymbolsMap(source);
+    XkbSymbolsIndex index = XkbSymbolsIndex.index(source);
+    assertEquals(bySymbolsMap.keySet(), index.names());
+    assertEquals(ImmutableList.of("basic", "euro", "ibm238l", "intl"),
+        index.names().asList().subList(0, 4));
+    for (String name : index.names()) {
+      assertEquals(Optional.ofNullable(bySymbolsMap.get(name)), index.contents(name));
+    }
+    assertThrows(IllegalArgumentException.class, () -> index.contents("unknown"));
+
+    KeyboardMap intl = index.keyboardMap("intl");
+    assertEquals(XkbSymbolsReader.read(CharSource.wrap(bySymbolsMap.get("intl"))), intl);
+    assertSame(intl, index.keyboardMap("intl"));
+  }
+
+  @Test
+  void testSectionsNested() throws Exception {
+    String keymap = """
+        xkb_keymap {
+          xkb_keycodes "evdev" { <AC01> = 38; };
+          xkb_symbols "first" {
+            // A comment with a brace }
+            name[Group1] = "Brace } in a string";
+            key <AC01> { type[Group1] = "ALPHABETIC", symbols[Group1] = [ a, A ] };
+            /* { */
+          };
+          xkb_symbols "second" {
+            key <AC02> { [ s, S ] };
+          };
+        };
+        """;
+    try (Stream<Section> sections = XkbKeymapDecomposer.sections(new StringReader(keymap))) {
+      ImmutableList<Section> read = sections.collect(ImmutableList.toImmutableList());
+      assertEquals(ImmutableList.of("first", "second"),
+          read.stream().map(Section::name).collect(ImmutableList.toImmutableList()));
+      assertTrue(read.get(0).contents().startsWith("    // A comment with a brace }\n"));
+      assertTrue(read.get(0).contents().contains("symbols[Group1] = [ a, A ] };\n    /* { */\n"));
+      assertEquals("    key <AC02> { [ s, S ] };\n  ", read.get(1).contents());
+    }
+
+    String unterminated = "xkb_symbols \"a\" { key <AC01> { [ a ] };";
+    try (Stream<Section> sections = XkbKeymapDecomposer.sections(new StringReader(unterminated))) {
+      assertThrows(IllegalArgumentException.class, () -> sections.count());
+    }
+  }
+
+  @Test
+  void testSectionsStreamed() throws Exception {
+    Reader first = new StringReader("xkb_symbols \"a\" {\n  key <AC01> { [ a ] };\n};\n");
+    Reader failing = new Reader() {
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException {
+        throw new IOException("Not there yet");
+      }
+
+      @Override
+      public void close() {
+        /* Nothing to close. */
+      }
+    };
+    Reader source = CharSource.concat(CharSource.wrap(CharStreams.toString(first)),
+        new CharSource() {
+          @Override
+          public Reader openStream() {
+            return failing;
+          }
+        }).openStream();
+    Iterator<Section> sections = XkbKeymapDecomposer.sections(source).iterator();
+    assertEquals(new Section("a", "  key <AC01> { [ a ] };\n"), sections.next());
+    assertThrows(UncheckedIOException.class, sections::hasNext);
+  }
+
+  @Test
+  void testCatalog() throws Exception {
+    Path directory =
+        Path.of(XkbKeymapDecomposerTests.class.getResource("Symbols directory").toURI());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    final XkbSymbolsCatalog catalog;
+    try {
+      catalog = XkbSymbolsCatalog.load(directory, executor);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(ImmutableList.of("ab(basic)", "ef(augmented)", "ef(basic)", "ef(cycle)",
+        "ef(loop)", "ef(trailing)", "sub/cd(basic)"), catalog.keyboardMaps().keySet().asList());
+    assertEquals(ImmutableSet.of("AC01", "AC02"),
+        catalog.keyboardMap("ab", "basic").orElseThrow().names());
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("d"), new KeysymEntry.Mnemonic("D"),
+        new KeysymEntry.Ucp(0x111), new KeysymEntry.Ucp(0x110)),
+        catalog.keyboardMap("sub/cd", "basic").orElseThrow().entries("AC04"));
+    assertEquals(ImmutableSet.of("ab(virtual)"), catalog.failures().keySet());
+    assertTrue(catalog.keyboardMap("ab", "virtual").isEmpty());
+
+    assertEquals(ImmutableSet.of("ef(cycle)", "ef(loop)"),
+        catalog.resolutionFailures().keySet());
+    assertEquals(catalog.keyboardMaps().get("ab(basic)"),
+        catalog.resolvedKeyboardMaps().get("ab(basic)"));
+    KeyboardMap efBasic = catalog.resolvedKeyboardMaps().get("ef(basic)");
+    assertEquals(ImmutableSet.of("AC01", "AC02", "AC03", "AC04"), efBasic.names());
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("e"), new KeysymEntry.Mnemonic("E")),
+        efBasic.entries("AC02"));
+    assertEquals(efBasic, catalog.resolvedKeyboardMaps().get("ef(augmented)"));
+    KeyboardMap efTrailing = catalog.resolvedKeyboardMaps().get("ef(trailing)");
+    assertEquals(ImmutableSet.of("AC01", "AC02", "AC03", "AC05"), efTrailing.names());
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("a"), new KeysymEntry.Mnemonic("A")),
+        efTrailing.entries("AC01"));
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("y"), new KeysymEntry.Mnemonic("Y")),
+        efTrailing.entries("AC03"));
+    assertEquals(efBasic, catalog.resolve("ef"));
+    assertEquals(efBasic, catalog.resolve("ef(basic)|ab"));
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("b"), new KeysymEntry.Mnemonic("B")),
+        catalog.resolve("ef(basic)+ab:1").entries("AC02"));
+    KeyboardMap twoGroups = catalog.resolve("ab+sub/cd:2");
+    assertEquals(ImmutableSet.of("AC01", "AC02", "AC03", "AC04"), twoGroups.names());
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("a"), new KeysymEntry.Mnemonic("A")),
+        twoGroups.entries("AC01", 1));
+    assertEquals(1, twoGroups.groupCount("AC01"));
+    assertEquals(ImmutableList.of(), twoGroups.entries("AC04", 1));
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("d"), new KeysymEntry.Mnemonic("D"),
+        new KeysymEntry.Ucp(0x111), new KeysymEntry.Ucp(0x110)), twoGroups.entries("AC04", 2));
+    KeyboardMap augmented = catalog.resolve("ab+sub/cd:2|ab:2");
+    assertEquals(ImmutableList.of(new KeysymEntry.Mnemonic("a"), new KeysymEntry.Mnemonic("A")),
+        augmented.entries("AC01", 2));
+    assertEquals(twoGroups.entries("AC04", 2), augmented.entries("AC04", 2));
+    assertThrows(IllegalArgumentException.class, () -> catalog.resolve("ab+sub/cd:0"));
+    assertThrows(IllegalArgumentException.class, () -> catalog.resolve("ef(loop)"));
+  }
 }
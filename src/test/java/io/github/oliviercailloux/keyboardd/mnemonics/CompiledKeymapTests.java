@@ -0,0 +1,33 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class CompiledKeymapTests {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(CompiledKeymapTests.class);
+
+  @Test
+  public void testCompiledKeymap() throws Exception {
+    KeyboardMap map = XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us());
+    Xkeys xkeys = Xkeys.latest();
+    CompiledKeymap compiled = CompiledKeymap.compile(xkeys, map, Mnemonics.latest());
+    int ac01 = xkeys.code("AC01");
+    assertEquals(0x61, compiled.code(ac01, 1));
+    assertEquals('a', compiled.ucp(ac01, 1));
+    assertEquals(0x41, compiled.code(ac01, 2));
+    assertEquals('A', compiled.ucp(ac01, 2));
+    assertEquals(CompiledKeymap.ABSENT, compiled.code(ac01, 2, 1));
+    assertEquals(CompiledKeymap.ABSENT, compiled.code(ac01, compiled.levelCount() + 1));
+    assertEquals(CompiledKeymap.ABSENT, compiled.code(0, 1));
+    int lfsh = xkeys.code("LFSH");
+    assertEquals(0xFFE1, compiled.code(lfsh, 1));
+    assertEquals(CompiledKeymap.ABSENT, compiled.ucp(lfsh, 1));
+  }
+}
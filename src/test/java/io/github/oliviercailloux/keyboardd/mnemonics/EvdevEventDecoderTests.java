@@ -0,0 +1,156 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class EvdevEventDecoderTests {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(EvdevEventDecoderTests.class);
+
+  private static final int A = 30;
+  private static final int LEFT_SHIFT = 42;
+  private static final int NB_EVENTS = 11;
+  /**
+   * Gives 110,000 events, thus many batches of 4,096 events read from channels, and 80,000 key
+   * events, thus more than the capacity of the ring, 65,536.
+   */
+  private static final int REPETITIONS = 10_000;
+
+  private static EvdevEventDecoder decoder() {
+    KeyboardMap map = XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us());
+    Xkeys xkeys = Xkeys.latest();
+    return EvdevEventDecoder.using(xkeys, CompiledKeymap.compile(xkeys, map, Mnemonics.latest()));
+  }
+
+  private static void putEvent(ByteBuffer events, long micros, int type, int code, int value) {
+    events.putLong(micros / 1_000_000).putLong(micros % 1_000_000).putShort((short) type)
+        .putShort((short) code).putInt(value);
+  }
+
+  /** Eight key events among eleven events, followed by a partial event of five bytes. */
+  private static ByteBuffer events() {
+    ByteBuffer events = ByteBuffer.allocate(NB_EVENTS * EvdevEventDecoder.EVENT_SIZE + 5)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    putEvent(events, 1_000_001, 1, A, EvdevEventDecoder.PRESS);
+    putEvent(events, 1_000_001, 0, 0, 0);
+    putEvent(events, 1_000_002, 1, A, EvdevEventDecoder.RELEASE);
+    putEvent(events, 1_000_002, 0, 0, 0);
+    putEvent(events, 2_000_000, 1, LEFT_SHIFT, EvdevEventDecoder.PRESS);
+    putEvent(events, 2_000_001, 1, A, EvdevEventDecoder.PRESS);
+    putEvent(events, 2_000_002, 1, A, EvdevEventDecoder.REPEAT);
+    putEvent(events, 2_000_003, 1, A, EvdevEventDecoder.RELEASE);
+    putEvent(events, 2_000_004, 1, LEFT_SHIFT, EvdevEventDecoder.RELEASE);
+    putEvent(events, 2_000_005, 1, A, EvdevEventDecoder.PRESS);
+    putEvent(events, 2_000_005, 0, 0, 0);
+    events.put(new byte[5]).flip();
+    return events;
+  }
+
+  /** The given number of repetitions of the complete events. */
+  private static byte[] recording(int repetitions) {
+    ByteBuffer events = events();
+    byte[] recording = new byte[repetitions * NB_EVENTS * EvdevEventDecoder.EVENT_SIZE];
+    ByteBuffer whole = ByteBuffer.wrap(recording);
+    for (int i = 0; i < repetitions; ++i) {
+      events.rewind().limit(NB_EVENTS * EvdevEventDecoder.EVENT_SIZE);
+      whole.put(events);
+    }
+    return recording;
+  }
+
+  @Test
+  public void testDecodeBuffer() throws Exception {
+    ByteBuffer events = events();
+    ImmutableList.Builder<String> decoded = ImmutableList.builder();
+    long nb = decoder().decode(events, (t, k, n, s, v) -> decoded.add(
+        String.format("%d %d %s %x %d", t, k, n, s, v)));
+    assertEquals(8, nb);
+    assertEquals(5, events.remaining());
+    assertEquals(ImmutableList.of("1000001 38 AC01 61 1", "1000002 38 AC01 61 0",
+        "2000000 50 LFSH ffe1 1", "2000001 38 AC01 41 1", "2000002 38 AC01 41 2",
+        "2000003 38 AC01 41 0", "2000004 50 LFSH ffe1 0", "2000005 38 AC01 61 1"),
+        decoded.build());
+  }
+
+  @Test
+  public void testDecodeFile(@TempDir Path directory) throws Exception {
+    EvdevEventDecoder decoder = decoder();
+    byte[] recording = recording(REPETITIONS);
+    Path file = directory.resolve("events.bin");
+    Files.write(file, recording);
+    long[] upper = new long[1];
+    long nbFromFile = decoder.decode(file, (t, k, n, s, v) -> upper[0] += s == 0x41 ? 1 : 0);
+    assertEquals(8L * REPETITIONS, nbFromFile);
+    assertEquals(3L * REPETITIONS, upper[0]);
+
+    /* Regions that split the sequences of events, and a trailing partial event. */
+    Files.write(file, new byte[5], StandardOpenOption.APPEND);
+    upper[0] = 0;
+    long nbFromRegions =
+        decoder.decode(file, (t, k, n, s, v) -> upper[0] += s == 0x41 ? 1 : 0, 7);
+    assertEquals(8L * REPETITIONS, nbFromRegions);
+    assertEquals(3L * REPETITIONS, upper[0]);
+
+    assertThrows(IllegalStateException.class, () -> decoder.decode(file, (t, k, n, s, v) -> {
+      throw new IllegalStateException();
+    }));
+  }
+
+  @Test
+  public void testDecodeChannel() throws Exception {
+    long[] lower = new long[1];
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      long nbFromPipe = decoder().decode(
+          Channels.newChannel(new ByteArrayInputStream(recording(REPETITIONS))),
+          (t, k, n, s, v) -> lower[0] += s == 0x61 ? 1 : 0, executor);
+      assertEquals(8L * REPETITIONS, nbFromPipe);
+      assertEquals(3L * REPETITIONS, lower[0]);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailingHandlerStopsReader() throws Exception {
+    /* A daemon thread, so that a reader that does not stop fails the test without hanging. */
+    ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+      Thread thread = new Thread(task);
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      /* More key events than the ring holds: a reader left running would wait forever for room. */
+      assertThrows(IllegalStateException.class,
+          () -> decoder().decode(
+              Channels.newChannel(new ByteArrayInputStream(recording(REPETITIONS))),
+              (t, k, n, s, v) -> {
+                throw new IllegalStateException();
+              }, executor));
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public class KeyEventRingTests {
+  private static String event(long timeMicros, int keycode, int value) {
+    return timeMicros + " " + keycode + " " + value;
+  }
+
+  private static ImmutableList<String> events(int from, int to) {
+    ImmutableList.Builder<String> events = ImmutableList.builder();
+    for (int i = from; i < to; ++i) {
+      events.add(event(i, i + 8, i % 3));
+    }
+    return events.build();
+  }
+
+  @Test
+  public void testIllegalCapacity() throws Exception {
+    assertThrows(IllegalArgumentException.class, () -> new KeyEventRing(0));
+    assertThrows(IllegalArgumentException.class, () -> new KeyEventRing(6));
+  }
+
+  @Test
+  public void testPublishAndWrap() throws Exception {
+    KeyEventRing ring = new KeyEventRing(4);
+    List<String> taken = new ArrayList<>();
+    KeyEventRing.Sink sink = (t, k, v) -> taken.add(event(t, k, v));
+
+    ring.put(0, 8, 0);
+    ring.put(1, 9, 1);
+    ring.publish();
+    ring.put(2, 10, 2);
+    assertTrue(ring.drain(sink));
+    assertEquals(events(0, 2), taken);
+
+    /* Indices 2, 3, 0 and 1: wraps around. */
+    ring.put(3, 11, 0);
+    ring.put(4, 12, 1);
+    ring.put(5, 13, 2);
+    ring.close();
+    assertTrue(ring.drain(sink));
+    assertEquals(events(0, 6), taken);
+    assertFalse(ring.drain(sink));
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    KeyEventRing ring = new KeyEventRing(4);
+    AtomicInteger nbPut = new AtomicInteger();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread producer = new Thread(() -> {
+      try {
+        for (int i = 0; i < 10; ++i) {
+          ring.put(i, i + 8, i % 3);
+          nbPut.incrementAndGet();
+        }
+        ring.close();
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    producer.start();
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (nbPut.get() < 4 && System.nanoTime() < deadline) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    assertEquals(4, nbPut.get());
+    assertTrue(producer.isAlive());
+
+    List<String> taken = new ArrayList<>();
+    while (ring.drain((t, k, v) -> taken.add(event(t, k, v)))) {
+      /* Drain until the producer closes the ring. */
+    }
+    producer.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(producer.isAlive());
+    assertNull(failure.get());
+    assertEquals(events(0, 10), taken);
+  }
+
+  @Test
+  public void testAbandon() throws Exception {
+    KeyEventRing ring = new KeyEventRing(2);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread producer = new Thread(() -> {
+      try {
+        for (int i = 0; i < 10; ++i) {
+          ring.put(i, i + 8, i % 3);
+        }
+      } catch (Throwable t) {
+        failure.set(t);
+      }
+    });
+    producer.start();
+    ring.abandon();
+    producer.join(TimeUnit.SECONDS.toMillis(10));
+    assertFalse(producer.isAlive());
+    assertTrue(failure.get() instanceof CancellationException, String.valueOf(failure.get()));
+  }
+}
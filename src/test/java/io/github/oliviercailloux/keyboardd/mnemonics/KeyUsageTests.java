@@ -0,0 +1,75 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class KeyUsageTests {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyUsageTests.class);
+
+  @Test
+  public void testCount(@TempDir Path directory) throws Exception {
+    KeystrokePlanner planner = KeystrokePlanner.using(
+        XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us()), Mnemonics.latest());
+    String text = "Hello, wörld!\n".repeat(1_000);
+    Path file = directory.resolve("corpus.txt");
+    Files.writeString(file, text + "\uD83D\uDE00\u00FF");
+    Files.write(file, new byte[] {(byte) 0xC3}, StandardOpenOption.APPEND);
+    KeyUsage usage = KeyUsage.count(planner, file);
+    assertEquals(text.length() + 3, usage.total());
+    assertEquals(1_000 + 3, usage.untypeable());
+    assertEquals(3_000, usage.count("AC09"));
+    assertEquals(1_000, usage.count("AD09"));
+    assertEquals(1_000, usage.count("AC06", 1, 2));
+    assertEquals(0, usage.count("AC06", 1, 1));
+    assertEquals(1_000, usage.count("AE01", 1, 2));
+    assertEquals(Long.valueOf(1_000), usage.countByXKeyName().get("RTRN"));
+    assertEquals(0, usage.count("Absent"));
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      /* Chunks of a few bytes, most of them split inside the multi-byte sequences. */
+      for (int chunkSize : new int[] {1, 2, 3, 7, 1_000}) {
+        KeyUsage chunked = KeyUsage.count(planner, file, executor, chunkSize);
+        assertEquals(usage.total(), chunked.total());
+        assertEquals(usage.untypeable(), chunked.untypeable());
+        assertEquals(usage.countByXKeyName(), chunked.countByXKeyName());
+        assertEquals(1_000, chunked.count("AC06", 1, 2));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testMalformed(@TempDir Path directory) throws Exception {
+    KeystrokePlanner planner = KeystrokePlanner.using(
+        XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us()), Mnemonics.latest());
+    Path file = directory.resolve("malformed.txt");
+    /*
+     * Overlong forms, an encoded surrogate, invalid lead bytes and a truncated sequence: each
+     * maximal invalid subpart counts as one replacement character.
+     */
+    int[] bytes = {0xC0, 0x80, 0xC1, 0xBF, 0xE0, 0x80, 0x80, 0xED, 0xA0, 0x80, 0xF0, 0x80, 0x80,
+        0x80, 0xF4, 0x90, 0x80, 0x80, 0xF5, 0x80, 0x80, 0x80, 0xFF, 0xE2, 0x82, 'a'};
+    byte[] content = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; ++i) {
+      content[i] = (byte) bytes[i];
+    }
+    Files.write(file, content);
+    KeyUsage usage = KeyUsage.count(planner, file);
+    assertEquals(2 + 2 + 3 + 3 + 4 + 4 + 4 + 1 + 1 + 1, usage.total());
+    assertEquals(2 + 2 + 3 + 3 + 4 + 4 + 4 + 1 + 1, usage.untypeable());
+    assertEquals(1, usage.count("AC01", 1, 1));
+  }
+}
@@ -0,0 +1,47 @@
+package io.github.oliviercailloux.keyboardd.mnemonics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultiset;
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.keyboardd.mnemonics.KeystrokePlanner.Keystroke;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class KeystrokePlannerTests {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeystrokePlannerTests.class);
+
+  @Test
+  public void testPlan() throws Exception {
+    KeystrokePlanner planner = KeystrokePlanner.using(
+        XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us()), Mnemonics.latest());
+    KeystrokePlanner.Plan plan = planner.plan("Hé,\n\uD83D\uDE00");
+    assertEquals(ImmutableList.of(new Keystroke("AC06", 1, 2), new Keystroke("AB08", 1, 1),
+        new Keystroke("RTRN", 1, 1)), plan.keystrokes());
+    assertEquals(ImmutableMultiset.of(0xE9, 0x1F600), plan.untypeable());
+    assertEquals(0.6d, plan.coverage());
+    assertEquals(Optional.of(new Keystroke("AC06", 1, 1)), planner.keystroke('h'));
+  }
+
+  @Test
+  public void testPlanFile(@TempDir Path directory) throws Exception {
+    KeystrokePlanner planner = KeystrokePlanner.using(
+        XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us()), Mnemonics.latest());
+    String text = "The quick brown fox jumps over the lazy dog. Déjà vu!\t\uD83D\uDE00\n"
+        .repeat(50_000);
+    Path file = directory.resolve("text.txt");
+    Files.writeString(file, text);
+    KeystrokePlanner.Plan sequential = planner.plan(file);
+    KeystrokePlanner.Plan parallel = planner.planInParallel(file);
+    assertEquals(planner.plan(text), sequential);
+    assertEquals(sequential, parallel);
+    assertEquals(150_000, parallel.untypeable().size());
+  }
+}
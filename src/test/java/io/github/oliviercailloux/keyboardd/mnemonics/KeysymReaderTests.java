@@ -3,9 +3,11 @@ package io.github.oliviercailloux.keyboardd.mnemonics;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.common.base.VerifyException;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
@@ -13,6 +15,13 @@ import com.google.common.collect.MoreCollectors;
 import com.google.common.collect.UnmodifiableIterator;
 import com.google.common.io.CharSource;
 import io.github.oliviercailloux.keyboardd.mnemonics.KeysymReader.ParsedMnemonic;
+import io.github.oliviercailloux.keyboardd.utils.DispatcherBenchmark;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -224,6 +233,54 @@ public class KeysymReaderTests {
     }
   }
 
+  @Test
+  public void testStream() throws Exception {
+    ImmutableSet<ParsedMnemonic> expected = KeysymReader.latest();
+    try (Reader reader = KeysymReader.latestSource().openStream();
+        Stream<ParsedMnemonic> mns = KeysymReader.stream(reader)) {
+      assertEquals(expected.asList(), mns.collect(ImmutableList.toImmutableList()));
+    }
+
+    Path file = Files.createTempFile("keysyms", ".h");
+    try {
+      Files.writeString(file, KeysymReader.latestSource().read());
+      try (Stream<ParsedMnemonic> mns = KeysymReader.stream(file)) {
+        assertEquals(expected.asList(), mns.collect(ImmutableList.toImmutableList()));
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testStreamChecksIncrementally() throws Exception {
+    String conflicting = """
+        #define XKB_KEY_first  0x1234  /* U+0041 LATIN CAPITAL LETTER A */
+        #define XKB_KEY_second  0x1234  /* U+0042 LATIN CAPITAL LETTER B */
+        """;
+    try (Stream<ParsedMnemonic> mns =
+        KeysymReader.stream(new StringReader(conflicting + "garbage\n".repeat(10)))) {
+      Iterator<ParsedMnemonic> iterator = mns.iterator();
+      assertEquals("first", iterator.next().mnemonic());
+      assertThrows(IllegalArgumentException.class, iterator::next);
+    }
+
+    String noImplicit = """
+        #define XKB_KEY_first  0x1234  /* U+0100 LATIN CAPITAL LETTER A WITH MACRON */
+        #define XKB_KEY_second  0x1235  /* U+0100 LATIN CAPITAL LETTER A WITH MACRON */
+        """;
+    try (Stream<ParsedMnemonic> mns = KeysymReader.stream(new StringReader(noImplicit))) {
+      Iterator<ParsedMnemonic> iterator = mns.iterator();
+      assertEquals("first", iterator.next().mnemonic());
+      assertEquals("second", iterator.next().mnemonic());
+      assertThrows(IllegalArgumentException.class, iterator::hasNext);
+    }
+    assertThrows(IllegalArgumentException.class,
+        () -> KeysymReader.parse(CharSource.wrap(noImplicit)));
+    assertEquals(2, KeysymReader.parse(CharSource.wrap(noImplicit.replace("0x1235", "0x1000100")))
+        .size());
+  }
+
   @Test
   public void testUcpNotToUniqueKeysymCodeIfIncludingDeprecatedOrSpecific() throws Exception {
     ImmutableSet<ParsedMnemonic> mns = KeysymReader.latest();
@@ -333,4 +390,12 @@ public class KeysymReaderTests {
     assertEquals("upleftcorner", mn2.mnemonic());
     assertFalse(mn2.deprecated());
   }
+
+  @Test
+  public void testDispatcher() throws Exception {
+    ImmutableList<String> lines = KeysymReader.latestSource().readLines();
+    DispatcherBenchmark.assertAgrees(lines, KeysymReader.DISPATCHER_START);
+    DispatcherBenchmark.assertAgrees(lines, KeysymReader.DISPATCHER_COMMENTS);
+    DispatcherBenchmark.benchmark(lines, KeysymReader.DISPATCHER_START);
+  }
 }
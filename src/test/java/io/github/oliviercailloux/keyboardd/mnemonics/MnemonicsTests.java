@@ -5,10 +5,18 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.MoreCollectors;
+import com.google.common.io.CharSource;
+import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
+import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.keyboardd.xkeys.Xkeys;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -165,4 +173,134 @@ public class MnemonicsTests {
     assertEquals("A", byUcp.get(UcpByCodeTests.ucp("A")).mnemonic());
     assertEquals("Wcircumflex", byUcp.get(UcpByCodeTests.ucp("Ŵ")).mnemonic());
   }
+
+  @Test
+  public void testPrimitiveLookups() throws Exception {
+    Mnemonics latest = Mnemonics.latest();
+
+    assertTrue(latest.hasCode(0xFF08));
+    assertFalse(latest.hasCode(0x1000174 + 0x100_000));
+    assertEquals("BackSpace", latest.canonicalByCode(0xFF08).mnemonic());
+    assertEquals("Wcircumflex", latest.canonicalByCode(0x1000174).mnemonic());
+    assertEquals(latest.byCode().get(0x20), latest.canonicalByCode(0x20));
+    assertThrows(IllegalArgumentException.class, () -> latest.canonicalByCode(-1));
+
+    assertTrue(latest.hasUcp(UcpByCodeTests.ucp("A")));
+    assertFalse(latest.hasUcp(-1));
+    assertEquals("A", latest.canonicalByUcp(UcpByCodeTests.ucp("A")).mnemonic());
+    assertEquals("Wcircumflex", latest.canonicalByUcp(UcpByCodeTests.ucp("Ŵ")).mnemonic());
+    assertThrows(IllegalArgumentException.class, () -> latest.canonicalByUcp(-1));
+
+    CanonicalMnemonic prior = latest.canonicalByCode(latest.canonical("Page_Up").code());
+    assertTrue(prior == latest.canonical("Prior"));
+    assertTrue(prior == latest.byMnemonic().get("SunPageUp"));
+  }
+
+  @Test
+  public void testNameIndex() throws Exception {
+    Mnemonics latest = Mnemonics.latest();
+    MnemonicNameIndex index = latest.nameIndex();
+
+    assertEquals(latest.byMnemonic().size(), index.size());
+    assertEquals(MnemonicNameIndex.ABSENT, index.id("NOT THERE"));
+    assertEquals(MnemonicNameIndex.ABSENT, index.id(""));
+    int pageUpId = index.id("Page_Up");
+    assertEquals("Page_Up", index.mnemonic(pageUpId));
+    assertEquals(latest.canonical("Prior"), latest.canonicalById(pageUpId));
+
+    StringBuilder buffer = new StringBuilder("key <PGUP> { [ Page_Up ] };");
+    int start = buffer.indexOf("Page_Up");
+    assertEquals(pageUpId, index.id(buffer, start, start + "Page_Up".length()));
+    assertEquals(MnemonicNameIndex.ABSENT, index.id(buffer, start, start + "Page_U".length()));
+    assertEquals(index.id("Page_U"), index.id(buffer, start, start + "Page_U".length()));
+
+    ImmutableList<String> pages = index.withPrefix("Page_", 10);
+    assertEquals(ImmutableList.of("Page_Down", "Page_Up"), pages);
+    assertEquals(ImmutableList.of("Page_Down"), index.withPrefix("Page_", 1));
+    assertEquals(ImmutableList.of(), index.withPrefix("NOT THERE", 10));
+    assertEquals(10, index.withPrefix("", 10).size());
+    assertTrue(index.withPrefix("KP_", 1000).stream().allMatch(m -> m.startsWith("KP_")));
+    assertEquals(index.withPrefix("KP_", 1000).size(),
+        latest.byMnemonic().keySet().stream().filter(m -> m.startsWith("KP_")).count());
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Mnemonics parsed = Mnemonics.fromSource(KeysymReader.latestSource());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    MnemonicsSnapshot.write(parsed, output);
+    ByteBuffer snapshot = ByteBuffer.wrap(output.toByteArray());
+
+    Mnemonics read =
+        MnemonicsSnapshot.read(snapshot, KeysymReader.LATEST_RESOURCE_NAME).orElseThrow();
+    assertEquals(parsed.byMnemonic(), read.byMnemonic());
+    assertEquals(parsed.byCode(), read.byCode());
+    assertEquals(parsed.byUcp(), read.byUcp());
+    assertEquals(ImmutableList.copyOf(parsed.byMnemonic().keySet()),
+        ImmutableList.copyOf(read.byMnemonic().keySet()));
+    assertEquals(parsed.byMnemonic(), Mnemonics.latest().byMnemonic());
+    assertEquals(parsed, read);
+    assertEquals(parsed.fingerprint(), read.fingerprint());
+    assertEquals(parsed.hashCode(), Mnemonics.latest().hashCode());
+    assertFalse(parsed.equals(parsed.withoutDeprecated()));
+
+    assertTrue(MnemonicsSnapshot.read(snapshot.rewind(), "other - 000000.h").isEmpty());
+    assertTrue(MnemonicsSnapshot
+        .read(ByteBuffer.wrap(output.toByteArray(), 0, 100), KeysymReader.LATEST_RESOURCE_NAME)
+        .isEmpty());
+  }
+
+  /**
+   * A synthetic header with the given number of defines, in groups of three: a mnemonic with a UCP,
+   * an alias for it, and a mnemonic with the corresponding implicit UCP keysym code.
+   */
+  private static String syntheticHeader(int nbDefines) {
+    StringBuilder header = new StringBuilder();
+    for (int i = 0; i < nbDefines / 3; ++i) {
+      int ucp = 0x10_000 + i;
+      int code = 0x20_000_000 + i;
+      header.append("#define XKB_KEY_synthetic%d  0x%x  /* U+%X SYNTHETIC */\n".formatted(i, code,
+          ucp));
+      header.append(
+          "#define XKB_KEY_syntheticAlias%d  0x%x  /* Alias for synthetic%d */\n".formatted(i,
+              code, i));
+      header.append("#define XKB_KEY_syntheticImplicit%d  0x%x  /* U+%X SYNTHETIC */\n"
+          .formatted(i, 0x01_000_000 + ucp, ucp));
+    }
+    return header.toString();
+  }
+
+  @Test
+  public void testScaling() throws Exception {
+    for (int nbDefines : ImmutableList.of(10_000, 30_000, 100_000)) {
+      CharSource source = CharSource.wrap(syntheticHeader(nbDefines));
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      Mnemonics mnemonics = Mnemonics.fromSource(source);
+      LOGGER.info("Built mnemonics from {} defines in {}.", nbDefines, stopwatch.elapsed());
+
+      int nbGroups = nbDefines / 3;
+      assertEquals(nbGroups * 2, mnemonics.byCode().size());
+      assertEquals(nbGroups, mnemonics.byUcp().size());
+      CanonicalMnemonic last = mnemonics.canonical("syntheticAlias" + (nbGroups - 1));
+      assertEquals("synthetic" + (nbGroups - 1), last.mnemonic());
+      assertEquals(ImmutableSet.of("syntheticAlias" + (nbGroups - 1)), last.nonDeprecatedAliases());
+      assertTrue(last.ucp().isEmpty());
+      assertEquals(0x01_000_000 + 0x10_000 + nbGroups - 1,
+          mnemonics.byUcp().get(0x10_000 + nbGroups - 1).code());
+    }
+  }
+
+  @Test
+  public void testCanonicalReverseIndex() throws Exception {
+    KeyboardMap map = XkbSymbolsReader.common().overwrite(XkbSymbolsReader.us());
+    Mnemonics mnemonics = Mnemonics.latest();
+    CanonicalKeyboardMap canonMap = CanonicalKeyboardMap
+        .canonicalize(map.canonicalize(Xkeys.latest().canonicalByAlias()), mnemonics);
+    assertEquals(ImmutableSet.of("AC01"), canonMap.names(mnemonics.canonical("a")));
+    assertEquals(ImmutableSet.of("AC01"), canonMap.namesFromUcp('A'));
+    assertEquals(ImmutableSet.of("AC01"), canonMap.reverseIndex().namesFromCode(0x61));
+    assertEquals(ImmutableSet.of("AC01"), canonMap.reverseIndex().namesFromMnemonic("A"));
+    assertEquals(ImmutableSet.of(), canonMap.names(ImplicitUcp.byUcp(0x3B1)));
+    assertEquals(ImmutableSet.of(), canonMap.namesFromUcp(0x3B1));
+  }
 }
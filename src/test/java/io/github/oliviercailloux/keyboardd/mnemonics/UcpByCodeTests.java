@@ -1,7 +1,11 @@
 package io.github.oliviercailloux.keyboardd.mnemonics;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MoreCollectors;
 import org.junit.jupiter.api.Test;
 
@@ -28,4 +32,24 @@ public class UcpByCodeTests {
     assertEquals(' ', ucpByCode.ucp(mns.canonical("space").code()));
     assertEquals('A', ucpByCode.ucp(mns.canonical("A").code()));
   }
+
+  @Test
+  public void testExplicit() {
+    UcpByCode ucpByCode =
+        UcpByCode.implicitAndExplicit(ImmutableMap.of(0x20, 0x20, 0x01_000_100, 0x42, 0xff, 0x100));
+    assertEquals(0x20, ucpByCode.ucp(0x20));
+    assertEquals(0x42, ucpByCode.ucp(0x01_000_100));
+    assertEquals(0x100, ucpByCode.ucp(0xff));
+    assertEquals(0x101, ucpByCode.ucp(0x01_000_101));
+    assertThrows(IllegalArgumentException.class, () -> ucpByCode.ucp(0x21));
+    assertThrows(IllegalArgumentException.class, () -> ucpByCode.ucp(0x01_000_0ff));
+
+    assertTrue(ucpByCode.domainOfCodes().contains(0xff));
+    assertTrue(ucpByCode.domainOfCodes().contains(0x01_10F_FFF));
+    assertFalse(ucpByCode.domainOfCodes().contains(0x21));
+    assertEquals(UcpByCode.IMPLICIT_UCP_KEYSYM_CODES.size() + 2, ucpByCode.domainOfCodes().size());
+    assertTrue(ucpByCode.coDomainOfUcps().contains(0x42));
+    assertFalse(ucpByCode.coDomainOfUcps().contains(0x43));
+    assertEquals(UcpByCode.IMPLICIT_UCPS.size() + 2, ucpByCode.coDomainOfUcps().size());
+  }
 }
@@ -1,10 +1,13 @@
 package io.github.oliviercailloux.keyboardd.representable;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharSource;
 import com.google.common.io.Resources;
 import io.github.oliviercailloux.jaris.xml.DomHelper;
@@ -13,16 +16,26 @@ import io.github.oliviercailloux.keyboardd.keyboard.json.JsonRectangularRowKeybo
 import io.github.oliviercailloux.keyboardd.mapping.KeyboardMap;
 import io.github.oliviercailloux.keyboardd.mapping.KeyboardMapTests;
 import io.github.oliviercailloux.keyboardd.mapping.XkbSymbolsReader;
+import io.github.oliviercailloux.svgb.DoublePoint;
 import io.github.oliviercailloux.svgb.PositiveSize;
+import io.github.oliviercailloux.svgb.SvgDocumentHelper;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.stream.IntStream;
 import javax.xml.transform.stream.StreamSource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
 public class SvgKeyboardTests {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(SvgKeyboardTests.class);
+
   private DomHelper domHelper;
 
   @BeforeEach
@@ -142,4 +155,66 @@ public class SvgKeyboardTests {
     String svg = domHelper.toString(svgR);
     assertEquals(expected, svg);
   }
+
+  @Test
+  public void testHeatmap() throws Exception {
+    Document zoned = domHelper.asDocument(
+        new StreamSource(SvgKeyboardTests.class.getResource("Keyboard two keys.svg").toString()));
+
+    SvgKeyboard svgK = SvgKeyboard.using(zoned);
+    svgK.keyNameByZone().entrySet().stream().filter(e -> e.getValue().equals("TAB"))
+        .forEach(e -> e.getKey().getElement().setAttribute("style", "stroke: blue; fill: green"));
+    svgK.withHeatmap(ImmutableMap.of("TAB", 1L, "AD01", 4L));
+    ImmutableMap<String, String> styleByName = svgK.keyNameByZone().entrySet().stream()
+        .collect(ImmutableMap.toImmutableMap(Map.Entry::getValue,
+            e -> e.getKey().getElement().getAttribute("style")));
+    assertEquals(ImmutableMap.of("TAB", "stroke: blue; fill: #d7301f; fill-opacity: 0.250;", "AD01",
+        "fill: #d7301f; fill-opacity: 1.000;"), styleByName);
+  }
+
+  private static RectangularKeyboard syntheticKeyboard(int nbKeys) {
+    int nbCols = 50;
+    ImmutableSet<RectangularKey> keys = IntStream.range(0, nbKeys)
+        .mapToObj(i -> RectangularKey.from(
+            DoublePoint.given(i % nbCols * 1.2d, i / nbCols * 1.2d), PositiveSize.square(1d),
+            "K" + i))
+        .collect(ImmutableSet.toImmutableSet());
+    return RectangularKeyboard.from(keys);
+  }
+
+  private Duration render(Document zoned, int nbRepresentations) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Document rendered = SvgKeyboard.using(zoned).withRepresentations(k -> IntStream
+        .range(0, nbRepresentations).mapToObj(i -> Representation.fromString(k + i)).toList());
+    Duration elapsed = stopwatch.elapsed();
+    int nbZones = SvgKeyboard.using(rendered).keyNameByZone().size();
+    assertEquals(nbZones * nbRepresentations, rendered
+        .getElementsByTagNameNS(SvgDocumentHelper.SVG_NS_URI.toString(), "g").getLength());
+    return elapsed;
+  }
+
+  @Test
+  public void testRenderingScales() throws Exception {
+    /* Warms up, then keeps the best of a few runs, to limit the noise of a shared machine. */
+    for (int i = 0; i < 3; ++i) {
+      render(SvgKeyboard.zonedFrom(syntheticKeyboard(2_000)).document(), 4);
+    }
+    double smallPerKey = fastestRendering(200).toNanos() / 200d;
+    double largePerKey = fastestRendering(2_000).toNanos() / 2_000d;
+    /* Linear rendering gives a ratio of about one; quadratic rendering, about ten. */
+    assertTrue(largePerKey < 5 * smallPerKey,
+        String.format("%.0f ns per key for 2,000 keys, %.0f ns for 200", largePerKey,
+            smallPerKey));
+  }
+
+  private Duration fastestRendering(int nbKeys) {
+    Duration fastest = null;
+    for (int i = 0; i < 5; ++i) {
+      Duration elapsed = render(SvgKeyboard.zonedFrom(syntheticKeyboard(nbKeys)).document(), 4);
+      if (fastest == null || elapsed.compareTo(fastest) < 0) {
+        fastest = elapsed;
+      }
+    }
+    return fastest;
+  }
 }
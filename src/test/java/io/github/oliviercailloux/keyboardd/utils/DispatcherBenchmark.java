@@ -0,0 +1,64 @@
+package io.github.oliviercailloux.keyboardd.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.github.oliviercailloux.keyboardd.utils.PatternDispatcher.LineMatcher;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares a dispatcher with {@link ParseUtils#matcherOpt(String, java.util.Set)}, for the tests
+ * of the readers that use one.
+ */
+public class DispatcherBenchmark {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(DispatcherBenchmark.class);
+
+  private static final int PASSES = 20;
+
+  /**
+   * Asserts that the strict matcher of the given dispatcher finds, on each given line, the pattern
+   * that trying all its patterns finds.
+   */
+  public static void assertAgrees(ImmutableList<String> lines, PatternDispatcher dispatcher) {
+    LineMatcher strict = dispatcher.strictLineMatcher();
+    ImmutableSet<Pattern> patterns = ImmutableSet.copyOf(dispatcher.patterns());
+    for (String line : lines) {
+      assertEquals(ParseUtils.matcherOpt(line, patterns).map(Matcher::pattern),
+          strict.matcherOpt(line).map(Matcher::pattern));
+    }
+  }
+
+  /**
+   * Logs the time that trying all patterns and dispatching take over a few passes on the given
+   * lines, and asserts that both match as many lines.
+   */
+  public static void benchmark(ImmutableList<String> lines, PatternDispatcher dispatcher) {
+    ImmutableSet<Pattern> patterns = ImmutableSet.copyOf(dispatcher.patterns());
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    int nbMatched = 0;
+    for (int i = 0; i < PASSES; ++i) {
+      for (String line : lines) {
+        nbMatched += ParseUtils.matcherOpt(line, patterns).isPresent() ? 1 : 0;
+      }
+    }
+    LOGGER.info("Set of patterns, {} passes: {}.", PASSES, stopwatch.elapsed());
+    stopwatch.reset().start();
+    LineMatcher lineMatcher = dispatcher.lineMatcher();
+    int nbDispatched = 0;
+    for (int i = 0; i < PASSES; ++i) {
+      for (String line : lines) {
+        nbDispatched += lineMatcher.matcherOpt(line).isPresent() ? 1 : 0;
+      }
+    }
+    LOGGER.info("Dispatcher, {} passes: {}.", PASSES, stopwatch.elapsed());
+    assertEquals(nbMatched, nbDispatched);
+  }
+
+  private DispatcherBenchmark() {}
+}
@@ -0,0 +1,125 @@
+package io.github.oliviercailloux.keyboardd.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class PersistentHashMapTests {
+  private static <K, V> Map<K, V> toMap(PersistentHashMap<K, V> map) {
+    Map<K, V> copy = new HashMap<>();
+    map.forEach((k, v) -> assertNull(copy.put(k, v)));
+    assertEquals(map.size(), copy.size());
+    return copy;
+  }
+
+  @Test
+  public void testBasic() throws Exception {
+    PersistentHashMap<String, Integer> empty = PersistentHashMap.empty();
+    assertTrue(empty.isEmpty());
+    assertNull(empty.get("a"));
+    assertSame(empty, empty.without("a"));
+
+    PersistentHashMap<String, Integer> one = empty.with("a", 1);
+    PersistentHashMap<String, Integer> two = one.with("b", 2);
+    PersistentHashMap<String, Integer> replaced = two.with("a", 3);
+    assertEquals(ImmutableMap.of("a", 1), toMap(one));
+    assertEquals(ImmutableMap.of("a", 1, "b", 2), toMap(two));
+    assertEquals(ImmutableMap.of("a", 3, "b", 2), toMap(replaced));
+    assertEquals(ImmutableMap.of("b", 2), toMap(replaced.without("a")));
+    assertSame(two, two.without("c"));
+    assertTrue(empty.isEmpty());
+  }
+
+  @Test
+  public void testCollisions() throws Exception {
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    ImmutableList<String> colliding = ImmutableList.of("AaAa", "BBBB", "AaBB", "BBAa");
+    for (String key : colliding) {
+      assertEquals("AaAa".hashCode(), key.hashCode());
+    }
+
+    PersistentHashMap<String, Integer> pair =
+        PersistentHashMap.<String, Integer>empty().with("Aa", 1).with("BB", 2);
+    assertEquals(ImmutableMap.of("Aa", 1, "BB", 2), toMap(pair));
+    assertEquals(ImmutableMap.of("Aa", 3, "BB", 2), toMap(pair.with("Aa", 3)));
+    assertEquals(ImmutableMap.of("BB", 2), toMap(pair.without("Aa")));
+    assertEquals(ImmutableMap.of("Aa", 1), toMap(pair.without("BB")));
+    assertSame(pair, pair.without("CC"));
+    assertFalse(pair.containsKey("Ab"));
+
+    PersistentHashMap<String, Integer> map = pair;
+    for (int i = 0; i < colliding.size(); ++i) {
+      map = map.with(colliding.get(i), 10 + i);
+    }
+    assertEquals(ImmutableMap.of("Aa", 1, "BB", 2, "AaAa", 10, "BBBB", 11, "AaBB", 12, "BBAa", 13),
+        toMap(map));
+    PersistentHashMap<String, Integer> removed = map.without("BBBB").without("AaAa");
+    assertEquals(ImmutableMap.of("Aa", 1, "BB", 2, "AaBB", 12, "BBAa", 13), toMap(removed));
+    assertEquals(6, map.size());
+  }
+
+  @Test
+  public void testRemoveLastColliding() throws Exception {
+    PersistentHashMap<String, Integer> map =
+        PersistentHashMap.<String, Integer>empty().with("Aa", 1).with("BB", 2).with("C", 3);
+    PersistentHashMap<String, Integer> removed = map.without("Aa").without("BB");
+    assertEquals(ImmutableMap.of("C", 3), toMap(removed));
+    assertFalse(removed.containsKey("Aa"));
+    assertFalse(removed.containsKey("BB"));
+    assertEquals(ImmutableMap.of("C", 3, "BB", 4), toMap(removed.with("BB", 4)));
+
+    PersistentHashMap<String, Integer> emptied =
+        PersistentHashMap.<String, Integer>empty().with("Aa", 1).with("BB", 2).without("BB")
+            .without("Aa");
+    assertTrue(emptied.isEmpty());
+    assertEquals(ImmutableMap.of(), toMap(emptied));
+    assertEquals(ImmutableMap.of("Aa", 5), toMap(emptied.with("Aa", 5)));
+  }
+
+  @Test
+  public void testRandomAgainstHashMap() throws Exception {
+    Random random = new Random(42);
+    ImmutableList<String> pieces = ImmutableList.of("Aa", "BB");
+    PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+    Map<String, Integer> expected = new HashMap<>();
+    PersistentHashMap<String, Integer> saved = null;
+    Map<String, Integer> savedExpected = null;
+    for (int i = 0; i < 20_000; ++i) {
+      final String key;
+      if (random.nextInt(4) == 0) {
+        /* Eight keys that share their hash code. */
+        key = pieces.get(random.nextInt(2)) + pieces.get(random.nextInt(2))
+            + pieces.get(random.nextInt(2));
+      } else {
+        key = String.valueOf(random.nextInt(3_000));
+      }
+      if (random.nextInt(5) < 3) {
+        map = map.with(key, i);
+        expected.put(key, i);
+      } else {
+        map = map.without(key);
+        expected.remove(key);
+      }
+      assertEquals(expected.size(), map.size());
+      assertEquals(expected.get(key), map.get(key));
+      if (i % 1_000 == 0) {
+        assertEquals(expected, toMap(map));
+      }
+      if (i == 10_000) {
+        saved = map;
+        savedExpected = new HashMap<>(expected);
+      }
+    }
+    assertEquals(expected, toMap(map));
+    assertEquals(savedExpected, toMap(saved));
+  }
+}
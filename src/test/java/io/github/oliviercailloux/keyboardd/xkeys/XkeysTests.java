@@ -2,17 +2,28 @@ package io.github.oliviercailloux.keyboardd.xkeys;
 
 import static java.util.stream.IntStream.rangeClosed;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import io.github.oliviercailloux.keyboardd.utils.DispatcherBenchmark;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class XkeysTests {
+  @SuppressWarnings("unused")
+  private static final Logger LOGGER = LoggerFactory.getLogger(XkeysTests.class);
+
   @Test
   public void testLatest() throws Exception {
     ImmutableSortedSet<Short> expectedCodes = Stream
@@ -83,8 +94,13 @@ public class XkeysTests {
     assertEquals(ImmutableSet.of("LSGT"), keys.names((short) 94));
     assertEquals(ImmutableSet.of("BKSL", "AC12"), keys.names((short) 51));
     assertThrows(IllegalArgumentException.class, () -> keys.names((short) 7));
+    assertThrows(IllegalArgumentException.class, () -> keys.names((short) 709));
+    assertSame(keys.names((short) 51), keys.names((short) 51));
+    assertSame(keys.aliases("BKSL"), keys.aliases("BKSL"));
+    assertSame(keys.names(), keys.names());
 
     assertEquals(keys.names(), keys.codeByName().keySet());
+    assertSame(keys.codeByName(), keys.codeByName());
     assertEquals(expectedCodes, ImmutableSortedSet.copyOf(keys.codeByName().values()));
   }
 
@@ -142,4 +158,51 @@ public class XkeysTests {
 
     assertEquals(withoutAliases, withoutAliases.withoutAliases());
   }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Xkeys parsed = EvdevReader.parse(EvdevReader.latestSource());
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    XkeysSnapshot.write(parsed, output);
+    ByteBuffer snapshot = ByteBuffer.wrap(output.toByteArray());
+
+    Xkeys read = XkeysSnapshot.read(snapshot, EvdevReader.LATEST_RESOURCE_NAME).orElseThrow();
+    assertEquals(parsed, read);
+    assertEquals(ImmutableList.copyOf(parsed.canonicals()),
+        ImmutableList.copyOf(read.canonicals()));
+    assertEquals(parsed, Xkeys.latest());
+    assertEquals(parsed.fingerprint(), read.fingerprint());
+    assertEquals(parsed.hashCode(), read.hashCode());
+    assertNotEquals(parsed.fingerprint(), parsed.withoutAliases().fingerprint());
+
+    assertTrue(XkeysSnapshot.read(snapshot.rewind(), "evdev - 000000").isEmpty());
+  }
+
+  @Test
+  public void testDispatcher() throws Exception {
+    ImmutableList<String> lines = EvdevReader.latestSource().readLines();
+    DispatcherBenchmark.assertAgrees(lines, EvdevReader.DISPATCHER);
+    DispatcherBenchmark.benchmark(lines, EvdevReader.DISPATCHER);
+  }
+
+  @Test
+  public void testPackedKeyName() throws Exception {
+    long packed = PackedKeyName.pack("AC12");
+    assertEquals("AC12", PackedKeyName.unpack(packed));
+    assertEquals(packed, PackedKeyName.pack("<AC12>", 1, 5));
+    assertEquals(PackedKeyName.UNPACKABLE, PackedKeyName.pack("TOOLONGNAME"));
+    assertEquals(PackedKeyName.UNPACKABLE, PackedKeyName.pack("\u00e9"));
+    assertSame(PackedKeyName.name("<AC12> = 51;", 1, 5), PackedKeyName.name("<AC12>", 1, 5));
+
+    Xkeys keys = Xkeys.latest();
+    for (String name : keys.names()) {
+      long p = PackedKeyName.pack(name);
+      assertNotEquals(PackedKeyName.UNPACKABLE, p);
+      assertEquals(keys.code(name), keys.code(p));
+      assertEquals(keys.canonical(name), keys.canonical(p));
+    }
+    assertEquals(51, keys.code(packed));
+    assertEquals("BKSL", keys.canonical(packed));
+    assertThrows(IllegalArgumentException.class, () -> keys.code(PackedKeyName.pack("ZZZZ")));
+  }
 }